@@ -0,0 +1,384 @@
+package net.sashag.wams.android.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a <code>TableAdapter</code> implementation for every class decorated by
+ * <code>@DataTable</code>. The generated adapter reads and writes the <code>@Key</code> and
+ * <code>@DataMember</code> fields directly, so the runtime library does not have to use
+ * reflection for these classes, and the fields do not have to be kept when running ProGuard.
+ * <p>
+ * Direct field access requires the fields and the no-argument constructor to be visible
+ * from the class's package. Classes that do not meet these requirements are skipped with
+ * a note, and the runtime library serializes them using reflection as before.
+ * <p>
+ * To use the processor, add the jar built from this project to your application's
+ * annotation processor path (in Eclipse, under Java Compiler -&gt; Annotation Processing
+ * -&gt; Factory Path).
+ *
+ * @author Sasha Goldshtein
+ *
+ */
+@SupportedAnnotationTypes(TableAdapterProcessor.DATA_TABLE)
+public class TableAdapterProcessor extends AbstractProcessor {
+
+	static final String DATA_TABLE = "net.sashag.wams.android.DataTable";
+	private static final String DATA_MEMBER = "net.sashag.wams.android.DataMember";
+	private static final String KEY = "net.sashag.wams.android.Key";
+	private static final String ADAPTER_SUFFIX = "$$TableAdapter";
+	private static final Set<String> SUPPORTED_REFERENCE_TYPES = new HashSet<String>(Arrays.asList(
+			"java.lang.Integer", "java.lang.Long", "java.lang.Double", "java.lang.Float", "java.lang.Short",
+			"java.lang.Byte", "java.lang.Character", "java.lang.Boolean", "java.lang.String"));
+
+	private static class Column {
+		String name;
+		String fieldName;
+		TypeMirror type;
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement dataTable = processingEnv.getElementUtils().getTypeElement(DATA_TABLE);
+		if (dataTable == null) {
+			return false;
+		}
+		for (Element element : roundEnv.getElementsAnnotatedWith(dataTable)) {
+			if (element.getKind() != ElementKind.CLASS) {
+				continue;
+			}
+			TypeElement tableClass = (TypeElement) element;
+			try {
+				generateAdapter(tableClass);
+			} catch (IOException e) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+						"Error generating table adapter: " + e.getMessage(), tableClass);
+			}
+		}
+		return false;
+	}
+
+	private void generateAdapter(TypeElement tableClass) throws IOException {
+		if (!canAccessFromPackage(tableClass) || tableClass.getModifiers().contains(Modifier.ABSTRACT)) {
+			skip(tableClass, "the class is abstract, private or a non-static inner class");
+			return;
+		}
+		if (!hasAccessibleDefaultConstructor(tableClass)) {
+			skip(tableClass, "the class does not have a non-private no-argument constructor");
+			return;
+		}
+
+		String keyField = null;
+		List<Column> columns = new ArrayList<Column>();
+		for (VariableElement field : ElementFilter.fieldsIn(tableClass.getEnclosedElements())) {
+			boolean isKey = getAnnotation(field, KEY) != null;
+			AnnotationMirror dataMember = getAnnotation(field, DATA_MEMBER);
+			if (!isKey && dataMember == null) {
+				continue;
+			}
+			Set<Modifier> modifiers = field.getModifiers();
+			if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL) || modifiers.contains(Modifier.STATIC)) {
+				skip(tableClass, "field '" + field.getSimpleName() + "' is private, final or static");
+				return;
+			}
+			if (isKey) {
+				if (keyField != null || field.asType().getKind() != TypeKind.INT) {
+					//The runtime library reports this error with a better message
+					skip(tableClass, "the class must have exactly one @Key field of type int");
+					return;
+				}
+				keyField = field.getSimpleName().toString();
+				continue;
+			}
+			if (!isSupportedType(field.asType())) {
+				skip(tableClass, "field '" + field.getSimpleName() + "' is of type " + field.asType() +
+						", which generated adapters do not convert");
+				return;
+			}
+			Column column = new Column();
+			column.name = getAnnotationValue(dataMember);
+			column.fieldName = field.getSimpleName().toString();
+			column.type = field.asType();
+			columns.add(column);
+		}
+		if (keyField == null) {
+			skip(tableClass, "the class does not have a @Key field");
+			return;
+		}
+
+		String packageName = getPackageName(tableClass);
+		String binaryName = processingEnv.getElementUtils().getBinaryName(tableClass).toString();
+		String adapterName = binaryName.substring(packageName.length() == 0 ? 0 : packageName.length() + 1) + ADAPTER_SUFFIX;
+		String typeName = tableClass.getQualifiedName().toString();
+
+		JavaFileObject sourceFile = processingEnv.getFiler().createSourceFile(
+				packageName.length() == 0 ? adapterName : packageName + "." + adapterName, tableClass);
+		PrintWriter out = new PrintWriter(sourceFile.openWriter());
+		try {
+			writeAdapter(out, packageName, adapterName, typeName, keyField, columns);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeAdapter(PrintWriter out, String packageName, String adapterName, String typeName,
+			String keyField, List<Column> columns) {
+		if (packageName.length() > 0) {
+			out.println("package " + packageName + ";");
+			out.println();
+		}
+		out.println("import org.json.JSONException;");
+		out.println("import org.json.JSONObject;");
+		out.println();
+		out.println("/** Generated by " + TableAdapterProcessor.class.getName() + ". Do not modify. */");
+		out.println("public final class " + adapterName + " implements net.sashag.wams.android.TableAdapter<" + typeName + "> {");
+		out.println();
+
+		out.println("\tpublic " + typeName + " fromJson(JSONObject json) throws JSONException {");
+		out.println("\t\treturn fromJson(json, null);");
+		out.println("\t}");
+		out.println();
+
+		//A null set of columns means all the columns; columns that were not requested are not expected
+		out.println("\tpublic " + typeName + " fromJson(JSONObject json, java.util.Set<String> columns) throws JSONException {");
+		out.println("\t\t" + typeName + " item = new " + typeName + "();");
+		out.println("\t\titem." + keyField + " = json.getInt(\"id\");");
+		for (Column column : columns) {
+			String name = quote(column.name);
+			out.println("\t\tif (columns == null || columns.contains(" + name + ")) {");
+			out.println("\t\t\tif (json.has(" + name + ")) {");
+			out.println("\t\t\t\titem." + column.fieldName + " = " + readExpression(column, name) + ";");
+			out.println("\t\t\t} else {");
+			out.println("\t\t\t\tandroid.util.Log.w(\"Serializer\", \"Server JSON object does not contain a value for field: \" + " + name + ");");
+			out.println("\t\t\t}");
+			out.println("\t\t}");
+		}
+		out.println("\t\treturn item;");
+		out.println("\t}");
+		out.println();
+
+		out.println("\tpublic JSONObject toJson(" + typeName + " item, boolean withId) throws JSONException {");
+		out.println("\t\tJSONObject json = new JSONObject();");
+		out.println("\t\tif (withId) {");
+		out.println("\t\t\tjson.put(\"id\", item." + keyField + ");");
+		out.println("\t\t}");
+		for (Column column : columns) {
+			String name = quote(column.name);
+			String value = "item." + column.fieldName;
+			String type = column.type.toString();
+			if (column.type.getKind() == TypeKind.BOOLEAN) {
+				//Booleans are sent as 0/1 for compatibility with the C# and iOS SDKs
+				out.println("\t\tjson.put(" + name + ", " + value + " ? 1 : 0);");
+			} else if (type.equals("java.lang.Boolean")) {
+				out.println("\t\tif (" + value + " != null) {");
+				out.println("\t\t\tjson.put(" + name + ", " + value + ".booleanValue() ? 1 : 0);");
+				out.println("\t\t}");
+			} else if (column.type.getKind() == TypeKind.FLOAT) {
+				//Boxed like the reflective serializer does, so that the value is not widened to a double
+				out.println("\t\tjson.put(" + name + ", (Object) Float.valueOf(" + value + "));");
+			} else if (column.type.getKind() == TypeKind.CHAR) {
+				//Sent as a string of a single character, not as a number
+				out.println("\t\tjson.put(" + name + ", (Object) Character.valueOf(" + value + "));");
+			} else if (column.type.getKind().isPrimitive()) {
+				out.println("\t\tjson.put(" + name + ", " + value + ");");
+			} else {
+				out.println("\t\tjson.put(" + name + ", (Object) " + value + ");");
+			}
+		}
+		out.println("\t\treturn json;");
+		out.println("\t}");
+		out.println();
+
+		out.println("\tpublic int getId(" + typeName + " item) {");
+		out.println("\t\treturn item." + keyField + ";");
+		out.println("\t}");
+		out.println();
+		out.println("\tpublic void setId(" + typeName + " item, int id) {");
+		out.println("\t\titem." + keyField + " = id;");
+		out.println("\t}");
+		out.println();
+
+		out.println("\tprivate static boolean readBoolean(JSONObject json, String name) throws JSONException {");
+		out.println("\t\ttry {");
+		out.println("\t\t\tint value = json.getInt(name);");
+		out.println("\t\t\tif (value != 0 && value != 1) {");
+		out.println("\t\t\t\tthrow new java.security.InvalidParameterException(\"Invalid value \" + value + \" specified for Boolean property: \" + name);");
+		out.println("\t\t\t}");
+		out.println("\t\t\treturn value == 1;");
+		out.println("\t\t} catch (JSONException e) {");
+		out.println("\t\t\treturn json.getBoolean(name);");
+		out.println("\t\t}");
+		out.println("\t}");
+		out.println();
+
+		out.println("\tprivate static char readChar(JSONObject json, String name) throws JSONException {");
+		out.println("\t\tString value = json.getString(name);");
+		out.println("\t\tif (value.length() != 1) {");
+		out.println("\t\t\tthrow new JSONException(\"Expected a single character as the value of property: \" + name);");
+		out.println("\t\t}");
+		out.println("\t\treturn value.charAt(0);");
+		out.println("\t}");
+		out.println("}");
+	}
+
+	private static String readExpression(Column column, String name) {
+		String type = column.type.toString();
+		switch (column.type.getKind()) {
+		case INT:
+			return "json.getInt(" + name + ")";
+		case LONG:
+			return "json.getLong(" + name + ")";
+		case DOUBLE:
+			return "json.getDouble(" + name + ")";
+		case FLOAT:
+			return "(float) json.getDouble(" + name + ")";
+		case SHORT:
+			return "(short) json.getInt(" + name + ")";
+		case BYTE:
+			return "(byte) json.getInt(" + name + ")";
+		case CHAR:
+			return "readChar(json, " + name + ")";
+		case BOOLEAN:
+			return "readBoolean(json, " + name + ")";
+		default:
+			break;
+		}
+		if (type.equals("java.lang.Integer")) {
+			return "Integer.valueOf(json.getInt(" + name + "))";
+		}
+		if (type.equals("java.lang.Long")) {
+			return "Long.valueOf(json.getLong(" + name + "))";
+		}
+		if (type.equals("java.lang.Double")) {
+			return "Double.valueOf(json.getDouble(" + name + "))";
+		}
+		if (type.equals("java.lang.Float")) {
+			return "Float.valueOf((float) json.getDouble(" + name + "))";
+		}
+		if (type.equals("java.lang.Short")) {
+			return "Short.valueOf((short) json.getInt(" + name + "))";
+		}
+		if (type.equals("java.lang.Byte")) {
+			return "Byte.valueOf((byte) json.getInt(" + name + "))";
+		}
+		if (type.equals("java.lang.Character")) {
+			return "Character.valueOf(readChar(json, " + name + "))";
+		}
+		if (type.equals("java.lang.Boolean")) {
+			return "Boolean.valueOf(readBoolean(json, " + name + "))";
+		}
+		//Only reached for strings; other types are rejected by isSupportedType
+		return "json.getString(" + name + ")";
+	}
+
+	//Primitives, their boxes and strings; other types, such as dates, are left to the reflective
+	//serializer, because org.json returns them as strings or numbers that cannot be cast to the field type
+	private static boolean isSupportedType(TypeMirror type) {
+		if (type.getKind().isPrimitive()) {
+			return true;
+		}
+		return SUPPORTED_REFERENCE_TYPES.contains(type.toString());
+	}
+
+	private static boolean canAccessFromPackage(TypeElement type) {
+		Element current = type;
+		while (current instanceof TypeElement) {
+			TypeElement currentType = (TypeElement) current;
+			if (currentType.getModifiers().contains(Modifier.PRIVATE)) {
+				return false;
+			}
+			if (currentType.getNestingKind() == NestingKind.MEMBER && !currentType.getModifiers().contains(Modifier.STATIC)) {
+				return false;
+			}
+			if (currentType.getNestingKind() == NestingKind.LOCAL || currentType.getNestingKind() == NestingKind.ANONYMOUS) {
+				return false;
+			}
+			current = currentType.getEnclosingElement();
+		}
+		return true;
+	}
+
+	private static boolean hasAccessibleDefaultConstructor(TypeElement type) {
+		for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+			if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String getPackageName(Element element) {
+		while (!(element instanceof PackageElement)) {
+			element = element.getEnclosingElement();
+		}
+		return ((PackageElement) element).getQualifiedName().toString();
+	}
+
+	private static AnnotationMirror getAnnotation(Element element, String annotationName) {
+		for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+			TypeElement annotationType = (TypeElement) mirror.getAnnotationType().asElement();
+			if (annotationType.getQualifiedName().contentEquals(annotationName)) {
+				return mirror;
+			}
+		}
+		return null;
+	}
+
+	private static String getAnnotationValue(AnnotationMirror mirror) {
+		for (AnnotationValue value : mirror.getElementValues().values()) {
+			return (String) value.getValue();
+		}
+		return null;
+	}
+
+	private static String quote(String value) {
+		StringBuilder result = new StringBuilder(value.length() + 2);
+		result.append('"');
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				result.append('\\');
+			}
+			result.append(c);
+		}
+		result.append('"');
+		return result.toString();
+	}
+
+	private void skip(TypeElement tableClass, String reason) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+				"Not generating a table adapter for " + tableClass.getQualifiedName() + " because " + reason
+				+ "; it will be serialized using reflection, so keep its fields when using ProGuard", tableClass);
+	}
+
+}
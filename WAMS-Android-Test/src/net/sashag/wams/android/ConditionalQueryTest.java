@@ -0,0 +1,151 @@
+package net.sashag.wams.android;
+
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests that queries are sent as conditional requests when their cached results have validators,
+ * that a "304 Not Modified" response is answered with the cached results, and that a change to
+ * the table invalidates them.
+ */
+public class ConditionalQueryTest extends AndroidTestCase {
+
+	@DataTable("items")
+	static class Item {
+		@Key int id;
+		@DataMember("text") String text;
+
+		Item() {
+		}
+
+		Item(String text) {
+			this.text = text;
+		}
+	}
+
+	//Stands in for a table whose version, and ETag, changes with every insert
+	private static class VersionedTable implements StandInServer.Handler {
+		private final JSONArray rows = new JSONArray();
+		private int version = 1;
+		volatile boolean useLastModified;
+		volatile int fullResponses;
+
+		public synchronized StandInServer.Response handle(StandInServer.Request request) throws Exception {
+			if (request.method.equals("POST")) {
+				JSONObject row = new JSONObject(request.body);
+				row.put("id", rows.length() + 1);
+				rows.put(row);
+				++version;
+				return StandInServer.Response.json(201, row.toString());
+			}
+			String validator = useLastModified ? "Thu, 01 Jan 2015 00:00:0" + version + " GMT" : "\"v" + version + "\"";
+			String condition = request.getHeader(useLastModified ? "If-Modified-Since" : "If-None-Match");
+			if (validator.equals(condition)) {
+				return new StandInServer.Response(304, null);
+			}
+			++fullResponses;
+			return StandInServer.Response.json(200, rows.toString())
+					.header(useLastModified ? "Last-Modified" : "ETag", validator);
+		}
+	}
+
+	private StandInServer server;
+	private VersionedTable table;
+	private MobileService mobileService;
+	private MobileTable<Item> items;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		table = new VersionedTable();
+		server = new StandInServer(table);
+		mobileService = new MobileService(getContext(), server.getUrl(), "key");
+		items = mobileService.getTable(Item.class);
+		items.insert(new Item("first"));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mobileService.shutdown();
+		server.close();
+		super.tearDown();
+	}
+
+	public void testNotModifiedReturnsCachedResults() throws Exception {
+		List<Item> first = items.where().select();
+		List<Item> second = items.where().select();
+
+		List<StandInServer.Request> queries = getQueries();
+		assertEquals(2, queries.size());
+		assertNull(queries.get(0).getHeader("If-None-Match"));
+		assertEquals("\"v2\"", queries.get(1).getHeader("If-None-Match"));
+		assertEquals(1, table.fullResponses);
+		assertEquals(1, second.size());
+		//The cached results are new instances, so changes to the first results do not leak into them
+		assertNotSame(first.get(0), second.get(0));
+		assertEquals("first", second.get(0).text);
+	}
+
+	public void testChangesToReturnedItemsDoNotReachTheCache() throws Exception {
+		List<Item> first = items.where().select();
+		first.get(0).text = "edited but not saved";
+		List<Item> second = items.where().select();
+
+		assertEquals(1, table.fullResponses);
+		assertEquals("first", second.get(0).text);
+	}
+
+	public void testNotModifiedWithLastModified() throws Exception {
+		table.useLastModified = true;
+		List<Item> first = items.where().select();
+		List<Item> second = items.where().select();
+
+		List<StandInServer.Request> queries = getQueries();
+		assertEquals("Thu, 01 Jan 2015 00:00:02 GMT", queries.get(1).getHeader("If-Modified-Since"));
+		assertEquals(1, table.fullResponses);
+		assertEquals(first.get(0).id, second.get(0).id);
+	}
+
+	public void testSameConditionsInAnotherOrderShareCachedResults() throws Exception {
+		items.where().equal("text", "first").gt("id", 0).select();
+		List<Item> second = items.where().gt("id", 0).equal("text", "first").select();
+
+		List<StandInServer.Request> queries = getQueries();
+		assertEquals(queries.get(0).path, queries.get(1).path);
+		assertEquals("\"v2\"", queries.get(1).getHeader("If-None-Match"));
+		assertEquals(1, table.fullResponses);
+		assertEquals(1, second.size());
+	}
+
+	public void testInsertInvalidatesCachedResults() throws Exception {
+		items.where().select();
+		items.insert(new Item("second"));
+		List<Item> afterInsert = items.where().select();
+
+		List<StandInServer.Request> queries = getQueries();
+		assertEquals(2, queries.size());
+		assertNull("The query after the insert must not be conditional", queries.get(1).getHeader("If-None-Match"));
+		assertEquals(2, table.fullResponses);
+		assertEquals(2, afterInsert.size());
+		assertEquals("second", afterInsert.get(1).text);
+
+		//The new results are cached with the new validator
+		items.where().select();
+		assertEquals("\"v3\"", getQueries().get(2).getHeader("If-None-Match"));
+		assertEquals(2, table.fullResponses);
+	}
+
+	private List<StandInServer.Request> getQueries() {
+		List<StandInServer.Request> queries = server.getRequests();
+		for (int i = queries.size() - 1; i >= 0; --i) {
+			if (!queries.get(i).method.equals("GET")) {
+				queries.remove(i);
+			}
+		}
+		return queries;
+	}
+}
@@ -0,0 +1,46 @@
+package net.sashag.wams.android;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests that {@link HttpTransport} honors the Retry-After header of transient errors, and gives
+ * up right away when the server asks for a longer delay than the retry policy allows.
+ */
+public class HttpTransportTest extends AndroidTestCase {
+
+	public void testParsesSecondsWithinTheMaximumDelay() {
+		assertEquals(0, HttpTransport.parseRetryAfter("0", 5000));
+		assertEquals(3000, HttpTransport.parseRetryAfter(" 3 ", 5000));
+		assertEquals(5000, HttpTransport.parseRetryAfter("5", 5500));
+		assertEquals(Long.MAX_VALUE, HttpTransport.parseRetryAfter("6", 5500));
+	}
+
+	public void testHugeSecondsExceedTheMaximumDelay() {
+		//Multiplied by 1000, these would overflow and be clamped to no delay at all
+		assertEquals(Long.MAX_VALUE, HttpTransport.parseRetryAfter("9223372036854775807", 5000));
+		assertEquals(Long.MAX_VALUE, HttpTransport.parseRetryAfter("9223372036854776", 5000));
+		assertEquals(Long.MAX_VALUE, HttpTransport.parseRetryAfter("99999999999999999999", 5000));
+	}
+
+	public void testHugeRetryAfterIsNotRetried() throws Exception {
+		StandInServer server = new StandInServer(new StandInServer.Handler() {
+			public StandInServer.Response handle(StandInServer.Request request) {
+				return StandInServer.Response.json(503, "{}").header("Retry-After", "9223372036854775807");
+			}
+		});
+		HttpTransport transport = new HttpTransport(new HttpRequestDecorator(), new MetricsRegistry(), 4, 30000);
+		try {
+			transport.setRetryPolicy(3, 10, 5000);
+			HttpTransport.Response response = transport.execute(HttpTransport.GET, server.getUrl() + "/tables/items", null);
+			try {
+				assertEquals(503, response.getStatusCode());
+			} finally {
+				response.close();
+			}
+			assertEquals(1, server.getRequests().size());
+		} finally {
+			transport.shutdown();
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package net.sashag.wams.android;
+
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Compares keeping a table up to date with {@link MobileTableMirror#sync}, which retrieves only
+ * the items that changed since the previous sync, with retrieving the entire table again with
+ * {@link MobileTable#all}. Between refreshes, a few items of the table change. The table is
+ * served by a {@link StandInServer} that evaluates the filters, orders and paging the mirror uses.
+ * <p>
+ * Read the results from the log with the "Benchmark" tag.
+ */
+public class MirrorSyncBenchmark extends AndroidTestCase {
+
+	private static final int ROWS = 2000;
+	private static final int CHANGED_ROWS_PER_ROUND = 20;
+	private static final int ROUNDS = 10;
+
+	@DataTable("apartments")
+	static class Apartment {
+		@Key int id;
+		@DataMember("address") String address;
+		@DataMember("bedrooms") int bedrooms;
+		@DataMember("version") int version;
+	}
+
+	/**
+	 * A table of apartments that answers the queries of mirrors: filters that combine numeric
+	 * comparisons with "and", "or" and "not", orders, top, skip and select.
+	 */
+	static class ApartmentTable implements StandInServer.Handler {
+		private static final Pattern TOKEN = Pattern.compile("\\(|\\)|[^\\s()]+");
+
+		private final List<JSONObject> rows = new ArrayList<JSONObject>();
+		private int version;
+		final AtomicLong bytesSent = new AtomicLong();
+		final AtomicInteger requests = new AtomicInteger();
+
+		ApartmentTable(int count) throws Exception {
+			for (int i = 1; i <= count; ++i) {
+				JSONObject row = new JSONObject();
+				row.put("id", i);
+				row.put("address", i + " Derech HaAtsmaut, Haifa");
+				row.put("bedrooms", i % 5 + 1);
+				row.put("version", ++version);
+				rows.add(row);
+			}
+		}
+
+		synchronized void changeSome(int count) throws Exception {
+			for (int i = 0; i < count; ++i) {
+				change((version * 7919) % rows.size() + 1);
+			}
+		}
+
+		//Changes the item with the specified id, which moves it to the end of the watermark order
+		synchronized void change(int id) throws Exception {
+			JSONObject row = rows.get(id - 1);
+			row.put("bedrooms", row.getInt("bedrooms") % 5 + 1);
+			row.put("version", ++version);
+		}
+
+		synchronized JSONObject getRow(int id) {
+			return rows.get(id - 1);
+		}
+
+		public synchronized StandInServer.Response handle(StandInServer.Request request) throws Exception {
+			String path = URLDecoder.decode(request.path, "UTF-8");
+			List<JSONObject> result = new ArrayList<JSONObject>();
+			String filter = getParameter(path, "$filter");
+			for (JSONObject row : rows) {
+				if (filter == null || matches(row, filter)) {
+					result.add(row);
+				}
+			}
+			String orderBy = getParameter(path, "$orderby");
+			if (orderBy != null) {
+				final String[] columns = orderBy.split(",");
+				Collections.sort(result, new Comparator<JSONObject>() {
+					public int compare(JSONObject a, JSONObject b) {
+						for (String column : columns) {
+							boolean descending = column.endsWith(" desc");
+							String name = column.split(" ")[0];
+							int order = Double.compare(a.optDouble(name), b.optDouble(name));
+							if (order != 0) {
+								return descending ? -order : order;
+							}
+						}
+						return 0;
+					}
+				});
+			}
+			String skip = getParameter(path, "$skip");
+			String top = getParameter(path, "$top");
+			int from = Math.min(result.size(), skip != null ? Integer.parseInt(skip) : 0);
+			int to = top != null ? Math.min(result.size(), from + Integer.parseInt(top)) : result.size();
+			String select = getParameter(path, "$select");
+			JSONArray array = new JSONArray();
+			for (JSONObject row : result.subList(from, to)) {
+				array.put(select != null ? new JSONObject(row, select.split(",")) : row);
+			}
+			String body = array.toString();
+			bytesSent.addAndGet(body.length());
+			requests.incrementAndGet();
+			return StandInServer.Response.json(200, body);
+		}
+
+		private static boolean matches(JSONObject row, String filter) {
+			List<String> tokens = new ArrayList<String>();
+			Matcher token = TOKEN.matcher(filter);
+			while (token.find()) {
+				tokens.add(token.group());
+			}
+			return new FilterEvaluator(row, tokens).evaluate();
+		}
+
+		private static String getParameter(String path, String name) {
+			int start = path.indexOf(name + "=");
+			if (start == -1) {
+				return null;
+			}
+			start += name.length() + 1;
+			int end = path.indexOf('&', start);
+			return end == -1 ? path.substring(start) : path.substring(start, end);
+		}
+	}
+
+	//Evaluates a filter by recursive descent: or binds more loosely than and, which binds more loosely than not
+	private static class FilterEvaluator {
+		private final JSONObject row;
+		private final List<String> tokens;
+		private int position;
+
+		FilterEvaluator(JSONObject row, List<String> tokens) {
+			this.row = row;
+			this.tokens = tokens;
+		}
+
+		boolean evaluate() {
+			boolean result = evaluateAnd();
+			while (accept("or")) {
+				result |= evaluateAnd();
+			}
+			return result;
+		}
+
+		private boolean evaluateAnd() {
+			boolean result = evaluateOperand();
+			while (accept("and")) {
+				result &= evaluateOperand();
+			}
+			return result;
+		}
+
+		private boolean evaluateOperand() {
+			if (accept("not")) {
+				return !evaluateOperand();
+			}
+			if (accept("(")) {
+				boolean result = evaluate();
+				accept(")");
+				return result;
+			}
+			double column = row.optDouble(tokens.get(position++));
+			String operator = tokens.get(position++);
+			double value = Double.parseDouble(tokens.get(position++).replace("'", ""));
+			if (operator.equals("eq")) {
+				return column == value;
+			} else if (operator.equals("ne")) {
+				return column != value;
+			} else if (operator.equals("gt")) {
+				return column > value;
+			} else if (operator.equals("ge")) {
+				return column >= value;
+			} else if (operator.equals("lt")) {
+				return column < value;
+			}
+			return column <= value;
+		}
+
+		private boolean accept(String expected) {
+			if (position < tokens.size() && tokens.get(position).equals(expected)) {
+				++position;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private ApartmentTable table;
+	private StandInServer server;
+	private MobileService mobileService;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		table = new ApartmentTable(ROWS);
+		server = new StandInServer(table);
+		mobileService = new MobileService(getContext(), server.getUrl(), "key");
+	}
+
+
+	@Override
+	protected void tearDown() throws Exception {
+		mobileService.shutdown();
+		server.close();
+		super.tearDown();
+	}
+
+	public void testDeltaSyncVersusAll() throws Exception {
+		MobileTable<Apartment> apartments = mobileService.getTable(Apartment.class);
+		MobileTableMirror<Apartment> mirror = apartments.mirror().setWatermarkColumn("version");
+		MobileTableMirror<Apartment> reconciling = apartments.where().gt("bedrooms", 0).mirror()
+				.setWatermarkColumn("version").setReconcileDeletes(true);
+		mirror.clear();
+		reconciling.clear();
+		measure("initial load", mirror, null, 0);
+		reconciling.sync();
+
+		long[] totals = new long[9];
+		for (int round = 0; round < ROUNDS; ++round) {
+			table.changeSome(CHANGED_ROWS_PER_ROUND);
+			accumulate(totals, 0, measure(null, mirror, null, CHANGED_ROWS_PER_ROUND));
+			accumulate(totals, 3, measure(null, reconciling, null, CHANGED_ROWS_PER_ROUND));
+			accumulate(totals, 6, measure(null, null, apartments, ROWS));
+		}
+		assertEquals(ROWS, mirror.count());
+		report("delta sync", totals, 0);
+		report("delta sync with reconciled deletes", totals, 3);
+		report("all()", totals, 6);
+	}
+
+	//Refreshes with either the mirror or the table, and returns the time in microseconds, bytes and requests
+	private long[] measure(String name, MobileTableMirror<Apartment> mirror, MobileTable<Apartment> apartments,
+			int expected) throws Exception {
+		long bytesBefore = table.bytesSent.get();
+		int requestsBefore = table.requests.get();
+		long start = System.nanoTime();
+		if (mirror != null) {
+			int changed = mirror.sync();
+			if (name == null) {
+				assertEquals(expected, changed);
+			}
+		} else {
+			assertEquals(expected, apartments.all().size());
+		}
+		long[] result = new long[] {
+				(System.nanoTime() - start) / 1000, table.bytesSent.get() - bytesBefore, table.requests.get() - requestsBefore };
+		if (name != null) {
+			Log.i("Benchmark", String.format("%s: %dms, %dKB in %d request(s)", name, result[0] / 1000, result[1] / 1024, result[2]));
+		}
+		return result;
+	}
+
+	private static void accumulate(long[] totals, int offset, long[] result) {
+		for (int i = 0; i < result.length; ++i) {
+			totals[offset + i] += result[i];
+		}
+	}
+
+	private static void report(String name, long[] totals, int offset) {
+		Log.i("Benchmark", String.format("%s: mean %dus, %d bytes, %d request(s) per refresh of %d rows with %d changed",
+				name, totals[offset] / ROUNDS, totals[offset + 1] / ROUNDS, totals[offset + 2] / ROUNDS,
+				ROWS, CHANGED_ROWS_PER_ROUND));
+	}
+}
@@ -0,0 +1,349 @@
+package net.sashag.wams.android;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the OData $batch encoding and parsing of {@link MobileServiceBatch} against a stand-in
+ * server that unpacks the batch, answers each operation, and packs the answers into a multipart
+ * response the way the mobile service does.
+ */
+public class MobileServiceBatchTest extends AndroidTestCase {
+
+	@DataTable("items")
+	static class Item {
+		@Key int id;
+		@DataMember("text") String text;
+
+		Item() {
+		}
+
+		Item(int id, String text) {
+			this.id = id;
+			this.text = text;
+		}
+	}
+
+	private StandInServer server;
+	private BatchResponder responder;
+	private MobileService mobileService;
+	private MobileTable<Item> items;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		responder = new BatchResponder();
+		server = new StandInServer(responder);
+		mobileService = new MobileService(getContext(), server.getUrl(), "key");
+		items = mobileService.getTable(Item.class);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mobileService.shutdown();
+		server.close();
+		super.tearDown();
+	}
+
+	public void testRequestBodyShape() throws Exception {
+		mobileService.batch()
+			.insert(items, new Item(0, "new"), new Recorder<Item>())
+			.update(items, new Item(5, "changed"), new Recorder<Item>())
+			.delete(items, new Item(6, "gone"), new Recorder<Item>())
+			.select(items.where().equal("text", "new"), new ResultsRecorder<Item>())
+			.execute();
+
+		List<StandInServer.Request> requests = server.getRequests();
+		assertEquals(1, requests.size());
+		StandInServer.Request batch = requests.get(0);
+		assertEquals("POST", batch.method);
+		assertEquals("/$batch", batch.path);
+		assertTrue(batch.getHeader("Content-Type").startsWith("multipart/mixed; boundary=batch_"));
+		assertEquals("key", batch.getHeader("X-ZUMO-APPLICATION"));
+		assertTrue("The batch must end with a closing delimiter",
+				batch.body.endsWith("--" + getBoundary(batch.getHeader("Content-Type")) + "--\r\n"));
+
+		List<Part> parts = responder.lastParts;
+		assertEquals(4, parts.size());
+		String tableUrl = server.getUrl() + "/tables/items";
+		assertOperation(parts.get(0), true, "POST", tableUrl, "new");
+		assertOperation(parts.get(1), true, "PATCH", tableUrl + "/5", "changed");
+		assertOperation(parts.get(2), true, "DELETE", tableUrl + "/6", null);
+		assertOperation(parts.get(3), false, "GET", tableUrl + "?$filter=" + "((text%20eq%20'new'))", null);
+		//Content-IDs number the operations in changesets
+		assertEquals("1", parts.get(0).contentId);
+		assertEquals("2", parts.get(1).contentId);
+		assertEquals("3", parts.get(2).contentId);
+		assertNull(parts.get(3).contentId);
+	}
+
+	public void testUnwrapsChangesetsInResponse() throws Exception {
+		responder.wrapChangesets = true;
+		Item inserted = new Item(0, "new");
+		Recorder<Item> insert = new Recorder<Item>();
+		Recorder<Item> update = new Recorder<Item>();
+		ResultsRecorder<Item> select = new ResultsRecorder<Item>();
+		mobileService.batch()
+			.insert(items, inserted, insert)
+			.update(items, new Item(5, "changed"), update)
+			.select(items.where(), select)
+			.execute();
+
+		assertNull(insert.error);
+		assertEquals(100, inserted.id);
+		assertSame(inserted, insert.result);
+		assertNull(update.error);
+		assertNull(select.error);
+		assertEquals(2, select.results.size());
+		assertEquals("first", select.results.get(0).text);
+	}
+
+	public void testFailedOperationDoesNotFailTheOthers() throws Exception {
+		responder.missingIds.put("/tables/items/5", Boolean.TRUE);
+		Recorder<Item> first = new Recorder<Item>();
+		Recorder<Item> missing = new Recorder<Item>();
+		Recorder<Item> last = new Recorder<Item>();
+		mobileService.batch()
+			.update(items, new Item(4, "a"), first)
+			.update(items, new Item(5, "b"), missing)
+			.delete(items, new Item(6, "c"), last)
+			.execute();
+
+		assertNull(first.error);
+		assertNotNull(missing.error);
+		assertEquals(404, missing.error.getStatusCode());
+		assertNull(missing.result);
+		assertNull(last.error);
+		assertEquals(6, last.result.id);
+	}
+
+	public void testShortResponseFailsTheOperationsWithoutAResponse() throws Exception {
+		responder.maxParts = 1;
+		Recorder<Item> answered = new Recorder<Item>();
+		Recorder<Item> unanswered = new Recorder<Item>();
+		ResultsRecorder<Item> unansweredSelect = new ResultsRecorder<Item>();
+		mobileService.batch()
+			.update(items, new Item(4, "a"), answered)
+			.delete(items, new Item(5, "b"), unanswered)
+			.select(items.where(), unansweredSelect)
+			.execute();
+
+		assertNull(answered.error);
+		assertNotNull(unanswered.error);
+		assertTrue(unanswered.error.getMessage().contains("does not contain a response"));
+		assertNotNull(unansweredSelect.error);
+	}
+
+	public void testTruncatedResponseDoesNotUseTheIncompletePart() throws Exception {
+		responder.maxParts = 2;
+		responder.closeResponse = false;
+		Recorder<Item> answered = new Recorder<Item>();
+		Recorder<Item> truncated = new Recorder<Item>();
+		mobileService.batch()
+			.update(items, new Item(4, "a"), answered)
+			.delete(items, new Item(5, "b"), truncated)
+			.execute();
+
+		assertNull(answered.error);
+		assertNotNull("A part without a delimiter after it might be incomplete", truncated.error);
+		assertNull(truncated.result);
+	}
+
+	public void testResponseWithoutPartsFailsEveryOperation() throws Exception {
+		responder.multipart = false;
+		Recorder<Item> insert = new Recorder<Item>();
+		ResultsRecorder<Item> select = new ResultsRecorder<Item>();
+		mobileService.batch()
+			.insert(items, new Item(0, "a"), insert)
+			.select(items.where(), select)
+			.execute();
+
+		assertNotNull(insert.error);
+		assertTrue(insert.error.getMessage().contains("not a multipart response"));
+		assertSame(insert.error, select.error);
+	}
+
+	private static void assertOperation(Part part, boolean inChangeset, String method, String url, String text) throws Exception {
+		assertEquals(inChangeset, part.inChangeset);
+		assertEquals("application/http", part.contentType);
+		assertEquals(method, part.request.method);
+		assertEquals(url, part.request.path);
+		if (text == null) {
+			assertEquals("", part.request.body);
+		} else {
+			assertEquals("application/json", part.request.getHeader("Content-Type"));
+			assertEquals(text, new JSONObject(part.request.body).getString("text"));
+		}
+	}
+
+	private static String getBoundary(String contentType) {
+		for (String parameter : contentType.split(";")) {
+			parameter = parameter.trim();
+			if (parameter.startsWith("boundary=")) {
+				return parameter.substring("boundary=".length());
+			}
+		}
+		fail("No boundary in content type: " + contentType);
+		return null;
+	}
+
+	//An operation unpacked from a batch request
+	private static class Part {
+		boolean inChangeset;
+		String contentType;
+		String contentId;
+		StandInServer.Request request;
+	}
+
+	/**
+	 * Unpacks a $batch request, answers each of its operations, and packs the answers into a
+	 * multipart response. Operations on ids listed in missingIds fail with 404.
+	 */
+	private static class BatchResponder implements StandInServer.Handler {
+		volatile boolean wrapChangesets;
+		volatile boolean multipart = true;
+		volatile boolean closeResponse = true;
+		volatile int maxParts = Integer.MAX_VALUE;
+		final Map<String, Boolean> missingIds = new HashMap<String, Boolean>();
+		volatile List<Part> lastParts;
+
+		public StandInServer.Response handle(StandInServer.Request request) throws Exception {
+			List<Part> parts = new ArrayList<Part>();
+			for (String text : split(request.body, getBoundary(request.getHeader("Content-Type")))) {
+				parts.add(parsePart(text));
+			}
+			lastParts = parts;
+			if (!multipart) {
+				return StandInServer.Response.json(202, "");
+			}
+			String boundary = "batchresponse_stand-in";
+			StringBuilder body = new StringBuilder();
+			for (int i = 0; i < parts.size() && i < maxParts; ++i) {
+				Part part = parts.get(i);
+				body.append("--").append(boundary).append("\r\n");
+				String response = answer(part.request);
+				if (part.inChangeset && wrapChangesets) {
+					String changeset = "changesetresponse_" + i;
+					body.append("Content-Type: multipart/mixed; boundary=").append(changeset).append("\r\n\r\n");
+					body.append("--").append(changeset).append("\r\n").append(response);
+					body.append("--").append(changeset).append("--\r\n");
+				} else {
+					body.append(response);
+				}
+			}
+			if (closeResponse) {
+				body.append("--").append(boundary).append("--\r\n");
+			}
+			return new StandInServer.Response(202, body.toString())
+					.header("Content-Type", "multipart/mixed; boundary=" + boundary);
+		}
+
+		private String answer(StandInServer.Request operation) {
+			String path = operation.path.substring(operation.path.indexOf("/tables/"));
+			int status;
+			String content = "";
+			if (missingIds.containsKey(path)) {
+				status = 404;
+				content = "{\"error\":\"not found\"}";
+			} else if (operation.method.equals("POST")) {
+				status = 201;
+				content = "{\"id\":100,\"text\":\"new\"}";
+			} else if (operation.method.equals("PATCH")) {
+				status = 200;
+				content = operation.body;
+			} else if (operation.method.equals("DELETE")) {
+				status = 204;
+			} else {
+				status = 200;
+				content = "[{\"id\":1,\"text\":\"first\"},{\"id\":2,\"text\":\"second\"}]";
+			}
+			return "Content-Type: application/http\r\nContent-Transfer-Encoding: binary\r\n\r\n" +
+					"HTTP/1.1 " + status + " Stand-in\r\nContent-Type: application/json\r\n\r\n" + content + "\r\n";
+		}
+
+		private static Part parsePart(String text) {
+			Part part = new Part();
+			String[] headersAndBody = text.split("\r\n\r\n", 2);
+			Map<String, String> headers = parseHeaders(headersAndBody[0]);
+			String contentType = headers.get("content-type");
+			if (contentType.startsWith("multipart/mixed")) {
+				List<String> changeset = split(headersAndBody[1], getBoundary(contentType));
+				assertEquals("Each changeset must contain a single operation", 1, changeset.size());
+				part = parsePart(changeset.get(0));
+				part.inChangeset = true;
+				return part;
+			}
+			part.contentType = contentType;
+			part.contentId = headers.get("content-id");
+			String[] requestAndBody = headersAndBody[1].split("\r\n\r\n", 2);
+			String[] lines = requestAndBody[0].split("\r\n", 2);
+			String[] requestLine = lines[0].split(" ");
+			assertEquals("HTTP/1.1", requestLine[2]);
+			String body = requestAndBody.length > 1 ? requestAndBody[1] : "";
+			if (body.endsWith("\r\n")) {
+				body = body.substring(0, body.length() - 2);
+			}
+			part.request = new StandInServer.Request(requestLine[0], requestLine[1],
+					parseHeaders(lines.length > 1 ? lines[1] : ""), body);
+			return part;
+		}
+
+		private static Map<String, String> parseHeaders(String text) {
+			Map<String, String> headers = new HashMap<String, String>();
+			for (String line : text.split("\r\n")) {
+				int colon = line.indexOf(':');
+				if (colon != -1) {
+					headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+				}
+			}
+			return headers;
+		}
+
+		//Splits a multipart body into its parts, without the line break before each delimiter
+		private static List<String> split(String body, String boundary) {
+			List<String> parts = new ArrayList<String>();
+			String[] sections = body.split("--" + boundary.replace("$", "\\$"), -1);
+			for (int i = 1; i < sections.length; ++i) {
+				String section = sections[i];
+				if (section.startsWith("--")) {
+					break;
+				}
+				section = section.substring(2); //The line break after the delimiter
+				parts.add(section.endsWith("\r\n") ? section.substring(0, section.length() - 2) : section);
+			}
+			return parts;
+		}
+	}
+
+	static class Recorder<E> implements MobileServiceCallback<E> {
+		E result;
+		MobileException error;
+
+		public void completedSuccessfully(E item) {
+			result = item;
+		}
+
+		public void errorOccurred(MobileException exception) {
+			error = exception;
+		}
+	}
+
+	static class ResultsRecorder<E> implements MobileServiceCallbackWithResults<E> {
+		List<E> results;
+		MobileException error;
+
+		public void completedSuccessfully(List<E> results) {
+			this.results = results;
+		}
+
+		public void errorOccurred(MobileException exception) {
+			error = exception;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package net.sashag.wams.android;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests that a {@link MobileServiceFuture} completes, and so does the future of its continuation,
+ * when its task or its continuation throws an unchecked exception, and that interim results
+ * do not complete it.
+ */
+public class MobileServiceFutureTest extends AndroidTestCase {
+
+	public void testTaskThatThrowsFailsTheFuture() {
+		MobileServiceFuture<String> future = createFuture();
+		final IllegalStateException thrown = new IllegalStateException("bug in the task");
+		future.run(new MobileServiceFuture.Task<String>() {
+			public String run() {
+				throw thrown;
+			}
+		});
+
+		assertTrue(future.isDone());
+		assertSame(thrown, getError(future).getCause());
+	}
+
+	public void testContinuationThatThrowsFailsTheNextFuture() {
+		MobileServiceFuture<String> future = createFuture();
+		final NullPointerException thrown = new NullPointerException();
+		MobileServiceFuture<Integer> next = future.then(new MobileServiceContinuation<String, Integer>() {
+			public MobileServiceFuture<Integer> apply(String result) {
+				throw thrown;
+			}
+		});
+		future.run(new MobileServiceFuture.Task<String>() {
+			public String run() {
+				return "done";
+			}
+		});
+
+		assertTrue(next.isDone());
+		assertSame(thrown, getError(next).getCause());
+	}
+
+	public void testFailedTaskDoesNotInvokeTheContinuation() {
+		MobileServiceFuture<String> future = createFuture();
+		final boolean[] applied = new boolean[1];
+		MobileServiceFuture<Integer> next = future.then(new MobileServiceContinuation<String, Integer>() {
+			public MobileServiceFuture<Integer> apply(String result) {
+				applied[0] = true;
+				return null;
+			}
+		});
+		future.run(new MobileServiceFuture.Task<String>() {
+			public String run() {
+				throw new IllegalArgumentException();
+			}
+		});
+
+		assertFalse(applied[0]);
+		assertTrue(getError(next).getCause() instanceof IllegalArgumentException);
+	}
+
+	public void testInterimResultsDoNotCompleteTheFuture() throws Exception {
+		MobileServiceFuture<String> future = createFuture();
+		final StringBuilder applied = new StringBuilder();
+		MobileServiceFuture<Integer> next = future.then(new MobileServiceContinuation<String, Integer>() {
+			public MobileServiceFuture<Integer> apply(String result) {
+				applied.append(result).append(';');
+				return null;
+			}
+		});
+		future.deliverInterim("stale");
+
+		assertFalse(future.isDone());
+		assertFalse(next.isDone());
+		assertEquals("", applied.toString());
+
+		future.succeeded("fresh");
+		assertEquals("fresh", future.get());
+		assertTrue(next.isDone());
+		assertEquals("fresh;", applied.toString());
+	}
+
+	private static MobileServiceFuture<String> createFuture() {
+		return new MobileServiceFuture<String>(null, null, new CallbackCoalescer());
+	}
+
+	private static MobileException getError(MobileServiceFuture<?> future) {
+		try {
+			future.get();
+		} catch (MobileException e) {
+			return e;
+		}
+		fail("The future completed successfully");
+		return null;
+	}
+}
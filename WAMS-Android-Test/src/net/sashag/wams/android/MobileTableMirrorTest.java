@@ -0,0 +1,81 @@
+package net.sashag.wams.android;
+
+import net.sashag.wams.android.MirrorSyncBenchmark.Apartment;
+import net.sashag.wams.android.MirrorSyncBenchmark.ApartmentTable;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests that a mirror that syncs by watermark retrieves every changed item, even when items
+ * change while it is paging through the changes, and that mirrors of different queries do not
+ * share a replica.
+ */
+public class MobileTableMirrorTest extends AndroidTestCase {
+
+	private static final int ROWS = 100;
+	private static final int PAGE_SIZE = 10;
+
+	//Changes an item right after serving a request, as another client would while a sync is in progress
+	private static class ChangingTable implements StandInServer.Handler {
+		final ApartmentTable table;
+		volatile int changeAfterRequest = -1;
+		volatile int changedId;
+
+		ChangingTable(ApartmentTable table) {
+			this.table = table;
+		}
+
+		public StandInServer.Response handle(StandInServer.Request request) throws Exception {
+			StandInServer.Response response = table.handle(request);
+			if (table.requests.get() == changeAfterRequest) {
+				table.change(changedId);
+			}
+			return response;
+		}
+	}
+
+	private ChangingTable handler;
+	private StandInServer server;
+	private MobileService mobileService;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		handler = new ChangingTable(new ApartmentTable(ROWS));
+		server = new StandInServer(handler);
+		mobileService = new MobileService(getContext(), server.getUrl(), "key");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mobileService.shutdown();
+		server.close();
+		super.tearDown();
+	}
+
+	public void testItemChangedDuringSyncDoesNotHideOtherChanges() throws Exception {
+		MobileTableMirror<Apartment> mirror = mobileService.getTable(Apartment.class).mirror()
+				.setWatermarkColumn("version").setPageSize(PAGE_SIZE);
+		mirror.clear();
+		assertEquals(ROWS, mirror.sync());
+
+		for (int id = 1; id <= 3 * PAGE_SIZE; ++id) {
+			handler.table.change(id);
+		}
+		//The first item of the first page moves to the end after that page is read
+		handler.changedId = 1;
+		handler.changeAfterRequest = handler.table.requests.get() + 1;
+		mirror.sync();
+
+		for (int id = 1; id <= ROWS; ++id) {
+			assertEquals("Item " + id, handler.table.getRow(id).getInt("version"), mirror.get(id).version);
+		}
+	}
+
+	public void testQueriesWithEqualHashCodesHaveTheirOwnReplicas() {
+		String first = "/tables/apartments?$filter=(address%20eq%20'Aa')";
+		String second = "/tables/apartments?$filter=(address%20eq%20'BB')";
+		assertEquals(first.hashCode(), second.hashCode());
+		assertFalse(MobileTableMirror.getRowsTableName(first).equals(MobileTableMirror.getRowsTableName(second)));
+	}
+}
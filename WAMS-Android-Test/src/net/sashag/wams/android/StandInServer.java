@@ -0,0 +1,226 @@
+package net.sashag.wams.android;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface that stands in for a mobile service in
+ * tests and benchmarks. It keeps connections alive, records every request, and answers each
+ * request with the response returned by its {@link Handler}.
+ */
+class StandInServer {
+
+	interface Handler {
+		Response handle(Request request) throws Exception;
+	}
+
+	static class Request {
+		final String method;
+		final String path;
+		final String body;
+		private final Map<String, String> headers;
+
+		Request(String method, String path, Map<String, String> headers, String body) {
+			this.method = method;
+			this.path = path;
+			this.headers = headers;
+			this.body = body;
+		}
+
+		/**
+		 * Retrieves a request header by its case-insensitive name, or <b>null</b> if it was not sent.
+		 */
+		String getHeader(String name) {
+			return headers.get(name.toLowerCase());
+		}
+	}
+
+	static class Response {
+		final int statusCode;
+		final String body;
+		final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+		Response(int statusCode, String body) {
+			this.statusCode = statusCode;
+			this.body = body;
+		}
+
+		static Response json(int statusCode, String body) {
+			return new Response(statusCode, body).header("Content-Type", "application/json");
+		}
+
+		Response header(String name, String value) {
+			headers.put(name, value);
+			return this;
+		}
+	}
+
+	private final ServerSocket serverSocket;
+	private final Handler handler;
+	private final List<Request> requests = new ArrayList<Request>();
+	private final List<Socket> sockets = new ArrayList<Socket>();
+	private final AtomicInteger connectionCount = new AtomicInteger();
+
+	StandInServer(Handler handler) throws IOException {
+		this.handler = handler;
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				acceptConnections();
+			}
+		}, "StandInServer-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	String getUrl() {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort();
+	}
+
+	synchronized List<Request> getRequests() {
+		return new ArrayList<Request>(requests);
+	}
+
+	/**
+	 * Retrieves the number of TCP connections the server has accepted.
+	 */
+	int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	void close() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			//Nothing to do
+		}
+		synchronized (this) {
+			for (Socket socket : sockets) {
+				closeQuietly(socket);
+			}
+		}
+	}
+
+	private void acceptConnections() {
+		while (true) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				return; //The server was closed
+			}
+			connectionCount.incrementAndGet();
+			synchronized (this) {
+				sockets.add(socket);
+			}
+			Thread connection = new Thread(new Runnable() {
+				public void run() {
+					try {
+						serveConnection(socket);
+					} catch (IOException e) {
+						//The client closed or aborted the connection
+					} finally {
+						closeQuietly(socket);
+					}
+				}
+			}, "StandInServer-connection");
+			connection.setDaemon(true);
+			connection.start();
+		}
+	}
+
+	private void serveConnection(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		OutputStream out = socket.getOutputStream();
+		while (true) {
+			String requestLine = readLine(in);
+			if (requestLine == null || requestLine.length() == 0) {
+				return;
+			}
+			String[] parts = requestLine.split(" ");
+			Map<String, String> headers = new HashMap<String, String>();
+			String line;
+			while ((line = readLine(in)) != null && line.length() > 0) {
+				int colon = line.indexOf(':');
+				headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+			String contentLength = headers.get("content-length");
+			byte[] body = new byte[contentLength != null ? Integer.parseInt(contentLength) : 0];
+			for (int offset = 0; offset < body.length; ) {
+				int count = in.read(body, offset, body.length - offset);
+				if (count == -1) {
+					return;
+				}
+				offset += count;
+			}
+			Request request = new Request(parts[0], parts[1], headers, new String(body, "UTF-8"));
+			synchronized (this) {
+				requests.add(request);
+			}
+			Response response;
+			try {
+				response = handler.handle(request);
+			} catch (Exception e) {
+				response = Response.json(500, "{\"error\":\"" + e + "\"}");
+			}
+			writeResponse(out, response);
+			if ("close".equalsIgnoreCase(headers.get("connection"))) {
+				return;
+			}
+		}
+	}
+
+	private static void writeResponse(OutputStream out, Response response) throws IOException {
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.1 ").append(response.statusCode).append(" Stand-in\r\n");
+		for (Map.Entry<String, String> header : response.headers.entrySet()) {
+			head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+		byte[] body = response.body != null ? response.body.getBytes("UTF-8") : new byte[0];
+		//Responses to 204 and 304 do not have a body
+		if (response.statusCode != 204 && response.statusCode != 304) {
+			head.append("Content-Length: ").append(body.length).append("\r\n");
+		}
+		head.append("\r\n");
+		//A single write, because a separate write for the body waits for the client's delayed ACK
+		ByteArrayOutputStream message = new ByteArrayOutputStream(head.length() + body.length);
+		message.write(head.toString().getBytes("ISO-8859-1"));
+		message.write(body);
+		message.writeTo(out);
+		out.flush();
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n') {
+				String text = line.toString("ISO-8859-1");
+				return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+			}
+			line.write(b);
+		}
+		return line.size() > 0 ? line.toString("ISO-8859-1") : null;
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			//Nothing to do
+		}
+	}
+}
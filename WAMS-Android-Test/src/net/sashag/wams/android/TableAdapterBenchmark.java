@@ -0,0 +1,122 @@
+package net.sashag.wams.android;
+
+import org.json.JSONObject;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Compares the adapters generated by the WAMS-Android-Processor project with the reflective
+ * serializer, in rows per second and allocations per row. The two classes have the same columns;
+ * the fields of {@link ReflectiveApartment} are private, so the processor skips it.
+ * <p>
+ * Run on a device with the processor on the annotation processor path (see the README), and
+ * read the results from the log with the "Benchmark" tag.
+ */
+public class TableAdapterBenchmark extends AndroidTestCase {
+
+	private static final int ROWS = 5000;
+	private static final int ROUNDS = 5;
+
+	@DataTable("apartments")
+	static class GeneratedApartment {
+		@Key int id;
+		@DataMember("address") String address;
+		@DataMember("bedrooms") int bedrooms;
+		@DataMember("price") double price;
+		@DataMember("listedAt") long listedAt;
+		@DataMember("published") boolean published;
+	}
+
+	@DataTable("apartments")
+	static class ReflectiveApartment {
+		@Key private int id;
+		@DataMember("address") private String address;
+		@DataMember("bedrooms") private int bedrooms;
+		@DataMember("price") private double price;
+		@DataMember("listedAt") private long listedAt;
+		@DataMember("published") private boolean published;
+	}
+
+	public void testDeserialization() throws Exception {
+		assertTrue("The processor is not on the annotation processor path",
+				TableAdapterTest.hasAdapter(GeneratedApartment.class));
+		assertFalse(TableAdapterTest.hasAdapter(ReflectiveApartment.class));
+		JSONObject[] rows = createRows();
+		measureReads("generated", TableBinding.forClass(GeneratedApartment.class), rows);
+		measureReads("reflective", TableBinding.forClass(ReflectiveApartment.class), rows);
+	}
+
+	public void testSerialization() throws Exception {
+		JSONObject[] rows = createRows();
+		TableBinding<GeneratedApartment> generated = TableBinding.forClass(GeneratedApartment.class);
+		TableBinding<ReflectiveApartment> reflective = TableBinding.forClass(ReflectiveApartment.class);
+		Object[] generatedItems = new Object[ROWS];
+		Object[] reflectiveItems = new Object[ROWS];
+		for (int i = 0; i < ROWS; ++i) {
+			generatedItems[i] = generated.toObject(rows[i]);
+			reflectiveItems[i] = reflective.toObject(rows[i]);
+		}
+		measureWrites("generated", generated, generatedItems);
+		measureWrites("reflective", reflective, reflectiveItems);
+	}
+
+	private static JSONObject[] createRows() throws Exception {
+		JSONObject[] rows = new JSONObject[ROWS];
+		for (int i = 0; i < ROWS; ++i) {
+			JSONObject row = new JSONObject();
+			row.put("id", i + 1);
+			row.put("address", i + " Microsoft Way, Redmond WA");
+			row.put("bedrooms", i % 5);
+			row.put("price", 1000.5 + i);
+			row.put("listedAt", 1360000000000L + i);
+			row.put("published", i % 2);
+			//Parsed from text, so that values have the types they have in server responses
+			rows[i] = new JSONObject(row.toString());
+		}
+		return rows;
+	}
+
+	private static void measureReads(String name, TableBinding<?> binding, JSONObject[] rows) throws Exception {
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; ++round) {
+			long start = System.nanoTime();
+			for (JSONObject row : rows) {
+				binding.toObject(row);
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		//Counting allocations slows the runtime down, so it is done in a separate pass
+		Debug.resetThreadAllocCount();
+		Debug.startAllocCounting();
+		for (JSONObject row : rows) {
+			binding.toObject(row);
+		}
+		Debug.stopAllocCounting();
+		report("read", name, best, Debug.getThreadAllocCount());
+	}
+
+	private static void measureWrites(String name, TableBinding<?> binding, Object[] items) throws Exception {
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; ++round) {
+			long start = System.nanoTime();
+			for (Object item : items) {
+				binding.toJsonObject(item, true);
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		Debug.resetThreadAllocCount();
+		Debug.startAllocCounting();
+		for (Object item : items) {
+			binding.toJsonObject(item, true);
+		}
+		Debug.stopAllocCounting();
+		report("write", name, best, Debug.getThreadAllocCount());
+	}
+
+	private static void report(String operation, String name, long nanos, int allocations) {
+		Log.i("Benchmark", String.format("%s %s: %d rows/s, %.1f allocations/row", operation, name,
+				ROWS * 1000000000L / Math.max(1, nanos), (double) allocations / ROWS));
+	}
+}
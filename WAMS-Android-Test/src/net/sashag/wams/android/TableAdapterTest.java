@@ -0,0 +1,76 @@
+package net.sashag.wams.android;
+
+import org.json.JSONObject;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the adapters generated by the WAMS-Android-Processor project. The processor must be on
+ * the annotation processor path of this project; see the README.
+ */
+public class TableAdapterTest extends AndroidTestCase {
+
+	@DataTable("conversions")
+	static class Conversions {
+		@Key int id;
+		@DataMember("f") float f;
+		@DataMember("s") short s;
+		@DataMember("b") byte b;
+		@DataMember("c") char c;
+		@DataMember("boxedF") Float boxedF;
+		@DataMember("boxedS") Short boxedS;
+		@DataMember("boxedB") Byte boxedB;
+		@DataMember("boxedC") Character boxedC;
+	}
+
+	@DataTable("unsupported")
+	static class Unsupported {
+		@Key int id;
+		@DataMember("created") java.util.Date created;
+	}
+
+	public void testConvertsNarrowPrimitivesAndTheirBoxes() throws Exception {
+		TableBinding<Conversions> binding = TableBinding.forClass(Conversions.class);
+		assertTrue("The processor is not on the annotation processor path", hasAdapter(Conversions.class));
+
+		Conversions item = new Conversions();
+		item.id = 7;
+		item.f = 0.1f;
+		item.s = -300;
+		item.b = 12;
+		item.c = 'x';
+		item.boxedF = Float.valueOf(2.5f);
+		item.boxedS = Short.valueOf((short) 1000);
+		item.boxedB = Byte.valueOf((byte) -1);
+		item.boxedC = Character.valueOf('y');
+		JSONObject json = binding.toJsonObject(item, true);
+		assertEquals("x", json.get("c").toString());
+		assertEquals("0.1", json.get("f").toString());
+
+		//Numbers arrive from the server as Integer and Double, and characters as strings
+		Conversions parsed = binding.toObject(new JSONObject(json.toString()));
+		assertEquals(7, parsed.id);
+		assertEquals(0.1f, parsed.f);
+		assertEquals(-300, parsed.s);
+		assertEquals(12, parsed.b);
+		assertEquals('x', parsed.c);
+		assertEquals(Float.valueOf(2.5f), parsed.boxedF);
+		assertEquals(Short.valueOf((short) 1000), parsed.boxedS);
+		assertEquals(Byte.valueOf((byte) -1), parsed.boxedB);
+		assertEquals(Character.valueOf('y'), parsed.boxedC);
+	}
+
+	public void testSkipsClassesWithUnsupportedColumnTypes() {
+		assertTrue("The processor is not on the annotation processor path", hasAdapter(Conversions.class));
+		assertFalse(hasAdapter(Unsupported.class));
+	}
+
+	static boolean hasAdapter(Class<?> clazz) {
+		try {
+			Class.forName(clazz.getName() + TableBinding.GENERATED_ADAPTER_SUFFIX, false, clazz.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package net.sashag.wams.android;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Compares the latency of requests sent through a single {@link HttpTransport}, which keeps
+ * connections alive and reuses them, with requests that each set up a new connection: through
+ * a transport of their own, and through an {@link HttpURLConnection} that is disconnected after
+ * the response is read, as every table operation did before the transport existed. The requests
+ * go to a {@link StandInServer}
+ * on the loopback interface, so the difference is the cost of setting up a connection on the
+ * device itself; against a real mobile service, it also includes the network round trips of
+ * the TCP and TLS handshakes.
+ * <p>
+ * Read the results from the log with the "Benchmark" tag.
+ */
+public class TransportBenchmark extends AndroidTestCase {
+
+	private static final int REQUESTS = 200;
+	private static final int WARMUP_REQUESTS = 20;
+
+	private StandInServer server;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new StandInServer(new StandInServer.Handler() {
+			public StandInServer.Response handle(StandInServer.Request request) {
+				return StandInServer.Response.json(200, "[{\"id\":1,\"address\":\"One Microsoft Way\"}]");
+			}
+		});
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+		super.tearDown();
+	}
+
+	public void testPooledVersusNewConnections() throws Exception {
+		String url = server.getUrl() + "/tables/apartments";
+
+		HttpTransport pooled = createTransport();
+		for (int i = 0; i < WARMUP_REQUESTS; ++i) {
+			send(pooled, url);
+		}
+		int connectionsBefore = server.getConnectionCount();
+		long[] pooledLatencies = new long[REQUESTS];
+		for (int i = 0; i < REQUESTS; ++i) {
+			pooledLatencies[i] = send(pooled, url);
+		}
+		report("pooled", pooledLatencies, server.getConnectionCount() - connectionsBefore);
+		pooled.shutdown();
+
+		connectionsBefore = server.getConnectionCount();
+		long[] unpooledLatencies = new long[REQUESTS];
+		for (int i = 0; i < REQUESTS; ++i) {
+			//A transport of its own gives every request a new connection
+			HttpTransport transport = createTransport();
+			unpooledLatencies[i] = send(transport, url);
+			transport.shutdown();
+		}
+		report("new connection per request", unpooledLatencies, server.getConnectionCount() - connectionsBefore);
+
+		for (int i = 0; i < WARMUP_REQUESTS; ++i) {
+			send(url);
+		}
+		connectionsBefore = server.getConnectionCount();
+		long[] urlConnectionLatencies = new long[REQUESTS];
+		for (int i = 0; i < REQUESTS; ++i) {
+			urlConnectionLatencies[i] = send(url);
+		}
+		report("HttpURLConnection with disconnect", urlConnectionLatencies, server.getConnectionCount() - connectionsBefore);
+	}
+
+	private static HttpTransport createTransport() {
+		return new HttpTransport(new HttpRequestDecorator(), new MetricsRegistry(), 4, 30000);
+	}
+
+	//Returns the latency of a request, including reading its response, in microseconds
+	private static long send(HttpTransport transport, String url) throws Exception {
+		long start = System.nanoTime();
+		HttpTransport.Response response = transport.execute(HttpTransport.GET, url, null);
+		try {
+			assertEquals(200, response.getStatusCode());
+			response.readString();
+		} finally {
+			response.close();
+		}
+		return (System.nanoTime() - start) / 1000;
+	}
+
+	//Sends a request the way table operations did before the transport existed, and returns its latency in microseconds
+	private static long send(String url) throws Exception {
+		long start = System.nanoTime();
+		HttpURLConnection urlConnection = (HttpURLConnection) new URL(url).openConnection();
+		try {
+			urlConnection.addRequestProperty("ACCEPT", "application/json");
+			assertEquals(200, urlConnection.getResponseCode());
+			BufferedReader reader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()));
+			StringBuilder result = new StringBuilder();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				result.append(line);
+			}
+		} finally {
+			urlConnection.disconnect();
+		}
+		return (System.nanoTime() - start) / 1000;
+	}
+
+	private static void report(String name, long[] latencies, int connections) {
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		long total = 0;
+		for (long latency : sorted) {
+			total += latency;
+		}
+		Log.i("Benchmark", String.format("%s: mean %dus, p50 %dus, p90 %dus, p99 %dus, %d connection(s) for %d requests",
+				name, total / sorted.length, sorted[sorted.length / 2], sorted[sorted.length * 9 / 10],
+				sorted[sorted.length * 99 / 100], connections, sorted.length));
+	}
+}
@@ -0,0 +1,127 @@
+package net.sashag.wams.android;
+
+import java.util.List;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests that the replicas of mirrors and the changes pending in the write-behind journal belong
+ * to the user who was logged in, so that another user neither reads them nor sends them with
+ * their own authentication token.
+ */
+public class UserScopedStorageTest extends AndroidTestCase {
+
+	private static final String TOKEN = "token-of-first-user";
+
+	@DataTable("items")
+	static class Item {
+		@Key int id;
+		@DataMember("text") String text;
+	}
+
+	//Shows items to the first user only, and fails their writes until told otherwise
+	private static class Server implements StandInServer.Handler {
+		volatile boolean failWrites = true;
+
+		public StandInServer.Response handle(StandInServer.Request request) {
+			if (request.method.equals("POST")) {
+				return failWrites ? StandInServer.Response.json(503, "{}") : StandInServer.Response.json(201, "{\"id\":7}");
+			}
+			boolean firstUser = TOKEN.equals(request.getHeader("X-ZUMO-AUTH"));
+			return StandInServer.Response.json(200, firstUser ? "[{\"id\":1,\"text\":\"a\"},{\"id\":2,\"text\":\"b\"}]" : "[]");
+		}
+	}
+
+	private Server handler;
+	private StandInServer server;
+	private MobileService mobileService;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		handler = new Server();
+		server = new StandInServer(handler);
+		//Logging in shows a dialog, so log in the way a previous run of the application would have
+		getContext().getSharedPreferences("net.sashag.wams.android.prefs", Context.MODE_PRIVATE).edit()
+			.putString("auth_token", TOKEN)
+			.putString("user_id", "Facebook:1234")
+			.commit();
+		mobileService = new MobileService(getContext(), server.getUrl(), "key");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mobileService.logout();
+		mobileService.shutdown();
+		server.close();
+		super.tearDown();
+	}
+
+	public void testMirrorsBelongToTheUser() throws Exception {
+		MobileTableMirror<Item> mirror = mobileService.getTable(Item.class).mirror();
+		assertEquals(2, mirror.sync());
+
+		mobileService.logout();
+		try {
+			mirror.count();
+			fail("The mirror of a user who logged out must not be readable");
+		} catch (IllegalStateException e) {
+			//Expected
+		}
+		MobileTableMirror<Item> anonymous = mobileService.getTable(Item.class).mirror();
+		assertEquals(0, anonymous.count());
+		anonymous.sync();
+		assertEquals(0, anonymous.count());
+	}
+
+	public void testPendingWritesAreSentWithTheTokenOfTheirUser() throws Exception {
+		MobileTable<Item> items = mobileService.getTable(Item.class);
+		items.setWriteBehindEnabled(true);
+		Item item = new Item();
+		item.text = "pending";
+		items.insertAsync(item, null);
+		waitForPosts(1);
+		assertEquals(TOKEN, getPosts().get(0).getHeader("X-ZUMO-AUTH"));
+		assertEquals(1, mobileService.getPendingWriteCount());
+
+		handler.failWrites = false;
+		mobileService.logout();
+		assertEquals(0, mobileService.getPendingWriteCount());
+		mobileService.flushPendingWrites();
+		Thread.sleep(200);
+		assertEquals("The change must not be sent after the user logged out", 1, getPosts().size());
+
+		//The user logs in again
+		mobileService.shutdown();
+		getContext().getSharedPreferences("net.sashag.wams.android.prefs", Context.MODE_PRIVATE).edit()
+			.putString("auth_token", TOKEN)
+			.putString("user_id", "Facebook:1234")
+			.commit();
+		mobileService = new MobileService(getContext(), server.getUrl(), "key");
+		mobileService.getTable(Item.class).setWriteBehindEnabled(true);
+		waitForPosts(2);
+		assertEquals(TOKEN, getPosts().get(1).getHeader("X-ZUMO-AUTH"));
+		for (int i = 0; i < 100 && mobileService.getPendingWriteCount() > 0; ++i) {
+			Thread.sleep(20);
+		}
+		assertEquals(0, mobileService.getPendingWriteCount());
+	}
+
+	private List<StandInServer.Request> getPosts() {
+		List<StandInServer.Request> posts = server.getRequests();
+		for (int i = posts.size() - 1; i >= 0; --i) {
+			if (!posts.get(i).method.equals("POST")) {
+				posts.remove(i);
+			}
+		}
+		return posts;
+	}
+
+	private void waitForPosts(int count) throws InterruptedException {
+		for (int i = 0; i < 250 && getPosts().size() < count; ++i) {
+			Thread.sleep(20);
+		}
+		assertEquals(count, getPosts().size());
+	}
+}
@@ -0,0 +1,63 @@
+package net.sashag.wams.android;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests how the write-behind journal treats the responses of the mobile service to the changes
+ * it sends.
+ */
+public class WriteBehindJournalTest extends AndroidTestCase {
+
+	@DataTable("items")
+	static class Item {
+		@Key int id;
+		@DataMember("text") String text;
+	}
+
+	//A table that no longer has any items
+	private static class EmptyTable implements StandInServer.Handler {
+		public StandInServer.Response handle(StandInServer.Request request) {
+			return StandInServer.Response.json(404, "{\"error\":\"not found\"}");
+		}
+	}
+
+	private StandInServer server;
+	private MobileService mobileService;
+	private MobileTable<Item> items;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new StandInServer(new EmptyTable());
+		mobileService = new MobileService(getContext(), server.getUrl(), "key");
+		items = mobileService.getTable(Item.class);
+		items.setWriteBehindEnabled(true);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mobileService.shutdown();
+		server.close();
+		super.tearDown();
+	}
+
+	public void testDeleteOfMissingItemSucceeds() throws Exception {
+		Item item = new Item();
+		item.id = 42;
+		assertSame(item, items.deleteAsync(item, null).setDeadline(5000).get());
+		assertEquals(0, mobileService.getPendingWriteCount());
+	}
+
+	public void testUpdateOfMissingItemFails() throws Exception {
+		Item item = new Item();
+		item.id = 42;
+		item.text = "changed";
+		try {
+			items.updateAsync(item, null).setDeadline(5000).get();
+			fail("The update of a missing item must fail");
+		} catch (MobileException e) {
+			assertEquals(404, e.getStatusCode());
+		}
+		assertEquals(0, mobileService.getPendingWriteCount());
+	}
+}
@@ -0,0 +1,91 @@
+package net.sashag.wams.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Applies a single-item operation to many items with a bounded number of them in flight.
+ * The calling thread processes items itself, and up to <i>maxInFlight - 1</i> helpers on the
+ * service's executor take items from the same shared position. Because the caller never waits
+ * for a helper to start, a bulk operation makes progress even when it is started from one of
+ * the executor's own worker threads, or when the executor's queue is full.
+ * <p>
+ * The helpers run with the cancellation of the caller, so cancelling the asynchronous operation
+ * that started the bulk operation aborts the requests of the helpers too.
+ */
+final class BulkOperation {
+
+	interface ItemOperation<T> {
+		void apply(T item) throws MobileException;
+	}
+
+	private BulkOperation() { }
+
+	/**
+	 * Applies the operation to all the items and waits for it to complete for each one.
+	 *
+	 * @param successStatusCode	the HTTP status code reported for items the operation succeeded for
+	 * @throws MobileException	thrown if the calling thread was interrupted while waiting for
+	 * 							the helpers to complete their items
+	 */
+	static <T> MobileServiceBulkResult<T> run(final List<T> items, final ItemOperation<T> operation,
+			final int successStatusCode, MobileServiceExecutor executor, int maxInFlight) throws MobileException {
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("Maximum number of requests in flight must be positive");
+		}
+		final int count = items.size();
+		final AtomicInteger nextIndex = new AtomicInteger();
+		final AtomicReferenceArray<MobileServiceBulkResult.Entry<T>> entries =
+				new AtomicReferenceArray<MobileServiceBulkResult.Entry<T>>(count);
+		final CountDownLatch completed = new CountDownLatch(count);
+		final Cancellation cancellation = Cancellation.current();
+		Runnable drain = new Runnable() {
+			public void run() {
+				Cancellation previous = cancellation != null ? cancellation.enter() : null;
+				try {
+					int index;
+					while ((index = nextIndex.getAndIncrement()) < count) {
+						entries.set(index, applyTo(items.get(index), operation, successStatusCode));
+						completed.countDown();
+					}
+				} finally {
+					if (cancellation != null) {
+						Cancellation.exit(previous);
+					}
+				}
+			}
+		};
+		int helpers = Math.min(maxInFlight, count) - 1;
+		for (int i = 0; i < helpers; ++i) {
+			if (!executor.tryExecute(drain, MobileServiceExecutor.Priority.BACKGROUND)) {
+				break;
+			}
+		}
+		drain.run();
+		try {
+			completed.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MobileException("Interrupted while waiting for the bulk operation to complete", e);
+		}
+		List<MobileServiceBulkResult.Entry<T>> results = new ArrayList<MobileServiceBulkResult.Entry<T>>(count);
+		for (int i = 0; i < count; ++i) {
+			results.add(entries.get(i));
+		}
+		return new MobileServiceBulkResult<T>(results);
+	}
+
+	private static <T> MobileServiceBulkResult.Entry<T> applyTo(T item, ItemOperation<T> operation, int successStatusCode) {
+		try {
+			operation.apply(item);
+			return new MobileServiceBulkResult.Entry<T>(item, successStatusCode, null);
+		} catch (MobileException e) {
+			return new MobileServiceBulkResult.Entry<T>(item, e.getStatusCode(), e);
+		} catch (RuntimeException e) {
+			return new MobileServiceBulkResult.Entry<T>(item, -1, new MobileException("Unexpected error in bulk operation", e));
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package net.sashag.wams.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+
+import android.os.Handler;
+
+/**
+ * Posts the callbacks of the asynchronous operations of a single {@link MobileService} to their
+ * handlers. With coalescing enabled, callbacks that complete within a frame of one another are
+ * posted to their handler as a single message, which invokes them in the order in which they
+ * completed. Hundreds of operations completing together, such as the inserts of a bulk upload,
+ * then cost the UI thread a message or two per frame, instead of one message each.
+ * <p>
+ * The first callback after a quiet period is posted right away, so coalescing adds no latency
+ * to a lone operation; callbacks that complete less than a frame after the previous message ran
+ * wait for the next frame. The time each message takes is measured in both modes.
+ */
+class CallbackCoalescer {
+
+	static final long FRAME_MS = 16;
+
+	//The pending callbacks of a single handler, and the message that invokes them
+	private class Batch implements Runnable {
+		private List<Runnable> callbacks = new ArrayList<Runnable>();
+		private boolean scheduled;
+		private long lastRunTime;
+
+		public void run() {
+			List<Runnable> batch;
+			synchronized (CallbackCoalescer.this) {
+				batch = callbacks;
+				callbacks = new ArrayList<Runnable>();
+				scheduled = false;
+				lastRunTime = System.currentTimeMillis();
+			}
+			long start = System.nanoTime();
+			for (Runnable callback : batch) {
+				callback.run();
+			}
+			MobileServiceDeliveryListener listener = deliveryListener;
+			if (listener != null) {
+				listener.callbacksDelivered(batch.size());
+			}
+			record(batch.size(), System.nanoTime() - start);
+		}
+	}
+
+	//Handlers are weak keys, so that the handlers of destroyed activities are not kept alive
+	private final WeakHashMap<Handler, Batch> batches = new WeakHashMap<Handler, Batch>();
+	private volatile boolean enabled;
+	private volatile MobileServiceDeliveryListener deliveryListener;
+	private long messageCount;
+	private long callbackCount;
+	private int largestBatch;
+	private long totalTimeNanos;
+	private long maxTimeNanos;
+
+	void setEnabled(boolean enabled, MobileServiceDeliveryListener deliveryListener) {
+		this.deliveryListener = deliveryListener;
+		this.enabled = enabled;
+	}
+
+	void post(Handler handler, final Runnable callback) {
+		if (!enabled) {
+			handler.post(new Runnable() {
+				public void run() {
+					long start = System.nanoTime();
+					callback.run();
+					record(1, System.nanoTime() - start);
+				}
+			});
+			return;
+		}
+		Batch batch;
+		long delay;
+		synchronized (this) {
+			batch = batches.get(handler);
+			if (batch == null) {
+				batch = new Batch();
+				batches.put(handler, batch);
+			}
+			batch.callbacks.add(callback);
+			if (batch.scheduled) {
+				return;
+			}
+			batch.scheduled = true;
+			delay = batch.lastRunTime + FRAME_MS - System.currentTimeMillis();
+		}
+		if (delay > 0) {
+			handler.postDelayed(batch, delay);
+		} else {
+			handler.post(batch);
+		}
+	}
+
+	private synchronized void record(int callbacks, long elapsedNanos) {
+		++messageCount;
+		callbackCount += callbacks;
+		largestBatch = Math.max(largestBatch, callbacks);
+		totalTimeNanos += elapsedNanos;
+		maxTimeNanos = Math.max(maxTimeNanos, elapsedNanos);
+	}
+
+	synchronized MobileServiceDeliveryStats getStats(boolean reset) {
+		MobileServiceDeliveryStats stats = new MobileServiceDeliveryStats(messageCount, callbackCount, largestBatch,
+				totalTimeNanos, maxTimeNanos);
+		if (reset) {
+			messageCount = 0;
+			callbackCount = 0;
+			largestBatch = 0;
+			totalTimeNanos = 0;
+			maxTimeNanos = 0;
+		}
+		return stats;
+	}
+}
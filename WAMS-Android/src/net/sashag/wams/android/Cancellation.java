@@ -0,0 +1,136 @@
+package net.sashag.wams.android;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * The cancellation state of an asynchronous operation, which aborts the HTTP requests that the
+ * operation has in flight when it is cancelled. The worker thread that runs the operation makes
+ * its cancellation current while it runs, so that {@link HttpTransport} can register requests
+ * with it without the cancellation being passed through every method on the way.
+ */
+class Cancellation {
+
+	private static final ThreadLocal<Cancellation> current = new ThreadLocal<Cancellation>();
+
+	private boolean cancelled;
+	private final List<HttpUriRequest> requests = new ArrayList<HttpUriRequest>(1);
+	private List<Runnable> listeners;
+
+	/**
+	 * Retrieves the cancellation of the operation that the calling thread is running, if any.
+	 */
+	static Cancellation current() {
+		return current.get();
+	}
+
+	/**
+	 * Makes this cancellation current on the calling thread.
+	 *
+	 * @return	the cancellation it replaces, which must be passed to {@link exit}
+	 */
+	Cancellation enter() {
+		Cancellation previous = current.get();
+		current.set(this);
+		return previous;
+	}
+
+	static void exit(Cancellation previous) {
+		if (previous == null) {
+			current.remove();
+		} else {
+			current.set(previous);
+		}
+	}
+
+	synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Registers a request that is about to be sent, so that it is aborted if the operation is
+	 * cancelled. The request must be unregistered when its response has been consumed.
+	 *
+	 * @throws InterruptedIOException	thrown if the operation has already been cancelled
+	 */
+	void register(HttpUriRequest request) throws InterruptedIOException {
+		synchronized (this) {
+			if (!cancelled) {
+				requests.add(request);
+				return;
+			}
+		}
+		throw new InterruptedIOException("The operation was cancelled");
+	}
+
+	synchronized void unregister(HttpUriRequest request) {
+		requests.remove(request);
+	}
+
+	/**
+	 * Adds a listener that is run when the operation is cancelled, or right away if it already is.
+	 */
+	void addListener(Runnable listener) {
+		synchronized (this) {
+			if (!cancelled) {
+				if (listeners == null) {
+					listeners = new ArrayList<Runnable>(1);
+				}
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	void cancel() {
+		List<HttpUriRequest> aborted;
+		List<Runnable> notified;
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			cancelled = true;
+			aborted = new ArrayList<HttpUriRequest>(requests);
+			requests.clear();
+			notified = listeners;
+			listeners = null;
+			notifyAll();
+		}
+		//Aborting closes the connection, which makes a thread blocked reading the response fail
+		for (HttpUriRequest request : aborted) {
+			request.abort();
+		}
+		if (notified != null) {
+			for (Runnable listener : notified) {
+				listener.run();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the specified time, such as the delay before a retry, unless the operation is
+	 * cancelled first.
+	 *
+	 * @throws InterruptedIOException	thrown if the operation was cancelled, or the thread interrupted
+	 */
+	synchronized void sleep(long delayMs) throws InterruptedIOException {
+		long wakeTime = System.currentTimeMillis() + delayMs;
+		long remaining = delayMs;
+		while (!cancelled && remaining > 0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting to retry a request");
+			}
+			remaining = wakeTime - System.currentTimeMillis();
+		}
+		if (cancelled) {
+			throw new InterruptedIOException("The operation was cancelled");
+		}
+	}
+}
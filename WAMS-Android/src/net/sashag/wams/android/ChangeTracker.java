@@ -0,0 +1,99 @@
+package net.sashag.wams.android;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Remembers the column values of items of a single {@link MobileTable} as they were when the
+ * items were retrieved from or sent to the mobile service, so that an update can send only the
+ * columns that have changed since. Snapshots are kept as the JSON text the item serializes to,
+ * keyed by id, and the least recently used snapshots are evicted first. An item without a
+ * snapshot is updated in full, so eviction only costs bandwidth.
+ * <p>
+ * Values are compared in their serialized form, which is what the mobile service receives;
+ * this also means that changes made in place to a mutable field value, such as a date, are
+ * detected.
+ */
+class ChangeTracker {
+
+	private final LinkedHashMap<Integer, String> snapshots;
+
+	ChangeTracker(final int maxItems) {
+		this.snapshots = new LinkedHashMap<Integer, String>(16, 0.75f, /*accessOrder*/true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+				return size() > maxItems;
+			}
+		};
+	}
+
+	/**
+	 * Records the values of an item.
+	 *
+	 * @param json		the item, serialized with its id
+	 * @param columns	the columns whose values are known, or <b>null</b> if they all are; the
+	 * 					values of the other columns are treated as unknown, and are always sent
+	 */
+	void snapshot(int id, JSONObject json, Set<String> columns) throws JSONException {
+		if (columns != null) {
+			JSONObject known = new JSONObject();
+			for (Iterator<?> keys = json.keys(); keys.hasNext(); ) {
+				String key = (String) keys.next();
+				if (key.equals("id") || columns.contains(key)) {
+					known.put(key, json.get(key));
+				}
+			}
+			json = known;
+		}
+		String text = json.toString();
+		synchronized (this) {
+			snapshots.put(id, text);
+		}
+	}
+
+	synchronized void forget(int id) {
+		snapshots.remove(id);
+	}
+
+	/**
+	 * Compares an item with its snapshot.
+	 *
+	 * @param json	the item, serialized with its id
+	 * @return		the id and the changed columns of the item, with nulls for columns that were
+	 * 				cleared, or <b>null</b> if there is no snapshot of the item
+	 */
+	JSONObject getChanges(int id, JSONObject json) throws JSONException {
+		String text;
+		synchronized (this) {
+			text = snapshots.get(id);
+		}
+		if (text == null) {
+			return null;
+		}
+		JSONObject previous = new JSONObject(text);
+		JSONObject current = new JSONObject(json.toString());
+		JSONObject changes = new JSONObject();
+		changes.put("id", id);
+		for (Iterator<?> keys = current.keys(); keys.hasNext(); ) {
+			String key = (String) keys.next();
+			Object value = current.get(key);
+			if (!key.equals("id") && !value.equals(previous.opt(key))) {
+				changes.put(key, value);
+			}
+		}
+		for (Iterator<?> keys = previous.keys(); keys.hasNext(); ) {
+			String key = (String) keys.next();
+			if (!current.has(key)) {
+				changes.put(key, JSONObject.NULL);
+			}
+		}
+		return changes;
+	}
+}
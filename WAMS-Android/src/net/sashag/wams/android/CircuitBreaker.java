@@ -0,0 +1,83 @@
+package net.sashag.wams.android;
+
+/**
+ * Stops the requests of a single {@link MobileService} from reaching the server while the server
+ * appears to be unhealthy, so that devices do not add to the load of a struggling service and do
+ * not wait for requests that are likely to fail anyway.
+ * <p>
+ * The breaker is closed while requests succeed. After a number of consecutive failures it opens,
+ * and requests fail right away for a while. Then a single trial request is let through: if it
+ * succeeds the breaker closes, and if it fails the breaker opens again. Failures are I/O errors
+ * and server errors (5xx); client errors mean that the server is healthy.
+ */
+class CircuitBreaker {
+
+	private int failureThreshold;
+	private long openDurationMs;
+	private int consecutiveFailures;
+	private long openUntil;
+	private boolean trialInFlight;
+
+	CircuitBreaker(int failureThreshold, long openDurationMs) {
+		this.failureThreshold = failureThreshold;
+		this.openDurationMs = openDurationMs;
+	}
+
+	/**
+	 * Sets the number of consecutive failures that open the breaker, or 0 to never open it, and
+	 * how long the breaker stays open before a trial request is let through.
+	 */
+	synchronized void setLimits(int failureThreshold, long openDurationMs) {
+		if (failureThreshold < 0 || openDurationMs < 0) {
+			throw new IllegalArgumentException("Circuit breaker limits must not be negative");
+		}
+		this.failureThreshold = failureThreshold;
+		this.openDurationMs = openDurationMs;
+		consecutiveFailures = 0;
+		openUntil = 0;
+		trialInFlight = false;
+	}
+
+	/**
+	 * Determines whether a request may be sent. Once the breaker has been open for long enough,
+	 * this returns <b>true</b> for a single caller, whose request is the trial request.
+	 */
+	synchronized boolean allowRequest() {
+		if (failureThreshold == 0 || consecutiveFailures < failureThreshold) {
+			return true;
+		}
+		if (trialInFlight || System.currentTimeMillis() < openUntil) {
+			return false;
+		}
+		trialInFlight = true;
+		return true;
+	}
+
+	synchronized void recordSuccess() {
+		consecutiveFailures = 0;
+		trialInFlight = false;
+	}
+
+	synchronized void recordFailure() {
+		++consecutiveFailures;
+		trialInFlight = false;
+		if (failureThreshold != 0 && consecutiveFailures >= failureThreshold) {
+			openUntil = System.currentTimeMillis() + openDurationMs;
+		}
+	}
+
+	/**
+	 * Records a request that was abandoned by its caller, such as a cancelled request, which says
+	 * nothing about the health of the server but must not leave a trial request in flight forever.
+	 */
+	synchronized void recordAbandoned() {
+		trialInFlight = false;
+	}
+
+	/**
+	 * Retrieves how long requests will keep failing fast, for error messages.
+	 */
+	synchronized long getRemainingOpenTime() {
+		return Math.max(0, openUntil - System.currentTimeMillis());
+	}
+}
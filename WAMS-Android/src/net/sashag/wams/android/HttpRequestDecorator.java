@@ -1,6 +1,6 @@
 package net.sashag.wams.android;
 
-import java.net.HttpURLConnection;
+import org.apache.http.HttpMessage;
 
 class HttpRequestDecorator {
 
@@ -25,17 +25,10 @@ class HttpRequestDecorator {
 		applicationKey = apiKey;
 	}
 	
-	public void decorateHttpRequest(HttpURLConnection urlConnection) {
-		urlConnection.addRequestProperty(APPLICATION_KEY_HEADER_NAME, applicationKey);
+	public void decorateHttpRequest(HttpMessage request) {
+		request.addHeader(APPLICATION_KEY_HEADER_NAME, applicationKey);
 		if (authenticationToken != null) {
-			urlConnection.addRequestProperty(AUTH_HEADER_NAME, authenticationToken);
-		}
-	}
-
-	public void decorateHttpRequest(HttpPatch httpPatch) {
-		httpPatch.addHeader(APPLICATION_KEY_HEADER_NAME, applicationKey);
-		if (authenticationToken != null) {
-			httpPatch.addHeader(AUTH_HEADER_NAME, authenticationToken);
+			request.addHeader(AUTH_HEADER_NAME, authenticationToken);
 		}
 	}
 	
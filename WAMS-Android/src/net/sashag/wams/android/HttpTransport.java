@@ -0,0 +1,656 @@
+package net.sashag.wams.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import android.util.Log;
+
+/**
+ * Sends all HTTP requests of a single {@link MobileService} through one HTTP client with a
+ * pool of keep-alive connections, so that consecutive operations reuse TCP connections and
+ * TLS sessions instead of setting up new ones every time. The client is created on first use;
+ * pool settings must be configured before that. Connections that have been idle for longer
+ * than the idle timeout are closed before the next request is sent.
+ * <p>
+ * Response bodies are requested with gzip compression unless it has been disabled, and are
+ * decompressed while they are being read. Request bodies larger than a configurable threshold
+ * are compressed as well; this is disabled by default, because the server must support it.
+ * <p>
+ * Requests that fail with an I/O error or with a transient status code, such as 503, are retried
+ * if they are idempotent: all requests except POST, whose retry could create an item twice.
+ * Retries are delayed by exponential backoff with full jitter, so that devices that failed at the
+ * same time do not retry at the same time, and the delay requested by a Retry-After header is
+ * honored. All requests go through a {@link CircuitBreaker}, which fails them right away while
+ * the server appears to be unhealthy.
+ * <p>
+ * Requests sent on behalf of an asynchronous operation are registered with the operation's
+ * {@link Cancellation}, so that cancelling the operation aborts them, and every request has
+ * connect and read timeouts.
+ * <p>
+ * The status codes, network errors, body sizes and number of requests in flight are recorded
+ * in the service's {@link MetricsRegistry}. If tracing is enabled, every request is sent with a
+ * trace id, and its phases are recorded by a {@link RequestTracer}.
+ */
+class HttpTransport {
+
+	static final String GET = "GET";
+	static final String POST = "POST";
+	static final String PATCH = "PATCH";
+	static final String DELETE = "DELETE";
+
+	private static final String JSON_CONTENT_TYPE = "application/json";
+	private static final String GZIP = "gzip";
+	private static final int MAX_BACKOFF_SHIFT = 20;
+
+	private final HttpRequestDecorator requestDecorator;
+	private final MetricsRegistry metrics;
+	private int maxConnections;
+	private long idleConnectionTimeoutMs;
+	private ThreadSafeClientConnManager connectionManager;
+	private DefaultHttpClient httpClient;
+	private long lastEvictionTime;
+	private volatile boolean responseCompressionEnabled = true;
+	private volatile int requestCompressionThreshold = -1;
+	private volatile int maxRetries = 2;
+	private volatile long initialBackoffMs = 250;
+	private volatile long maxBackoffMs = 5000;
+	private volatile int connectTimeoutMs = 15000;
+	private volatile int readTimeoutMs = 30000;
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker(5, 30000);
+	private volatile RequestTracer tracer;
+	private final Random random = new Random();
+
+	HttpTransport(HttpRequestDecorator requestDecorator, MetricsRegistry metrics, int maxConnections, long idleConnectionTimeoutMs) {
+		this.requestDecorator = requestDecorator;
+		this.metrics = metrics;
+		this.maxConnections = maxConnections;
+		this.idleConnectionTimeoutMs = idleConnectionTimeoutMs;
+	}
+
+	synchronized void setMaxConnections(int maxConnections) {
+		if (maxConnections <= 0) {
+			throw new IllegalArgumentException("Maximum number of connections must be positive");
+		}
+		if (httpClient != null) {
+			throw new IllegalStateException("The connection pool size must be set before the first request is sent");
+		}
+		this.maxConnections = maxConnections;
+	}
+
+	synchronized void setIdleConnectionTimeout(long idleConnectionTimeoutMs) {
+		//A timeout of 0 would close every pooled connection before each request
+		if (idleConnectionTimeoutMs <= 0) {
+			throw new IllegalArgumentException("Idle connection timeout must be positive");
+		}
+		this.idleConnectionTimeoutMs = idleConnectionTimeoutMs;
+	}
+
+	void setResponseCompressionEnabled(boolean enabled) {
+		responseCompressionEnabled = enabled;
+	}
+
+	/**
+	 * Sets the size in bytes above which request bodies are compressed, or -1 to never compress them.
+	 */
+	void setRequestCompressionThreshold(int threshold) {
+		requestCompressionThreshold = threshold;
+	}
+
+	/**
+	 * Sets the number of times an idempotent request is retried, or 0 to never retry, and the
+	 * range of the delays between retries, in milliseconds. Retry-After delays longer than the
+	 * maximum are not honored; the response is returned to the caller instead.
+	 */
+	void setRetryPolicy(int maxRetries, long initialBackoffMs, long maxBackoffMs) {
+		if (maxRetries < 0 || initialBackoffMs < 0 || maxBackoffMs < initialBackoffMs) {
+			throw new IllegalArgumentException("Invalid retry policy: " + maxRetries + " retries, backoff from " +
+					initialBackoffMs + "ms to " + maxBackoffMs + "ms");
+		}
+		this.maxRetries = maxRetries;
+		this.initialBackoffMs = initialBackoffMs;
+		this.maxBackoffMs = maxBackoffMs;
+	}
+
+	/**
+	 * Sets how long to wait for a connection to be established, and for data to arrive on a
+	 * connection, in milliseconds; 0 means to wait forever.
+	 */
+	void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+		if (connectTimeoutMs < 0 || readTimeoutMs < 0) {
+			throw new IllegalArgumentException("Timeouts must not be negative");
+		}
+		this.connectTimeoutMs = connectTimeoutMs;
+		this.readTimeoutMs = readTimeoutMs;
+	}
+
+	/**
+	 * Sets the tracer that records the phases of requests, or <b>null</b> to stop tracing.
+	 */
+	void setTracer(RequestTracer tracer) {
+		this.tracer = tracer;
+	}
+
+	RequestTracer getTracer() {
+		return tracer;
+	}
+
+	void setCircuitBreakerLimits(int failureThreshold, long openDurationMs) {
+		circuitBreaker.setLimits(failureThreshold, openDurationMs);
+	}
+
+	/**
+	 * Sends a request with an optional JSON body, and returns the response once its status
+	 * line and headers have arrived. The caller must close or abort the response.
+	 */
+	Response execute(String method, String url, String jsonBody) throws IOException {
+		return execute(method, url, jsonBody, JSON_CONTENT_TYPE, null);
+	}
+
+	/**
+	 * Sends a request without a body, with additional request headers, such as validators for
+	 * a conditional GET. The caller must close or abort the response.
+	 */
+	Response executeWithHeaders(String method, String url, Header[] headers) throws IOException {
+		return execute(method, url, null, null, headers);
+	}
+
+	/**
+	 * Sends a request with an optional body of the specified content type. The body is encoded
+	 * in UTF-8. The caller must close or abort the response.
+	 */
+	Response execute(String method, String url, String body, String contentType) throws IOException {
+		return execute(method, url, body, contentType, null);
+	}
+
+	private Response execute(String method, String url, String body, String contentType, Header[] headers) throws IOException {
+		int retries = POST.equals(method) ? 0 : maxRetries;
+		Cancellation cancellation = Cancellation.current();
+		RequestTracer tracer = this.tracer;
+		long traceId = tracer != null ? tracer.newTraceId() : 0;
+		for (int attempt = 0; ; ++attempt) {
+			if (!circuitBreaker.allowRequest()) {
+				throw new IOException("The mobile service appears to be unavailable, so requests fail right away for another " +
+						circuitBreaker.getRemainingOpenTime() + "ms");
+			}
+			Response response;
+			try {
+				response = executeOnce(method, url, body, contentType, headers, cancellation, tracer, traceId, attempt);
+			} catch (IOException e) {
+				if (cancellation != null && cancellation.isCancelled()) {
+					//The request was aborted, which says nothing about the health of the server
+					circuitBreaker.recordAbandoned();
+					throw e;
+				}
+				metrics.recordNetworkError();
+				dumpTracesOnError(tracer);
+				circuitBreaker.recordFailure();
+				if (attempt == retries) {
+					throw e;
+				}
+				Log.w("HttpTransport", "HTTP " + method + " request failed, retrying: " + url, e);
+				sleep(getBackoff(attempt), cancellation);
+				continue;
+			} catch (RuntimeException e) {
+				circuitBreaker.recordFailure();
+				throw e;
+			}
+			int statusCode = response.getStatusCode();
+			metrics.recordStatusCode(statusCode);
+			if (statusCode >= 400) {
+				dumpTracesOnError(tracer);
+			}
+			if (statusCode >= 500) {
+				circuitBreaker.recordFailure();
+			} else {
+				circuitBreaker.recordSuccess();
+			}
+			if (attempt == retries || !isTransient(statusCode)) {
+				return response;
+			}
+			long delay = getBackoff(attempt);
+			String retryAfter = response.getHeader("Retry-After");
+			if (retryAfter != null) {
+				long maxDelay = maxBackoffMs;
+				long requestedDelay = parseRetryAfter(retryAfter, maxDelay);
+				if (requestedDelay > maxDelay) {
+					//The caller is better off knowing now than after a long wait
+					return response;
+				}
+				delay = Math.max(delay, requestedDelay);
+			}
+			response.close();
+			Log.w("HttpTransport", "HTTP " + method + " request returned status code " + statusCode + ", retrying in " +
+					delay + "ms: " + url);
+			sleep(delay, cancellation);
+		}
+	}
+
+	private static boolean isTransient(int statusCode) {
+		switch (statusCode) {
+		case 408: //Request Timeout
+		case 429: //Too Many Requests
+		case 502: //Bad Gateway
+		case 503: //Service Unavailable
+		case 504: //Gateway Timeout
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	//Full jitter: a random delay of up to the exponential backoff of the attempt
+	private long getBackoff(int attempt) {
+		long backoff = Math.min(maxBackoffMs, initialBackoffMs << Math.min(attempt, MAX_BACKOFF_SHIFT));
+		return (long) (random.nextDouble() * backoff);
+	}
+
+	//Retry-After is either a number of seconds or an HTTP date. The seconds are compared with the
+	//maximum delay before they are converted, because a huge number of seconds would overflow;
+	//a delay longer than the maximum is returned as Long.MAX_VALUE.
+	static long parseRetryAfter(String value, long maxDelayMs) {
+		value = value.trim();
+		if (!value.matches("\\d+")) {
+			try {
+				return Math.max(0, DateUtils.parseDate(value).getTime() - System.currentTimeMillis());
+			} catch (DateParseException e) {
+				return 0;
+			}
+		}
+		try {
+			long seconds = Long.parseLong(value);
+			return seconds > maxDelayMs / 1000 ? Long.MAX_VALUE : seconds * 1000;
+		} catch (NumberFormatException e) {
+			//Too many digits for a long
+			return Long.MAX_VALUE;
+		}
+	}
+
+	private static void sleep(long delayMs, Cancellation cancellation) throws IOException {
+		if (cancellation != null) {
+			cancellation.sleep(delayMs);
+			return;
+		}
+		try {
+			Thread.sleep(delayMs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry a request");
+		}
+	}
+
+	private static void dumpTracesOnError(RequestTracer tracer) {
+		if (tracer == null || !tracer.shouldDumpOnError()) {
+			return;
+		}
+		StringWriter text = new StringWriter();
+		try {
+			tracer.dump(text);
+		} catch (IOException e) {
+			//A StringWriter does not throw
+		}
+		Log.w("HttpTransport", "A request failed; recent requests:\n" + text);
+	}
+
+	private Response executeOnce(String method, String url, String body, String contentType, Header[] headers,
+			Cancellation cancellation, RequestTracer tracer, long traceId, int attempt) throws IOException {
+		HttpRequestBase request = createRequest(method, url);
+		HttpConnectionParams.setConnectionTimeout(request.getParams(), connectTimeoutMs);
+		HttpConnectionParams.setSoTimeout(request.getParams(), readTimeoutMs);
+		request.addHeader("ACCEPT", JSON_CONTENT_TYPE);
+		if (headers != null) {
+			for (Header header : headers) {
+				request.addHeader(header);
+			}
+		}
+		if (responseCompressionEnabled) {
+			request.addHeader("Accept-Encoding", GZIP);
+		}
+		requestDecorator.decorateHttpRequest(request);
+		if (tracer != null) {
+			request.addHeader(RequestTracer.TRACE_ID_HEADER_NAME, RequestTracer.formatTraceId(traceId));
+		}
+		if (body != null) {
+			AbstractHttpEntity entity = createEntity(body, contentType);
+			((HttpEntityEnclosingRequestBase) request).setEntity(entity);
+			metrics.recordBytesSent(entity.getContentLength());
+		}
+		DefaultHttpClient client = getClient();
+		evictIdleConnections();
+		if (cancellation != null) {
+			cancellation.register(request);
+		}
+		metrics.requestStarted();
+		int previousSlot = -1;
+		int slot = -1;
+		if (tracer != null) {
+			previousSlot = tracer.getCurrentSlot();
+			slot = tracer.begin(traceId, attempt, method, url);
+		}
+		try {
+			HttpResponse response = client.execute(request);
+			if (tracer != null) {
+				tracer.responded(slot, response.getStatusLine().getStatusCode());
+			}
+			return new Response(request, response, cancellation, metrics, tracer, slot, previousSlot);
+		} catch (IOException e) {
+			request.abort();
+			unregister(request, cancellation);
+			metrics.requestCompleted();
+			if (tracer != null) {
+				tracer.failed(slot, previousSlot);
+			}
+			throw e;
+		} catch (RuntimeException e) {
+			request.abort();
+			unregister(request, cancellation);
+			metrics.requestCompleted();
+			if (tracer != null) {
+				tracer.failed(slot, previousSlot);
+			}
+			throw e;
+		}
+	}
+
+	private static void unregister(HttpRequestBase request, Cancellation cancellation) {
+		if (cancellation != null) {
+			cancellation.unregister(request);
+		}
+	}
+
+	synchronized void shutdown() {
+		if (connectionManager != null) {
+			connectionManager.shutdown();
+			connectionManager = null;
+			httpClient = null;
+		}
+	}
+
+	private AbstractHttpEntity createEntity(String content, String contentType) throws IOException {
+		byte[] body = content.getBytes("UTF-8");
+		int threshold = requestCompressionThreshold;
+		ByteArrayEntity entity;
+		if (threshold >= 0 && body.length > threshold) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4);
+			GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+			gzip.write(body);
+			gzip.close();
+			entity = new ByteArrayEntity(compressed.toByteArray());
+			entity.setContentEncoding(GZIP);
+		} else {
+			entity = new ByteArrayEntity(body);
+		}
+		entity.setContentType(contentType + "; charset=utf-8");
+		return entity;
+	}
+
+	private static HttpRequestBase createRequest(String method, String url) {
+		if (GET.equals(method)) {
+			return new HttpGet(url);
+		}
+		if (POST.equals(method)) {
+			return new HttpPost(url);
+		}
+		if (PATCH.equals(method)) {
+			return new HttpPatch(url);
+		}
+		if (DELETE.equals(method)) {
+			return new HttpDelete(url);
+		}
+		throw new IllegalArgumentException("Unsupported HTTP method: " + method);
+	}
+
+	private synchronized DefaultHttpClient getClient() {
+		if (httpClient == null) {
+			HttpParams params = new BasicHttpParams();
+			HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+			HttpProtocolParams.setContentCharset(params, "UTF-8");
+			HttpConnectionParams.setTcpNoDelay(params, true);
+			//The stale check costs a blocking read on every request; idle eviction and the
+			//default retry handler take care of connections closed by the server instead
+			HttpConnectionParams.setStaleCheckingEnabled(params, false);
+			ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+			ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+			SchemeRegistry schemes = new SchemeRegistry();
+			schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+			schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+			connectionManager = new ThreadSafeClientConnManager(params, schemes);
+			httpClient = new DefaultHttpClient(connectionManager, params) {
+				@Override
+				protected HttpRequestExecutor createRequestExecutor() {
+					return new TracingRequestExecutor();
+				}
+			};
+			//An aborted request fails with an I/O error, which the default handler would retry
+			final HttpRequestRetryHandler retryHandler = httpClient.getHttpRequestRetryHandler();
+			httpClient.setHttpRequestRetryHandler(new HttpRequestRetryHandler() {
+				public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+					Cancellation cancellation = Cancellation.current();
+					if (cancellation != null && cancellation.isCancelled()) {
+						return false;
+					}
+					return retryHandler.retryRequest(exception, executionCount, context);
+				}
+			});
+		}
+		return httpClient;
+	}
+
+	private void evictIdleConnections() {
+		long now = System.currentTimeMillis();
+		ThreadSafeClientConnManager manager;
+		long timeout;
+		synchronized (this) {
+			timeout = idleConnectionTimeoutMs;
+			if (now - lastEvictionTime < timeout / 2) {
+				return;
+			}
+			lastEvictionTime = now;
+			manager = connectionManager;
+		}
+		if (manager != null) {
+			manager.closeExpiredConnections();
+			manager.closeIdleConnections(timeout, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * An HTTP response whose body has not been read yet. The connection returns to the pool
+	 * when the response is closed, or is discarded when the response is aborted.
+	 */
+	static class Response {
+		private final HttpRequestBase request;
+		private final HttpResponse response;
+		private final Cancellation cancellation;
+		private final MetricsRegistry metrics;
+		private final RequestTracer tracer;
+		private final int traceSlot;
+		private final int previousTraceSlot;
+		private boolean released;
+
+		Response(HttpRequestBase request, HttpResponse response, Cancellation cancellation, MetricsRegistry metrics,
+				RequestTracer tracer, int traceSlot, int previousTraceSlot) {
+			this.request = request;
+			this.response = response;
+			this.cancellation = cancellation;
+			this.metrics = metrics;
+			this.tracer = tracer;
+			this.traceSlot = traceSlot;
+			this.previousTraceSlot = previousTraceSlot;
+		}
+
+		int getStatusCode() {
+			return response.getStatusLine().getStatusCode();
+		}
+
+		String getHeader(String name) {
+			Header header = response.getFirstHeader(name);
+			return header != null ? header.getValue() : null;
+		}
+
+		/**
+		 * Retrieves the response body, decompressing it on the fly if necessary.
+		 */
+		InputStream getContent() throws IOException {
+			HttpEntity entity = response.getEntity();
+			if (entity == null) {
+				throw new IOException("The response does not have a body");
+			}
+			InputStream content = new CountingInputStream(entity.getContent(), metrics, tracer != null);
+			Header encoding = entity.getContentEncoding();
+			if (encoding != null && GZIP.equalsIgnoreCase(encoding.getValue())) {
+				content = new GZIPInputStream(content);
+			}
+			return content;
+		}
+
+		String readString() throws IOException {
+			if (response.getEntity() == null) {
+				return "";
+			}
+			Reader reader = new InputStreamReader(getContent(), "UTF-8");
+			StringBuilder result = new StringBuilder();
+			char[] buffer = new char[4096];
+			int count;
+			while ((count = reader.read(buffer)) != -1) {
+				result.append(buffer, 0, count);
+			}
+			return result.toString();
+		}
+
+		/**
+		 * Reads the rest of the body, if any, so that the connection can be reused.
+		 */
+		void close() {
+			HttpEntity entity = response.getEntity();
+			if (entity != null) {
+				try {
+					entity.consumeContent();
+				} catch (IOException e) {
+					request.abort();
+				}
+			}
+			release();
+		}
+
+		/**
+		 * Discards the connection without reading the rest of the body. Use this when
+		 * stopping early would otherwise require downloading a large remainder.
+		 */
+		void abort() {
+			request.abort();
+			release();
+		}
+
+		private void release() {
+			unregister(request, cancellation);
+			if (!released) {
+				released = true;
+				metrics.requestCompleted();
+				if (tracer != null) {
+					tracer.end(traceSlot, previousTraceSlot);
+				}
+			}
+		}
+	}
+
+	//Records when a connection has been obtained for a request, and when the request has been sent
+	private static class TracingRequestExecutor extends HttpRequestExecutor {
+		@Override
+		protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection connection, HttpContext context)
+				throws IOException, HttpException {
+			RequestTracer.mark(RequestTracer.CONNECTED);
+			HttpResponse response = super.doSendRequest(request, connection, context);
+			RequestTracer.mark(RequestTracer.SENT);
+			return response;
+		}
+	}
+
+	//Counts the bytes of a response body as they are read from the connection, and if the request
+	//is traced, the time spent waiting for them
+	private static class CountingInputStream extends FilterInputStream {
+		private final MetricsRegistry metrics;
+		private final boolean traced;
+
+		CountingInputStream(InputStream in, MetricsRegistry metrics, boolean traced) {
+			super(in);
+			this.metrics = metrics;
+			this.traced = traced;
+		}
+
+		@Override
+		public int read() throws IOException {
+			long start = traced ? System.nanoTime() : 0;
+			int value = super.read();
+			if (traced) {
+				RequestTracer.addReadTime(System.nanoTime() - start);
+			}
+			if (value != -1) {
+				metrics.recordBytesReceived(1);
+			}
+			return value;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			long start = traced ? System.nanoTime() : 0;
+			int count = super.read(buffer, offset, length);
+			if (traced) {
+				RequestTracer.addReadTime(System.nanoTime() - start);
+			}
+			if (count > 0) {
+				metrics.recordBytesReceived(count);
+			}
+			return count;
+		}
+
+		@Override
+		public long skip(long count) throws IOException {
+			long skipped = super.skip(count);
+			metrics.recordBytesReceived(skipped);
+			return skipped;
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+package net.sashag.wams.android;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Coalesces identical queries of a single {@link MobileService} that are in flight at the same
+ * time, so that they share one request and one parsed result. Queries are identical if they have
+ * the same key, which is built from the query URL, the fetch policy and the authentication token;
+ * see {@link MobileTable.QueryBuilder}.
+ * <p>
+ * The first caller with a given key receives a {@link Call} that it must start, evaluate and then pass
+ * to {@link #complete}. Callers that arrive while the call is in flight only add their listener,
+ * and all the listeners are notified when the call completes. A caller that arrives after the call
+ * completed starts a new call, so results are never served from here after the fact.
+ * <p>
+ * A caller that is no longer interested in the results, such as a cancelled query, passes its
+ * listener to {@link #leave}. The request of a call is aborted when its last listener leaves.
+ */
+class InFlightQueries {
+
+	/**
+	 * Notified when a call completes. The result is shared between all the listeners of the call,
+	 * so a listener that hands it to user code must copy it first.
+	 */
+	interface Listener {
+		void completed(Object result, MobileException error);
+	}
+
+	/**
+	 * A listener for synchronous callers, which blocks until the call completes.
+	 */
+	static class Waiter implements Listener {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private Object result;
+		private MobileException error;
+
+		public void completed(Object result, MobileException error) {
+			this.result = result;
+			this.error = error;
+			done.countDown();
+		}
+
+		Object await() throws MobileException {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MobileException("Interrupted while waiting for query results", e);
+			}
+			if (error != null) {
+				throw error;
+			}
+			return result;
+		}
+	}
+
+	static class Call {
+		private final String key;
+		private final List<Listener> listeners = new ArrayList<Listener>(2);
+		private final Cancellation cancellation = new Cancellation();
+		private boolean started;
+
+		private Call(String key, Listener listener) {
+			this.key = key;
+			listeners.add(listener);
+		}
+
+		/**
+		 * The cancellation that the caller must make current while it evaluates the call.
+		 */
+		Cancellation getCancellation() {
+			return cancellation;
+		}
+	}
+
+	private final HashMap<String, Call> calls = new HashMap<String, Call>();
+
+	/**
+	 * Adds the listener to the call in flight with the specified key, or starts a new call if
+	 * there is none.
+	 * <p>
+	 * A caller that blocks until the call completes must only join calls that have started;
+	 * otherwise, if it blocks a thread of the {@link MobileServiceExecutor}, it might wait forever
+	 * for a call that is queued behind it. Such a caller receives a call of its own instead, which
+	 * is not shared.
+	 *
+	 * @param onlyIfStarted	whether to join only a call that has been started with {@link #start}
+	 * @return				the new call, which the caller must start, evaluate and complete, or
+	 * 						<b>null</b> if the listener joined a call that is already in flight
+	 */
+	synchronized Call join(String key, Listener listener, boolean onlyIfStarted) {
+		Call call = calls.get(key);
+		if (call != null && (call.started || !onlyIfStarted)) {
+			call.listeners.add(listener);
+			return null;
+		}
+		Call newCall = new Call(key, listener);
+		if (call == null) {
+			calls.put(key, newCall);
+		}
+		return newCall;
+	}
+
+	synchronized void start(Call call) {
+		call.started = true;
+	}
+
+	/**
+	 * Removes a listener from the call in flight with the specified key, and cancels the call if
+	 * it was the last listener. Does nothing if the call has already completed.
+	 */
+	void leave(String key, Listener listener) {
+		Call call;
+		synchronized (this) {
+			call = calls.get(key);
+			if (call == null || !call.listeners.remove(listener) || !call.listeners.isEmpty()) {
+				return;
+			}
+			calls.remove(key);
+		}
+		call.cancellation.cancel();
+	}
+
+	void complete(Call call, Object result, MobileException error) {
+		List<Listener> notified;
+		synchronized (this) {
+			if (calls.get(call.key) == call) {
+				calls.remove(call.key);
+			}
+			//No listeners can be added or removed once the call is removed
+			notified = new ArrayList<Listener>(call.listeners);
+		}
+		for (Listener listener : notified) {
+			listener.completed(result, error);
+		}
+	}
+}
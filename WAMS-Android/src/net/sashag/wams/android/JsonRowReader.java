@@ -0,0 +1,230 @@
+package net.sashag.wams.android;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Reads a JSON array of objects from a character stream one element at a time. Only the
+ * text of the current element is kept in memory, so the peak memory use of reading a large
+ * response is bounded by the size of a single row rather than by the size of the whole array.
+ * <p>
+ * The results of a query that requested an inline count are wrapped in an object, such as
+ * <code>{"results":[...],"count":42}</code>; {@link beginResults} and {@link endResults} read
+ * either form, and {@link getCount} provides the count.
+ * <p>
+ * android.util.JsonReader would be the natural choice here, but it requires API level 11.
+ */
+class JsonRowReader {
+
+	private static final int EOF = -1;
+
+	private final Reader reader;
+	private final char[] chunk = new char[8192];
+	private int position;
+	private int limit;
+	private final StringBuilder row = new StringBuilder(256);
+	private boolean wrapped;
+	private int count = -1;
+
+	JsonRowReader(Reader reader) {
+		this.reader = reader;
+	}
+
+	void beginArray() throws IOException, JSONException {
+		expect('[');
+	}
+
+	void endArray() throws IOException, JSONException {
+		expect(']');
+	}
+
+	/**
+	 * Begins reading the results of a query, which are either an array of objects or an object
+	 * with the array in its "results" property. The properties that precede the array are read
+	 * here, and the properties that follow it are read by {@link endResults}.
+	 */
+	void beginResults() throws IOException, JSONException {
+		if (peekNonWhitespace() == '[') {
+			beginArray();
+			return;
+		}
+		expect('{');
+		wrapped = true;
+		String name;
+		while ((name = nextName()) != null) {
+			if (name.equals("results")) {
+				beginArray();
+				return;
+			}
+			readProperty(name);
+		}
+		throw new JSONException("Expected a results array in the JSON object");
+	}
+
+	void endResults() throws IOException, JSONException {
+		endArray();
+		if (wrapped) {
+			String name;
+			while ((name = nextName()) != null) {
+				readProperty(name);
+			}
+		}
+	}
+
+	/**
+	 * Retrieves the total number of rows matching the query, which is known only if the query
+	 * requested an inline count.
+	 *
+	 * @return	the count, or -1 if the results did not contain a count
+	 */
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * Determines whether the array has more elements, consuming the separating comma if necessary.
+	 */
+	boolean hasNext() throws IOException, JSONException {
+		int c = peekNonWhitespace();
+		if (c == ',') {
+			++position;
+			c = peekNonWhitespace();
+		}
+		if (c == EOF) {
+			throw new JSONException("Unterminated JSON array");
+		}
+		return c != ']';
+	}
+
+	JSONObject nextObject() throws IOException, JSONException {
+		if (peekNonWhitespace() != '{') {
+			throw new JSONException("Expected a JSON object in the array");
+		}
+		readValue();
+		return new JSONObject(row.toString());
+	}
+
+	//Reads the name of the next property of an object, or returns null at the end of the object
+	private String nextName() throws IOException, JSONException {
+		int c = peekNonWhitespace();
+		if (c == ',') {
+			++position;
+			c = peekNonWhitespace();
+		}
+		if (c == '}') {
+			++position;
+			return null;
+		}
+		if (c != '"') {
+			throw new JSONException("Expected a property name in the JSON object");
+		}
+		readValue();
+		String name = (String) new JSONTokener(row.toString()).nextValue();
+		expect(':');
+		return name;
+	}
+
+	private void readProperty(String name) throws IOException, JSONException {
+		readValue();
+		if (name.equals("count")) {
+			try {
+				count = Integer.parseInt(row.toString());
+			} catch (NumberFormatException e) {
+				throw new JSONException("Expected a number for the count, but found: " + row);
+			}
+		}
+	}
+
+	//Reads the text of the next value, of any type, into the row buffer
+	private void readValue() throws IOException, JSONException {
+		int first = peekNonWhitespace();
+		row.setLength(0);
+		if (first != '{' && first != '[' && first != '"') {
+			//A number or a literal, which ends where the enclosing object or array continues
+			while (position < limit || fill()) {
+				char c = chunk[position];
+				if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+					break;
+				}
+				row.append(c);
+				++position;
+			}
+			return;
+		}
+		int depth = 0;
+		boolean inString = false;
+		boolean escaped = false;
+		do {
+			int c = read();
+			if (c == EOF) {
+				throw new JSONException("Unterminated JSON value");
+			}
+			row.append((char) c);
+			if (inString) {
+				if (escaped) {
+					escaped = false;
+				} else if (c == '\\') {
+					escaped = true;
+				} else if (c == '"') {
+					inString = false;
+				}
+			} else if (c == '"') {
+				inString = true;
+			} else if (c == '{' || c == '[') {
+				++depth;
+			} else if (c == '}' || c == ']') {
+				--depth;
+			}
+		} while (depth > 0 || inString);
+	}
+
+	/**
+	 * Retrieves the length, in characters, of the text of the object last returned by {@link nextObject}.
+	 */
+	int getRowLength() {
+		return row.length();
+	}
+
+	private void expect(char expected) throws IOException, JSONException {
+		int c = peekNonWhitespace();
+		if (c != expected) {
+			throw new JSONException("Expected '" + expected + "' but found " + (c == EOF ? "end of input" : "'" + (char) c + "'"));
+		}
+		++position;
+	}
+
+	private int peekNonWhitespace() throws IOException {
+		while (true) {
+			if (position == limit && !fill()) {
+				return EOF;
+			}
+			char c = chunk[position];
+			if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+				return c;
+			}
+			++position;
+		}
+	}
+
+	private int read() throws IOException {
+		if (position == limit && !fill()) {
+			return EOF;
+		}
+		return chunk[position++];
+	}
+
+	private boolean fill() throws IOException {
+		int count = reader.read(chunk, 0, chunk.length);
+		if (count <= 0) {
+			return false;
+		}
+		position = 0;
+		limit = count;
+		return true;
+	}
+
+}
@@ -0,0 +1,159 @@
+package net.sashag.wams.android;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the metrics of a single {@link MobileService}. Every metric is an atomic counter, so
+ * recording costs a few uncontended atomic additions and never takes a lock; consistency between
+ * counters is only needed in snapshots, which may be off by the operations in progress. Each
+ * {@link MobileTable} looks up its {@link TableMetrics} once, when it is created, so recording the
+ * metrics of an operation does not involve a map lookup either.
+ */
+class MetricsRegistry {
+
+	private static final int MAX_STATUS_CODE = 600;
+
+	/**
+	 * A latency distribution in buckets whose bounds are powers of two in milliseconds: bucket 0
+	 * holds latencies below 1ms, bucket <i>i</i> holds latencies from 2^(i-1)ms to 2^i ms, and the
+	 * last bucket holds everything from 2^16ms (about a minute) up.
+	 */
+	static class LatencyHistogram {
+		private static final int BUCKET_COUNT = 18;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong totalMicros = new AtomicLong();
+		private final AtomicLong maxMicros = new AtomicLong();
+
+		/**
+		 * Records an operation that started at the specified time, as returned by {@link System#nanoTime}.
+		 */
+		void record(long startNanos, boolean succeeded) {
+			long micros = (System.nanoTime() - startNanos) / 1000;
+			long millis = micros / 1000;
+			int bucket = Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKET_COUNT - 1);
+			buckets.incrementAndGet(bucket);
+			totalMicros.addAndGet(micros);
+			if (!succeeded) {
+				errors.incrementAndGet();
+			}
+			long max;
+			while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+				//Another thread recorded a new maximum; try again against it
+			}
+		}
+
+		MobileServiceMetrics.Latency snapshot() {
+			long[] counts = new long[BUCKET_COUNT];
+			for (int i = 0; i < BUCKET_COUNT; ++i) {
+				counts[i] = buckets.get(i);
+			}
+			return new MobileServiceMetrics.Latency(counts, errors.get(), totalMicros.get(), maxMicros.get());
+		}
+	}
+
+	/**
+	 * The metrics of the operations on a single table.
+	 */
+	static class TableMetrics {
+		private final LatencyHistogram[] latencies = new LatencyHistogram[MobileServiceMetrics.Operation.values().length];
+		private final AtomicLong rowsDeserialized = new AtomicLong();
+		private final AtomicLong deserializationNanos = new AtomicLong();
+		private final AtomicLong serializationNanos = new AtomicLong();
+
+		TableMetrics() {
+			for (int i = 0; i < latencies.length; ++i) {
+				latencies[i] = new LatencyHistogram();
+			}
+		}
+
+		LatencyHistogram getLatency(MobileServiceMetrics.Operation operation) {
+			return latencies[operation.ordinal()];
+		}
+
+		void recordDeserialization(long elapsedNanos) {
+			rowsDeserialized.incrementAndGet();
+			deserializationNanos.addAndGet(elapsedNanos);
+		}
+
+		void recordSerialization(long startNanos) {
+			serializationNanos.addAndGet(System.nanoTime() - startNanos);
+		}
+
+		MobileServiceMetrics.Table snapshot() {
+			MobileServiceMetrics.Latency[] snapshots = new MobileServiceMetrics.Latency[latencies.length];
+			for (int i = 0; i < latencies.length; ++i) {
+				snapshots[i] = latencies[i].snapshot();
+			}
+			return new MobileServiceMetrics.Table(snapshots, rowsDeserialized.get(),
+					deserializationNanos.get() / 1000, serializationNanos.get() / 1000);
+		}
+	}
+
+	private final ConcurrentHashMap<String, TableMetrics> tables = new ConcurrentHashMap<String, TableMetrics>();
+	private final AtomicLongArray statusCodes = new AtomicLongArray(MAX_STATUS_CODE);
+	private final AtomicLong networkErrors = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicInteger inFlightRequests = new AtomicInteger();
+
+	TableMetrics forTable(String tableName) {
+		TableMetrics metrics = tables.get(tableName);
+		if (metrics == null) {
+			TableMetrics newMetrics = new TableMetrics();
+			metrics = tables.putIfAbsent(tableName, newMetrics);
+			if (metrics == null) {
+				metrics = newMetrics;
+			}
+		}
+		return metrics;
+	}
+
+	void recordStatusCode(int statusCode) {
+		if (statusCode >= 0 && statusCode < MAX_STATUS_CODE) {
+			statusCodes.incrementAndGet(statusCode);
+		}
+	}
+
+	void recordNetworkError() {
+		networkErrors.incrementAndGet();
+	}
+
+	void recordBytesSent(long count) {
+		bytesSent.addAndGet(count);
+	}
+
+	void recordBytesReceived(long count) {
+		bytesReceived.addAndGet(count);
+	}
+
+	void requestStarted() {
+		inFlightRequests.incrementAndGet();
+	}
+
+	void requestCompleted() {
+		inFlightRequests.decrementAndGet();
+	}
+
+	MobileServiceMetrics snapshot(int queueDepth) {
+		Map<String, MobileServiceMetrics.Table> tableSnapshots = new TreeMap<String, MobileServiceMetrics.Table>();
+		for (Map.Entry<String, TableMetrics> table : tables.entrySet()) {
+			tableSnapshots.put(table.getKey(), table.getValue().snapshot());
+		}
+		Map<Integer, Long> statusCodeCounts = new TreeMap<Integer, Long>();
+		for (int i = 0; i < MAX_STATUS_CODE; ++i) {
+			long count = statusCodes.get(i);
+			if (count != 0) {
+				statusCodeCounts.put(i, count);
+			}
+		}
+		return new MobileServiceMetrics(System.currentTimeMillis(), tableSnapshots, statusCodeCounts, networkErrors.get(),
+				bytesSent.get(), bytesReceived.get(), queueDepth, inFlightRequests.get());
+	}
+}
@@ -10,6 +10,8 @@ public class MobileException extends Exception {
 
 	private static final long serialVersionUID = 727615030167047005L;
 	
+	private final int statusCode;
+	
 	/**
 	 * Initializes a new instance of this class with an error message.
 	 * 
@@ -17,6 +19,19 @@ public class MobileException extends Exception {
 	 */
 	public MobileException(String message) {
 		super(message);
+		this.statusCode = -1;
+	}
+	
+	/**
+	 * Initializes a new instance of this class with an error message and the HTTP status code
+	 * returned by the mobile service.
+	 * 
+	 * @param message		the error message
+	 * @param statusCode	the HTTP status code of the failed request
+	 */
+	public MobileException(String message, int statusCode) {
+		super(message);
+		this.statusCode = statusCode;
 	}
 	
 	/**
@@ -27,6 +42,17 @@ public class MobileException extends Exception {
 	 */
 	public MobileException(String message, Throwable cause) {
 		super(message, cause);
+		this.statusCode = -1;
+	}
+	
+	/**
+	 * Retrieves the HTTP status code returned by the mobile service.
+	 * 
+	 * @return	the HTTP status code, or -1 if the operation did not fail because of an HTTP error
+	 * 			(for example, if the mobile service could not be reached)
+	 */
+	public int getStatusCode() {
+		return statusCode;
 	}
 
 }
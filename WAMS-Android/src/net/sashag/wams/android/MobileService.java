@@ -1,8 +1,13 @@
 package net.sashag.wams.android;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentHashMap;
+
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
 import com.google.android.gcm.GCMRegistrar;
@@ -19,11 +24,30 @@ public class MobileService {
 	private static final String WAMS_PREFS_NAME = "net.sashag.wams.android.prefs";
 	private static final String AUTH_TOKEN_PREF_NAME = "auth_token";
 	private static final String USER_ID_PREF_NAME = "user_id";
+	private static final int DEFAULT_MAX_CONCURRENCY = 4;
+	private static final int DEFAULT_MAX_QUEUED_OPERATIONS = Integer.MAX_VALUE;
+	private static final int DEFAULT_MAX_CONNECTIONS = 4;
+	private static final long DEFAULT_IDLE_CONNECTION_TIMEOUT_MS = 30000;
+	private static final int DEFAULT_QUERY_CACHE_MAX_ENTRIES = 64;
+	private static final long DEFAULT_QUERY_CACHE_MAX_SIZE = 1024 * 1024;
+	private static final long DEFAULT_QUERY_CACHE_TTL_MS = 60000;
 	
 	private String serviceUrl;
 	private Context context;
 	private MobileUser currentUser;
 	private final HttpRequestDecorator requestDecorator = new HttpRequestDecorator();
+	private final MetricsRegistry metrics = new MetricsRegistry();
+	private final MobileServiceExecutor executor = new MobileServiceExecutor(
+			DEFAULT_MAX_CONCURRENCY, DEFAULT_MAX_QUEUED_OPERATIONS, MobileServiceRejectionPolicy.BLOCK);
+	private final HttpTransport transport = new HttpTransport(
+			requestDecorator, metrics, DEFAULT_MAX_CONNECTIONS, DEFAULT_IDLE_CONNECTION_TIMEOUT_MS);
+	private final QueryCache queryCache = new QueryCache(
+			DEFAULT_QUERY_CACHE_MAX_ENTRIES, DEFAULT_QUERY_CACHE_MAX_SIZE, DEFAULT_QUERY_CACHE_TTL_MS);
+	private final InFlightQueries inFlightQueries = new InFlightQueries();
+	private final CallbackCoalescer callbackCoalescer = new CallbackCoalescer();
+	private final ConcurrentHashMap<Class<?>, MobileTable<?>> tables = new ConcurrentHashMap<Class<?>, MobileTable<?>>();
+	private WriteBehindJournal writeBehindJournal;
+	private SQLiteDatabase mirrorDatabase;
 	
 	/**
 	 * Initializes a new mobile service entry point with a service URL and API key
@@ -57,13 +81,415 @@ public class MobileService {
 	}
 	
 	/**
-	 * Retrieves a mobile table to access data in your mobile service.
+	 * Retrieves a mobile table to access data in your mobile service. The table objects are
+	 * cached, so calling this method repeatedly with the same class is cheap and returns the
+	 * same instance.
 	 * 
 	 * @param clazz		the type of elements in the mobile table, a POJO annotated with {@link DataTable DataTable}
 	 * @return			an instance of {@link MobileTable MobileTable} for accessing data
 	 */
+	@SuppressWarnings("unchecked")
 	public <E> MobileTable<E> getTable(Class<E> clazz) {
-		return new MobileTable<E>(context, requestDecorator, serviceUrl, clazz);
+		MobileTable<?> table = tables.get(clazz);
+		if (table == null) {
+			table = new MobileTable<E>(this, clazz);
+			MobileTable<?> existing = tables.putIfAbsent(clazz, table);
+			if (existing != null) {
+				table = existing;
+			}
+		}
+		return (MobileTable<E>) table;
+	}
+	
+	/**
+	 * Begins a batch of table operations that are sent to the mobile service in a single
+	 * OData $batch request. Use this to save round trips when performing many operations
+	 * at once; see {@link MobileServiceBatch} for details. Your mobile service must support
+	 * $batch requests.
+	 * 
+	 * @return	an empty batch that you can add operations to
+	 */
+	public MobileServiceBatch batch() {
+		return new MobileServiceBatch(this);
+	}
+	
+	/**
+	 * Sets the maximum number of asynchronous operations that run concurrently. Operations
+	 * started on all tables of this mobile service share this limit. The default is 4.
+	 * 
+	 * @param maxConcurrency	the maximum number of concurrent operations, must be positive
+	 */
+	public void setMaxConcurrency(int maxConcurrency) {
+		executor.setMaxConcurrency(maxConcurrency);
+	}
+	
+	/**
+	 * Sets the maximum number of asynchronous operations that wait for their turn to run.
+	 * When this many operations are already waiting, the policy set by {@link setRejectionPolicy}
+	 * decides what happens to new operations. By default, the number of waiting operations
+	 * is not limited, so every operation is eventually started.
+	 * 
+	 * @param maxQueuedOperations	the maximum number of waiting operations, must be positive
+	 */
+	public void setMaxQueuedOperations(int maxQueuedOperations) {
+		executor.setMaxQueued(maxQueuedOperations);
+	}
+	
+	/**
+	 * Sets the policy for asynchronous operations that are started when too many operations
+	 * are already waiting to run. The policy only applies after a limit has been set with
+	 * {@link setMaxQueuedOperations}. The default is {@link MobileServiceRejectionPolicy#BLOCK}.
+	 * 
+	 * @param rejectionPolicy	the policy for operations that do not fit in the queue
+	 */
+	public void setRejectionPolicy(MobileServiceRejectionPolicy rejectionPolicy) {
+		executor.setRejectionPolicy(rejectionPolicy);
+	}
+	
+	/**
+	 * Sets the maximum number of HTTP connections that this mobile service keeps open to the
+	 * server. Connections are kept alive and reused by subsequent operations on all tables.
+	 * This setting must be changed before the first operation is performed. The default is 4.
+	 * 
+	 * @param maxConnections	the maximum number of connections, must be positive
+	 * @throws IllegalStateException	thrown if an operation has already been performed
+	 */
+	public void setMaxConnections(int maxConnections) {
+		transport.setMaxConnections(maxConnections);
+	}
+	
+	/**
+	 * Sets how long an HTTP connection may remain unused before it is closed. The default
+	 * is 30 seconds.
+	 * 
+	 * @param idleConnectionTimeoutMs	the idle timeout, in milliseconds, must be positive
+	 */
+	public void setIdleConnectionTimeout(long idleConnectionTimeoutMs) {
+		transport.setIdleConnectionTimeout(idleConnectionTimeoutMs);
+	}
+	
+	/**
+	 * Determines whether responses are requested with gzip compression. Compression reduces
+	 * the amount of data transferred for queries considerably, at a small CPU cost. It is
+	 * enabled by default.
+	 * 
+	 * @param enabled	whether to request compressed responses
+	 */
+	public void setResponseCompressionEnabled(boolean enabled) {
+		transport.setResponseCompressionEnabled(enabled);
+	}
+	
+	/**
+	 * Sets the size above which the bodies of insert and update requests are sent compressed
+	 * with gzip. Use this only if your mobile service accepts compressed requests. By default,
+	 * request bodies are never compressed.
+	 * 
+	 * @param thresholdBytes	the size in bytes above which request bodies are compressed,
+	 * 							or -1 to never compress them
+	 */
+	public void setRequestCompressionThreshold(int thresholdBytes) {
+		transport.setRequestCompressionThreshold(thresholdBytes);
+	}
+	
+	/**
+	 * Sets the connect and read timeouts of HTTP requests to the mobile service. A request fails
+	 * if a connection cannot be established within the connect timeout, or if no data arrives
+	 * for longer than the read timeout while the response is being received. Failed queries,
+	 * updates and deletes are retried; see {@link setRetryPolicy}. To limit the total time of an
+	 * operation, use {@link MobileServiceFuture#setDeadline}. The defaults are 15 seconds to
+	 * connect and 30 seconds to read.
+	 * 
+	 * @param connectTimeoutMs	the connect timeout, in milliseconds, or 0 to wait forever
+	 * @param readTimeoutMs		the read timeout, in milliseconds, or 0 to wait forever
+	 */
+	public void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+		transport.setTimeouts(connectTimeoutMs, readTimeoutMs);
+	}
+	
+	/**
+	 * Sets how requests that fail with a network error or with a transient status code, such as
+	 * 503 (Service Unavailable), are retried. Only requests that are safe to repeat are retried:
+	 * queries, updates and deletes, but not inserts. The delay before each retry is chosen at
+	 * random, up to a limit that doubles with each retry. If the server specifies a longer delay
+	 * with a Retry-After header, it is honored, unless it is longer than the maximum delay.
+	 * The defaults are 2 retries, and delays from 250 milliseconds to 5 seconds.
+	 * 
+	 * @param maxRetries		the maximum number of retries of a request, or 0 to never retry
+	 * @param initialBackoffMs	the limit of the delay before the first retry, in milliseconds
+	 * @param maxBackoffMs		the limit of the delay before any retry, in milliseconds
+	 */
+	public void setRetryPolicy(int maxRetries, long initialBackoffMs, long maxBackoffMs) {
+		transport.setRetryPolicy(maxRetries, initialBackoffMs, maxBackoffMs);
+	}
+	
+	/**
+	 * Sets when requests to the mobile service fail right away instead of being sent. After the
+	 * specified number of consecutive requests fail with a network error or a server error (5xx),
+	 * requests fail with a {@link MobileException} without being sent for the specified duration.
+	 * Then a single request is sent, and if it succeeds, requests are sent normally again. This
+	 * spares the mobile service the load of devices that keep retrying while it is unhealthy.
+	 * The defaults are 5 failures and 30 seconds.
+	 * 
+	 * @param failureThreshold	the number of consecutive failures after which requests fail
+	 * 							right away, or 0 to always send requests
+	 * @param openDurationMs	how long requests fail right away, in milliseconds
+	 */
+	public void setCircuitBreaker(int failureThreshold, long openDurationMs) {
+		transport.setCircuitBreakerLimits(failureThreshold, openDurationMs);
+	}
+	
+	/**
+	 * Sets the limits of the cache used by queries whose fetch policy is not
+	 * {@link MobileServiceFetchPolicy#NETWORK_ONLY}. When either limit is exceeded, the least
+	 * recently used results are evicted. The defaults are 64 queries and 1M characters of JSON.
+	 * 
+	 * @param maxEntries	the maximum number of queries whose results are cached
+	 * @param maxSize		the maximum total size of the cached results, in characters of
+	 * 						the JSON they were deserialized from
+	 */
+	public void setQueryCacheLimits(int maxEntries, long maxSize) {
+		queryCache.setLimits(maxEntries, maxSize);
+	}
+	
+	/**
+	 * Sets how long cached query results are considered fresh. The default is one minute.
+	 * 
+	 * @param timeToLiveMs	the time-to-live of cached results, in milliseconds
+	 */
+	public void setQueryCacheTimeToLive(long timeToLiveMs) {
+		queryCache.setTimeToLive(timeToLiveMs);
+	}
+	
+	/**
+	 * Removes all results from the query cache. Changes made through this mobile service remove
+	 * the results of the affected table automatically, so you only need to call this method if
+	 * the data has been changed in some other way.
+	 */
+	public void clearQueryCache() {
+		queryCache.clear();
+	}
+	
+	/**
+	 * Determines whether the callbacks of asynchronous operations are delivered in batches. By
+	 * default, every callback is posted to its {@link android.os.Handler} as a separate message;
+	 * when hundreds of operations complete together, such as the inserts of a bulk upload, the
+	 * messages flood the UI thread and the UI stutters. With coalesced delivery, callbacks that
+	 * complete within a frame (16ms) of one another are posted as a single message, which invokes
+	 * them in the order in which they completed. A lone callback is still posted right away.
+	 * 
+	 * @param enabled	whether to coalesce callbacks
+	 * @param listener	a listener notified after each batch of callbacks, or <b>null</b>
+	 */
+	public void setCoalescedDelivery(boolean enabled, MobileServiceDeliveryListener listener) {
+		callbackCoalescer.setEnabled(enabled, listener);
+	}
+	
+	/**
+	 * Determines whether the callbacks of asynchronous operations are delivered in batches.
+	 * See {@link setCoalescedDelivery(boolean, MobileServiceDeliveryListener)} for details.
+	 * 
+	 * @param enabled	whether to coalesce callbacks
+	 */
+	public void setCoalescedDelivery(boolean enabled) {
+		setCoalescedDelivery(enabled, null);
+	}
+	
+	/**
+	 * Retrieves statistics of the messages that have delivered the callbacks of asynchronous
+	 * operations: how many there were, how many callbacks they invoked, and how long they took.
+	 * 
+	 * @param reset	whether to reset the statistics after retrieving them
+	 * @return		a snapshot of the statistics
+	 */
+	public MobileServiceDeliveryStats getDeliveryStats(boolean reset) {
+		return callbackCoalescer.getStats(reset);
+	}
+	
+	/**
+	 * Takes a snapshot of the metrics of this mobile service: the latency of the operations on each
+	 * table, the rows read and the time spent converting them, the status codes returned by the
+	 * mobile service, the bytes sent and received, and the number of queued operations and requests
+	 * in flight. The metrics are always collected; collecting them costs a few atomic additions
+	 * per operation.
+	 * 
+	 * @return	a snapshot of the metrics
+	 */
+	public MobileServiceMetrics getMetrics() {
+		return metrics.snapshot(executor.getQueueDepth());
+	}
+	
+	/**
+	 * Takes a snapshot of the metrics of this mobile service and passes it to the specified
+	 * exporter, such as a {@link MobileServiceTextExporter}. See {@link getMetrics} for details.
+	 * 
+	 * @param exporter		the exporter that receives the snapshot
+	 * @throws IOException	thrown if the exporter failed to write the snapshot
+	 */
+	public void exportMetrics(MobileServiceMetricsExporter exporter) throws IOException {
+		exporter.export(getMetrics());
+	}
+	
+	/**
+	 * Enables or disables tracing of HTTP requests. With tracing enabled, every request is sent with
+	 * a unique id in the X-ZUMO-TRACE-ID header, which retries of the request share, so that it can
+	 * be found in the logs of your mobile service. The time each request reached each of its phases
+	 * is recorded in a fixed-size buffer of the most recent requests: when a connection was obtained,
+	 * when the request was sent, when the first byte of the response arrived, and when the response
+	 * was read, along with the time spent downloading, parsing, and converting rows to objects.
+	 * Recording a request does not allocate memory. Tracing is disabled by default.
+	 * 
+	 * @param bufferSize	the number of requests to keep in the buffer, or 0 to disable tracing
+	 * @param dumpOnError	whether to write the buffer to the log when a request fails with a
+	 * 						network error or an error status code
+	 */
+	public void setTracing(int bufferSize, boolean dumpOnError) {
+		if (bufferSize < 0) {
+			throw new IllegalArgumentException("Trace buffer size must not be negative");
+		}
+		transport.setTracer(bufferSize == 0 ? null : new RequestTracer(bufferSize, dumpOnError));
+	}
+	
+	/**
+	 * Writes the traces of the most recent HTTP requests as text, oldest first, one request per
+	 * line. See {@link setTracing} for details. Nothing is written if tracing is disabled.
+	 * 
+	 * @param writer		the writer the traces are written to; it is flushed, but not closed
+	 * @throws IOException	thrown if the writer failed
+	 */
+	public void dumpTraces(Writer writer) throws IOException {
+		RequestTracer tracer = transport.getTracer();
+		if (tracer != null) {
+			tracer.dump(writer);
+		}
+	}
+	
+	/**
+	 * Sends changes made with write-behind enabled (see {@link MobileTable#setWriteBehindEnabled})
+	 * to the mobile service right away. Call this method when you know that the network is
+	 * available again, instead of waiting for the next automatic retry.
+	 */
+	public void flushPendingWrites() {
+		getWriteBehindJournal().flush();
+	}
+	
+	/**
+	 * Retrieves the number of changes made with write-behind enabled that the mobile service
+	 * has not acknowledged yet.
+	 * 
+	 * @return	the number of pending changes
+	 */
+	public int getPendingWriteCount() {
+		return getWriteBehindJournal().getPendingCount();
+	}
+	
+	/**
+	 * Shuts down this mobile service. Asynchronous operations that have already been started
+	 * still complete, but new asynchronous operations fail with a {@link MobileException}.
+	 * Open HTTP connections are closed once the pending operations complete. Call this method
+	 * when you no longer need the mobile service, e.g. from your activity's onDestroy method.
+	 */
+	public void shutdown() {
+		executor.shutdown(new Runnable() {
+			public void run() {
+				transport.shutdown();
+			}
+		});
+	}
+	
+	Context getContext() {
+		return context;
+	}
+	
+	String getServiceUrl() {
+		return serviceUrl;
+	}
+	
+	HttpTransport getTransport() {
+		return transport;
+	}
+	
+	MobileServiceExecutor getExecutor() {
+		return executor;
+	}
+	
+	QueryCache getQueryCache() {
+		return queryCache;
+	}
+	
+	InFlightQueries getInFlightQueries() {
+		return inFlightQueries;
+	}
+	
+	CallbackCoalescer getCallbackCoalescer() {
+		return callbackCoalescer;
+	}
+	
+	MetricsRegistry getMetricsRegistry() {
+		return metrics;
+	}
+	
+	String getAuthenticationToken() {
+		return requestDecorator.getAuthenticationToken();
+	}
+	
+	//Opening the journal sends any changes left over from a previous run of the application
+	synchronized WriteBehindJournal getWriteBehindJournal() {
+		if (writeBehindJournal == null) {
+			writeBehindJournal = new WriteBehindJournal(context, getUserDatabaseName(WriteBehindJournal.DATABASE_NAME_PREFIX),
+					serviceUrl, transport, executor, queryCache);
+		}
+		return writeBehindJournal;
+	}
+	
+	//All the mirrors of a user of a mobile service share a single database
+	synchronized SQLiteDatabase getMirrorDatabase() {
+		if (mirrorDatabase == null) {
+			mirrorDatabase = MobileTableMirror.openDatabase(context, getUserDatabaseName(MobileTableMirror.DATABASE_NAME_PREFIX));
+		}
+		return mirrorDatabase;
+	}
+	
+	//Replicas and pending changes belong to the user who was logged in, so each user has databases of their own
+	private String getUserDatabaseName(String prefix) {
+		String name = prefix + Integer.toHexString(serviceUrl.hashCode());
+		if (currentUser != null) {
+			//User ids look like "Facebook:1234"
+			name += "-" + currentUser.getUserId().replaceAll("[^A-Za-z0-9]", "_");
+		}
+		return name + ".db";
+	}
+	
+	/**
+	 * Switches to the specified user, or to no user if it is <b>null</b>. If the user changes, the
+	 * journal and the mirror database of the previous user are closed first, so that none of their
+	 * changes are sent with the new user's authentication token.
+	 */
+	private synchronized void setCurrentUser(MobileUser user) {
+		String previousId = currentUser != null ? currentUser.getUserId() : null;
+		String newId = user != null ? user.getUserId() : null;
+		boolean reopenJournal = false;
+		if (previousId == null ? newId != null : !previousId.equals(newId)) {
+			if (writeBehindJournal != null) {
+				writeBehindJournal.close();
+				writeBehindJournal = null;
+				reopenJournal = true;
+			}
+			if (mirrorDatabase != null) {
+				mirrorDatabase.close();
+				mirrorDatabase = null;
+			}
+		}
+		currentUser = user;
+		if (user != null) {
+			requestDecorator.setAuthenticationToken(user.getAuthenticationToken());
+		} else {
+			requestDecorator.clearAuthenticationToken();
+		}
+		queryCache.clear(); //Cached results might not be visible to the new user
+		if (reopenJournal) {
+			//Sends the changes the new user left over when they last logged out
+			getWriteBehindJournal();
+		}
 	}
 	
 	/**
@@ -139,8 +565,7 @@ public class MobileService {
 				} else if (authDialog.wasCancelled()) {
 					callback.cancelled();
 				} else {
-					currentUser = authDialog.getUser();
-					requestDecorator.setAuthenticationToken(currentUser.getAuthenticationToken());
+					setCurrentUser(authDialog.getUser());
 					persistLoginInfo();
 					callback.completedSuccessfully(currentUser);
 				}
@@ -178,11 +603,14 @@ public class MobileService {
 	 * and does not modify any information on the server. If you call the {@link login} method
 	 * again, the user may see a very brief authentication window, because the authentication
 	 * provider might still remember his credentials.
+	 * <p>
+	 * Mirrors obtained while the user was logged in can no longer be used. Changes the user made in
+	 * write-behind mode that have not been sent yet stay on the device, and are sent when the user
+	 * logs in again.
 	 */
 	public void logout() {
 		if (currentUser != null) {
-			requestDecorator.clearAuthenticationToken();
-			currentUser = null;
+			setCurrentUser(null);
 			clearLoginInfo();
 		}
 	}
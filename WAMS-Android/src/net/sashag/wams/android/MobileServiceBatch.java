@@ -0,0 +1,586 @@
+package net.sashag.wams.android;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.HttpStatus;
+import org.json.JSONObject;
+
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Sends many table operations to a mobile service in a single OData $batch request, and
+ * delivers the result of each operation to its own callback. A batch turns N round trips
+ * into one, which makes a big difference on high-latency mobile networks. The mobile service
+ * must support $batch requests at "&lt;service URL&gt;/$batch".
+ * <p>
+ * Obtain a batch from {@link MobileService#batch}, add operations on any of the service's
+ * tables, and then call {@link #execute} or {@link #executeAsync}. Every insert, update and
+ * delete is sent in a changeset of its own, so the failure of one operation does not roll
+ * back the others. Queries are evaluated in the order in which they were added, so a query
+ * observes the effects of the operations added before it.
+ * <p>
+ * An example of inserting two items and reading them back in a single request:
+ * <pre>
+ * mobileService.batch()
+ *     .insert(apartments, apartment1, insertCallback)
+ *     .insert(apartments, apartment2, insertCallback)
+ *     .select(apartments.where().equal("published", true), selectCallback)
+ *     .executeAsync();
+ * </pre>
+ * A batch can be executed only once.
+ *
+ * @author Sasha Goldshtein
+ *
+ */
+public class MobileServiceBatch {
+
+	private static final String CRLF = "\r\n";
+
+	private final MobileService mobileService;
+	private final List<Operation> operations = new ArrayList<Operation>();
+	private boolean executed;
+
+	MobileServiceBatch(MobileService mobileService) {
+		this.mobileService = mobileService;
+	}
+
+	/**
+	 * Adds an insert operation to the batch. When the batch completes, the provided item is
+	 * modified to include the id returned from the mobile service.
+	 *
+	 * @param table		the table to insert the item into
+	 * @param item		the item to insert
+	 * @param callback	the callback invoked when the batch completes, specifying an error if
+	 * 					the insert failed
+	 * @return			this batch, for adding further operations
+	 */
+	public <E> MobileServiceBatch insert(MobileTable<E> table, final E item, final MobileServiceCallback<E> callback) {
+		final TableBinding<E> binding = table.getBinding();
+		String body;
+		try {
+			body = binding.toJsonObject(item, /*withId*/false).toString();
+		} catch (Exception e) {
+			return addFailed(callback, new MobileException("Error creating item", e));
+		}
+		return add(new Operation(HttpTransport.POST, table.getTableName(), table.getInsertUrl(), body) {
+			Runnable completed(int statusCode, String content) {
+				if (statusCode != HttpStatus.SC_CREATED) {
+					return failed(new MobileException("Error creating new item, status code: " + statusCode, statusCode));
+				}
+				try {
+					binding.setId(item, new JSONObject(content).getInt("id"));
+				} catch (Exception e) {
+					return failed(new MobileException("Error creating item", e));
+				}
+				return new Runnable() {
+					public void run() {
+						callback.completedSuccessfully(item);
+					}
+				};
+			}
+
+			Runnable failed(MobileException exception) {
+				return errorCallback(callback, exception);
+			}
+		});
+	}
+
+	/**
+	 * Adds an update operation to the batch. The id field of the item must be set.
+	 *
+	 * @param table		the table that contains the item
+	 * @param item		the item to update
+	 * @param callback	the callback invoked when the batch completes, specifying an error if
+	 * 					the update failed
+	 * @return			this batch, for adding further operations
+	 */
+	public <E> MobileServiceBatch update(MobileTable<E> table, E item, MobileServiceCallback<E> callback) {
+		TableBinding<E> binding = table.getBinding();
+		String url;
+		String body;
+		try {
+			int id = binding.getId(item);
+			url = table.getUpdateUrlForId(id);
+			body = binding.toJsonObject(item, /*withId*/true).toString();
+			//The batch sends the item in full, so its next tracked update must not be compared with older values
+			table.untrackItem(id);
+		} catch (Exception e) {
+			return addFailed(callback, new MobileException("Error updating item", e));
+		}
+		return add(new ItemOperation<E>(HttpTransport.PATCH, table.getTableName(), url, body, item, callback,
+				HttpStatus.SC_OK, "Error updating item, status code: "));
+	}
+
+	/**
+	 * Adds a delete operation to the batch. The id field of the item must be set.
+	 *
+	 * @param table		the table that contains the item
+	 * @param item		the item to delete
+	 * @param callback	the callback invoked when the batch completes, specifying an error if
+	 * 					the delete failed
+	 * @return			this batch, for adding further operations
+	 */
+	public <E> MobileServiceBatch delete(MobileTable<E> table, E item, MobileServiceCallback<E> callback) {
+		String url;
+		try {
+			int id = table.getBinding().getId(item);
+			url = table.getDeleteUrlForId(id);
+			table.untrackItem(id);
+		} catch (Exception e) {
+			return addFailed(callback, new MobileException("Error deleting item", e));
+		}
+		return add(new ItemOperation<E>(HttpTransport.DELETE, table.getTableName(), url, null, item, callback,
+				HttpStatus.SC_NO_CONTENT, "Error deleting item, status code: "));
+	}
+
+	/**
+	 * Adds a query to the batch.
+	 *
+	 * @param query		the query to evaluate, obtained from {@link MobileTable#where}
+	 * @param callback	the callback invoked when the batch completes, providing the list of
+	 * 					items or an exception if one occurred
+	 * @return			this batch, for adding further operations
+	 */
+	public <E> MobileServiceBatch select(final MobileTable<E>.QueryBuilder query, final MobileServiceCallbackWithResults<E> callback) {
+		return add(new Operation(HttpTransport.GET, query.getTable().getTableName(), query.buildQueryUrl(), null) {
+			Runnable completed(int statusCode, String content) {
+				if (statusCode != HttpStatus.SC_OK) {
+					return failed(new MobileException("Error fetching objects, status code: " + statusCode, statusCode));
+				}
+				final List<E> results = new ArrayList<E>();
+				try {
+					JsonRowReader reader = new JsonRowReader(new StringReader(content));
+					reader.beginArray();
+					while (reader.hasNext()) {
+						results.add(query.toObject(reader.nextObject()));
+					}
+					reader.endArray();
+				} catch (Exception e) {
+					return failed(new MobileException("Error fetching objects", e));
+				}
+				return new Runnable() {
+					public void run() {
+						callback.completedSuccessfully(results);
+					}
+				};
+			}
+
+			Runnable failed(final MobileException exception) {
+				return new Runnable() {
+					public void run() {
+						callback.errorOccurred(exception);
+					}
+				};
+			}
+		});
+	}
+
+	/**
+	 * Sends the batch to the mobile service and waits for the response. The callback of each
+	 * operation is invoked on the calling thread, in the order in which the operations were
+	 * added. If the batch request as a whole fails, every callback receives the error.
+	 *
+	 * @throws IllegalStateException	thrown if the batch has already been executed
+	 */
+	public void execute() {
+		deliver(send(), null, null);
+	}
+
+	/**
+	 * Sends the batch to the mobile service in the background. The callback of each operation
+	 * is posted to the provided {@link Handler}, in the order in which the operations were added.
+	 *
+	 * @param handler	callbacks are posted to this handler
+	 * @return			a future that completes when the callbacks have been posted; cancelling it
+	 * 					aborts the batch request, and the callbacks of the operations are not invoked
+	 * @throws IllegalStateException	thrown if the batch has already been executed
+	 */
+	public MobileServiceFuture<Void> executeAsync(final Handler handler) {
+		markExecuted();
+		final MobileServiceFuture<Void> future = new MobileServiceFuture<Void>(null, handler, mobileService.getCallbackCoalescer());
+		try {
+			mobileService.getExecutor().execute(new Runnable() {
+				public void run() {
+					future.run(new MobileServiceFuture.Task<Void>() {
+						public Void run() {
+							deliver(sendOperations(), handler, future.getCancellation());
+							return null;
+						}
+					});
+				}
+			}, MobileServiceExecutor.Priority.BACKGROUND);
+		} catch (RejectedExecutionException e) {
+			MobileException exception = new MobileException("Error scheduling batch operation", e);
+			deliver(failAll(exception), handler, null);
+			future.failed(exception);
+		}
+		return future;
+	}
+
+	/**
+	 * Sends the batch to the mobile service in the background. The callback of each operation
+	 * is invoked on the UI thread.
+	 *
+	 * @return	a future that can be used to cancel the batch
+	 * @throws IllegalStateException	thrown if the batch has already been executed
+	 */
+	public MobileServiceFuture<Void> executeAsync() {
+		return executeAsync(new Handler(mobileService.getContext().getMainLooper()));
+	}
+
+	private MobileServiceBatch add(Operation operation) {
+		if (executed) {
+			throw new IllegalStateException("Operations cannot be added to a batch that has already been executed");
+		}
+		operations.add(operation);
+		return this;
+	}
+
+	//Adds an operation that could not even be encoded, so that its callback is still invoked in order
+	private <E> MobileServiceBatch addFailed(final MobileServiceCallback<E> callback, final MobileException exception) {
+		return add(new Operation(null, null, null, null) {
+			Runnable completed(int statusCode, String content) {
+				return failed(exception);
+			}
+
+			Runnable failed(MobileException ignored) {
+				return errorCallback(callback, exception);
+			}
+		});
+	}
+
+	private void markExecuted() {
+		if (executed) {
+			throw new IllegalStateException("The batch has already been executed");
+		}
+		executed = true;
+	}
+
+	private List<Runnable> send() {
+		markExecuted();
+		return sendOperations();
+	}
+
+	private List<Runnable> sendOperations() {
+		List<Operation> sent = new ArrayList<Operation>();
+		for (Operation operation : operations) {
+			if (operation.method != null) {
+				sent.add(operation);
+			}
+		}
+		List<ResponsePart> responses;
+		if (sent.isEmpty()) {
+			responses = new ArrayList<ResponsePart>();
+		} else {
+			try {
+				responses = sendBatch(sent);
+			} catch (MobileException e) {
+				return failAll(e);
+			} finally {
+				for (Operation operation : sent) {
+					if (!HttpTransport.GET.equals(operation.method)) {
+						mobileService.getQueryCache().invalidateTable(operation.tableName);
+					}
+				}
+			}
+		}
+		List<Runnable> callbacks = new ArrayList<Runnable>(operations.size());
+		int index = 0;
+		for (Operation operation : operations) {
+			if (operation.method == null) {
+				callbacks.add(operation.failed(null));
+			} else if (index < responses.size()) {
+				ResponsePart response = responses.get(index++);
+				callbacks.add(operation.completed(response.statusCode, response.content));
+			} else {
+				callbacks.add(operation.failed(new MobileException("The batch response does not contain a response for this operation")));
+			}
+		}
+		return callbacks;
+	}
+
+	private List<Runnable> failAll(MobileException exception) {
+		List<Runnable> callbacks = new ArrayList<Runnable>(operations.size());
+		for (Operation operation : operations) {
+			callbacks.add(operation.failed(exception));
+		}
+		return callbacks;
+	}
+
+	//Callbacks are not invoked if the batch is cancelled, even if they have already been posted
+	private void deliver(List<Runnable> callbacks, Handler handler, final Cancellation cancellation) {
+		CallbackCoalescer coalescer = mobileService.getCallbackCoalescer();
+		for (final Runnable callback : callbacks) {
+			if (handler == null) {
+				callback.run();
+			} else if (cancellation == null) {
+				coalescer.post(handler, callback);
+			} else {
+				coalescer.post(handler, new Runnable() {
+					public void run() {
+						if (!cancellation.isCancelled()) {
+							callback.run();
+						}
+					}
+				});
+			}
+		}
+	}
+
+	private List<ResponsePart> sendBatch(List<Operation> sent) throws MobileException {
+		String batchBoundary = "batch_" + UUID.randomUUID();
+		String body = buildRequestBody(sent, batchBoundary);
+		String content;
+		String contentType;
+		int statusCode;
+		try {
+			HttpTransport.Response response = mobileService.getTransport().execute(HttpTransport.POST,
+					mobileService.getServiceUrl() + "/$batch", body, "multipart/mixed; boundary=" + batchBoundary);
+			try {
+				statusCode = response.getStatusCode();
+				if (Log.isLoggable("MobileServiceBatch", Log.DEBUG)) {
+					Log.d("MobileServiceBatch", "HTTP POST request for batch of " + sent.size() + " operations returned status code: " + statusCode);
+				}
+				contentType = response.getHeader("Content-Type");
+				content = response.readString();
+			} finally {
+				response.close();
+			}
+		} catch (Exception e) {
+			throw new MobileException("Error sending batch", e);
+		}
+		if (statusCode != HttpStatus.SC_ACCEPTED && statusCode != HttpStatus.SC_OK) {
+			throw new MobileException("Error sending batch, status code: " + statusCode, statusCode);
+		}
+		String responseBoundary = getBoundary(contentType);
+		if (responseBoundary == null) {
+			throw new MobileException("The batch response is not a multipart response: " + contentType);
+		}
+		List<ResponsePart> responses = new ArrayList<ResponsePart>(sent.size());
+		for (String part : splitMultipart(content, responseBoundary)) {
+			responses.add(parsePart(part));
+		}
+		return responses;
+	}
+
+	private static String buildRequestBody(List<Operation> sent, String batchBoundary) {
+		StringBuilder body = new StringBuilder(256 * sent.size());
+		int contentId = 0;
+		for (Operation operation : sent) {
+			body.append("--").append(batchBoundary).append(CRLF);
+			if (HttpTransport.GET.equals(operation.method)) {
+				appendRequest(body, operation, -1);
+			} else {
+				//One changeset per operation, so that a failed operation doesn't roll back the others
+				String changesetBoundary = "changeset_" + UUID.randomUUID();
+				body.append("Content-Type: multipart/mixed; boundary=").append(changesetBoundary).append(CRLF);
+				body.append(CRLF);
+				body.append("--").append(changesetBoundary).append(CRLF);
+				appendRequest(body, operation, ++contentId);
+				body.append("--").append(changesetBoundary).append("--").append(CRLF);
+			}
+		}
+		body.append("--").append(batchBoundary).append("--").append(CRLF);
+		return body.toString();
+	}
+
+	private static void appendRequest(StringBuilder body, Operation operation, int contentId) {
+		body.append("Content-Type: application/http").append(CRLF);
+		body.append("Content-Transfer-Encoding: binary").append(CRLF);
+		if (contentId != -1) {
+			body.append("Content-ID: ").append(contentId).append(CRLF);
+		}
+		body.append(CRLF);
+		body.append(operation.method).append(' ').append(operation.url).append(" HTTP/1.1").append(CRLF);
+		body.append("Accept: application/json").append(CRLF);
+		if (operation.body != null) {
+			body.append("Content-Type: application/json").append(CRLF);
+			body.append(CRLF);
+			body.append(operation.body).append(CRLF);
+		} else {
+			body.append(CRLF);
+		}
+	}
+
+	//A part is either an application/http response, or a changeset that contains one
+	private static ResponsePart parsePart(String part) throws MobileException {
+		String[] headersAndBody = splitHeaders(part);
+		String partContentType = getHeaderValue(headersAndBody[0], "Content-Type");
+		if (partContentType != null && partContentType.toLowerCase().startsWith("multipart/mixed")) {
+			String changesetBoundary = getBoundary(partContentType);
+			List<String> changesetParts = changesetBoundary != null ?
+					splitMultipart(headersAndBody[1], changesetBoundary) : new ArrayList<String>();
+			if (changesetParts.isEmpty()) {
+				throw new MobileException("The batch response contains an empty changeset");
+			}
+			return parsePart(changesetParts.get(0));
+		}
+		String[] statusAndBody = splitHeaders(headersAndBody[1]);
+		String statusLine = statusAndBody[0];
+		int lineEnd = statusLine.indexOf('\n');
+		if (lineEnd != -1) {
+			statusLine = statusLine.substring(0, lineEnd);
+		}
+		String[] statusFields = statusLine.trim().split(" ");
+		if (statusFields.length < 2 || !statusFields[0].startsWith("HTTP/")) {
+			throw new MobileException("The batch response contains an invalid status line: " + statusLine);
+		}
+		try {
+			return new ResponsePart(Integer.parseInt(statusFields[1]), statusAndBody[1]);
+		} catch (NumberFormatException e) {
+			throw new MobileException("The batch response contains an invalid status line: " + statusLine, e);
+		}
+	}
+
+	private static List<String> splitMultipart(String content, String boundary) {
+		List<String> parts = new ArrayList<String>();
+		String delimiter = "--" + boundary;
+		int index = content.indexOf(delimiter);
+		while (index != -1) {
+			int start = index + delimiter.length();
+			if (content.startsWith("--", start)) {
+				break; //The closing delimiter
+			}
+			int lineEnd = content.indexOf('\n', start);
+			if (lineEnd == -1) {
+				break;
+			}
+			int end = content.indexOf(delimiter, lineEnd + 1);
+			if (end == -1) {
+				break;
+			}
+			parts.add(stripTrailingLineBreak(content.substring(lineEnd + 1, end)));
+			index = end;
+		}
+		return parts;
+	}
+
+	//Splits a block of headers from the body that follows the first empty line
+	private static String[] splitHeaders(String part) {
+		int separator = part.indexOf("\r\n\r\n");
+		int separatorLength = 4;
+		int lfSeparator = part.indexOf("\n\n");
+		if (lfSeparator != -1 && (separator == -1 || lfSeparator < separator)) {
+			separator = lfSeparator;
+			separatorLength = 2;
+		}
+		if (separator == -1) {
+			return new String[] { part, "" };
+		}
+		return new String[] { part.substring(0, separator), part.substring(separator + separatorLength) };
+	}
+
+	private static String getHeaderValue(String headers, String name) {
+		for (String line : headers.split("\n")) {
+			int colon = line.indexOf(':');
+			if (colon != -1 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+				return line.substring(colon + 1).trim();
+			}
+		}
+		return null;
+	}
+
+	private static String getBoundary(String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		for (String parameter : contentType.split(";")) {
+			parameter = parameter.trim();
+			if (parameter.toLowerCase().startsWith("boundary=")) {
+				String boundary = parameter.substring("boundary=".length());
+				if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+					boundary = boundary.substring(1, boundary.length() - 1);
+				}
+				return boundary;
+			}
+		}
+		return null;
+	}
+
+	private static String stripTrailingLineBreak(String text) {
+		if (text.endsWith("\r\n")) {
+			return text.substring(0, text.length() - 2);
+		}
+		if (text.endsWith("\n")) {
+			return text.substring(0, text.length() - 1);
+		}
+		return text;
+	}
+
+	private static <E> Runnable errorCallback(final MobileServiceCallback<E> callback, final MobileException exception) {
+		return new Runnable() {
+			public void run() {
+				callback.errorOccurred(exception);
+			}
+		};
+	}
+
+	/**
+	 * An operation in the batch. Produces the invocation of its callback from the operation's
+	 * response, so that the invocation can run on the calling thread or be posted to a handler.
+	 */
+	private abstract static class Operation {
+		final String method;
+		final String tableName;
+		final String url;
+		final String body;
+
+		Operation(String method, String tableName, String url, String body) {
+			this.method = method;
+			this.tableName = tableName;
+			this.url = url;
+			this.body = body;
+		}
+
+		abstract Runnable completed(int statusCode, String content);
+
+		abstract Runnable failed(MobileException exception);
+	}
+
+	//An update or delete, which succeeds with a single status code and passes the item back
+	private static class ItemOperation<E> extends Operation {
+		private final E item;
+		private final MobileServiceCallback<E> callback;
+		private final int successStatusCode;
+		private final String errorMessage;
+
+		ItemOperation(String method, String tableName, String url, String body, E item, MobileServiceCallback<E> callback,
+				int successStatusCode, String errorMessage) {
+			super(method, tableName, url, body);
+			this.item = item;
+			this.callback = callback;
+			this.successStatusCode = successStatusCode;
+			this.errorMessage = errorMessage;
+		}
+
+		Runnable completed(int statusCode, String content) {
+			if (statusCode != successStatusCode) {
+				return failed(new MobileException(errorMessage + statusCode, statusCode));
+			}
+			return new Runnable() {
+				public void run() {
+					callback.completedSuccessfully(item);
+				}
+			};
+		}
+
+		Runnable failed(MobileException exception) {
+			return errorCallback(callback, exception);
+		}
+	}
+
+	private static class ResponsePart {
+		final int statusCode;
+		final String content;
+
+		ResponsePart(int statusCode, String content) {
+			this.statusCode = statusCode;
+			this.content = content;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package net.sashag.wams.android;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reports the outcome of a bulk operation, such as {@link MobileTable#insertAll}, for each
+ * of the items it was applied to. A bulk operation does not stop at the first failure; check
+ * {@link #getFailures} to find out which items were not processed.
+ *
+ * @author Sasha Goldshtein
+ *
+ * @param <E> the type of items the operation was applied to
+ */
+public class MobileServiceBulkResult<E> {
+
+	/**
+	 * The outcome of a bulk operation for a single item.
+	 *
+	 * @param <E> the type of the item
+	 */
+	public static class Entry<E> {
+		private final E item;
+		private final int statusCode;
+		private final MobileException exception;
+
+		Entry(E item, int statusCode, MobileException exception) {
+			this.item = item;
+			this.statusCode = statusCode;
+			this.exception = exception;
+		}
+
+		/**
+		 * @return	the item the operation was applied to
+		 */
+		public E getItem() {
+			return item;
+		}
+
+		/**
+		 * @return	whether the operation succeeded for this item
+		 */
+		public boolean isSuccessful() {
+			return exception == null;
+		}
+
+		/**
+		 * @return	the HTTP status code returned for this item, or -1 if no response was received
+		 */
+		public int getStatusCode() {
+			return statusCode;
+		}
+
+		/**
+		 * @return	the error that occurred for this item, or <b>null</b> if the operation succeeded
+		 */
+		public MobileException getException() {
+			return exception;
+		}
+	}
+
+	private final List<Entry<E>> entries;
+	private final int failureCount;
+
+	MobileServiceBulkResult(List<Entry<E>> entries) {
+		this.entries = Collections.unmodifiableList(entries);
+		int failures = 0;
+		for (Entry<E> entry : entries) {
+			if (!entry.isSuccessful()) {
+				++failures;
+			}
+		}
+		this.failureCount = failures;
+	}
+
+	/**
+	 * Retrieves the outcome for every item, in the order in which the items were provided.
+	 *
+	 * @return	a read-only list of outcomes
+	 */
+	public List<Entry<E>> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Retrieves the outcomes for the items the operation failed for.
+	 *
+	 * @return	a list of failed outcomes, or an empty list if all items succeeded
+	 */
+	public List<Entry<E>> getFailures() {
+		List<Entry<E>> failures = new ArrayList<Entry<E>>(failureCount);
+		for (Entry<E> entry : entries) {
+			if (!entry.isSuccessful()) {
+				failures.add(entry);
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * @return	the number of items the operation succeeded for
+	 */
+	public int getSuccessCount() {
+		return entries.size() - failureCount;
+	}
+
+	/**
+	 * @return	the number of items the operation failed for
+	 */
+	public int getFailureCount() {
+		return failureCount;
+	}
+
+	/**
+	 * @return	whether the operation succeeded for all items
+	 */
+	public boolean isSuccessful() {
+		return failureCount == 0;
+	}
+}
@@ -0,0 +1,25 @@
+package net.sashag.wams.android;
+
+/**
+ * Starts an asynchronous operation that depends on the result of a previous one. See
+ * {@link MobileServiceFuture#then}.
+ *
+ * @author Sasha Goldshtein
+ *
+ * @param <T> the type of the result of the previous operation
+ * @param <U> the type of the result of the operation this continuation starts
+ */
+public interface MobileServiceContinuation<T, U> {
+
+	/**
+	 * Called on a background thread when the previous operation completes successfully. Start the
+	 * next operation with one of the asynchronous methods, passing <b>null</b> as its callback,
+	 * and return its future.
+	 *
+	 * @param result			the result of the previous operation
+	 * @return					the future of the next operation, or <b>null</b> to complete with a
+	 * 							<b>null</b> result
+	 * @throws MobileException	thrown to complete with an error
+	 */
+	MobileServiceFuture<U> apply(T result) throws MobileException;
+}
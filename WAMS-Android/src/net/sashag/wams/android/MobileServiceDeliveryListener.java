@@ -0,0 +1,21 @@
+package net.sashag.wams.android;
+
+/**
+ * Notified when a batch of callbacks has been delivered with coalesced delivery enabled; see
+ * {@link MobileService#setCoalescedDelivery}. Use it to refresh your UI once per batch, e.g. to
+ * call notifyDataSetChanged once for many completed inserts, instead of once per callback.
+ * 
+ * @author Sasha Goldshtein
+ *
+ */
+public interface MobileServiceDeliveryListener {
+
+	/**
+	 * Called on the thread of the handler the callbacks were posted to, right after they have
+	 * been invoked.
+	 * 
+	 * @param callbackCount	the number of callbacks that were invoked in the batch
+	 */
+	void callbacksDelivered(int callbackCount);
+	
+}
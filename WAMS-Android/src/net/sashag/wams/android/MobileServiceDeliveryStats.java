@@ -0,0 +1,76 @@
+package net.sashag.wams.android;
+
+/**
+ * Statistics of the callbacks of asynchronous operations that a {@link MobileService} has posted
+ * to handlers, such as the UI thread's, since it was created or since the statistics were reset.
+ * Compare the number of messages with the number of callbacks to see how well coalesced delivery
+ * works, and the time spent per message to see how much each message holds up its thread.
+ * Obtain a snapshot with {@link MobileService#getDeliveryStats}.
+ * 
+ * @author Sasha Goldshtein
+ *
+ */
+public class MobileServiceDeliveryStats {
+
+	private final long messageCount;
+	private final long callbackCount;
+	private final int largestBatch;
+	private final long totalTimeNanos;
+	private final long maxTimeNanos;
+
+	MobileServiceDeliveryStats(long messageCount, long callbackCount, int largestBatch, long totalTimeNanos, long maxTimeNanos) {
+		this.messageCount = messageCount;
+		this.callbackCount = callbackCount;
+		this.largestBatch = largestBatch;
+		this.totalTimeNanos = totalTimeNanos;
+		this.maxTimeNanos = maxTimeNanos;
+	}
+
+	/**
+	 * @return	the number of messages that ran on the handlers' threads
+	 */
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+	/**
+	 * @return	the number of callbacks invoked by those messages
+	 */
+	public long getCallbackCount() {
+		return callbackCount;
+	}
+
+	/**
+	 * @return	the largest number of callbacks invoked by a single message
+	 */
+	public int getLargestBatch() {
+		return largestBatch;
+	}
+
+	/**
+	 * @return	the total time the messages took to run, including the delivery listener, in microseconds
+	 */
+	public long getTotalTimeMicros() {
+		return totalTimeNanos / 1000;
+	}
+
+	/**
+	 * @return	the average time a message took to run, in microseconds
+	 */
+	public long getAverageTimeMicros() {
+		return messageCount == 0 ? 0 : totalTimeNanos / messageCount / 1000;
+	}
+
+	/**
+	 * @return	the longest time a single message took to run, in microseconds
+	 */
+	public long getMaxTimeMicros() {
+		return maxTimeNanos / 1000;
+	}
+
+	@Override
+	public String toString() {
+		return messageCount + " message(s), " + callbackCount + " callback(s), largest batch " + largestBatch +
+				", " + getAverageTimeMicros() + "us average and " + getMaxTimeMicros() + "us max per message";
+	}
+}
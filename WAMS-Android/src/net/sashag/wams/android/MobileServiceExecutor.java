@@ -0,0 +1,288 @@
+package net.sashag.wams.android;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs the asynchronous operations of all the tables of a single {@link MobileService}.
+ * At most a configurable number of operations run concurrently; the rest wait in a queue
+ * with two lanes, and interactive operations (queries) are always taken ahead of
+ * background operations (inserts, updates and deletes). The queue is unbounded unless a
+ * limit is set; when a bounded queue is full, the configured {@link MobileServiceRejectionPolicy}
+ * decides what happens.
+ * <p>
+ * Worker threads are started on demand and exit after being idle for a while, so a service
+ * that is not in use does not hold on to any threads.
+ */
+class MobileServiceExecutor implements Executor {
+
+	enum Priority {
+		INTERACTIVE,
+		BACKGROUND
+	}
+
+	private static final long IDLE_WORKER_TIMEOUT_MS = 30000;
+
+	private final Object lock = new Object();
+	private final LinkedList<Runnable> interactive = new LinkedList<Runnable>();
+	private final LinkedList<Runnable> background = new LinkedList<Runnable>();
+	private final ThreadLocal<Boolean> isWorkerThread = new ThreadLocal<Boolean>();
+	private int maxConcurrency;
+	private int maxQueued;
+	private MobileServiceRejectionPolicy rejectionPolicy;
+	private int workers;
+	private int idleWorkers;
+	private int nextWorkerId;
+	private boolean shutdown;
+	private Runnable onTerminated;
+
+	MobileServiceExecutor(int maxConcurrency, int maxQueued, MobileServiceRejectionPolicy rejectionPolicy) {
+		this.maxConcurrency = maxConcurrency;
+		this.maxQueued = maxQueued;
+		this.rejectionPolicy = rejectionPolicy;
+	}
+
+	void setMaxConcurrency(int maxConcurrency) {
+		if (maxConcurrency <= 0) {
+			throw new IllegalArgumentException("Maximum concurrency must be positive");
+		}
+		synchronized (lock) {
+			this.maxConcurrency = maxConcurrency;
+			//Surplus workers notice the new limit when they wake up, and exit
+			lock.notifyAll();
+		}
+	}
+
+	void setMaxQueued(int maxQueued) {
+		if (maxQueued <= 0) {
+			throw new IllegalArgumentException("Maximum queue size must be positive");
+		}
+		synchronized (lock) {
+			this.maxQueued = maxQueued;
+			lock.notifyAll();
+		}
+	}
+
+	void setRejectionPolicy(MobileServiceRejectionPolicy rejectionPolicy) {
+		synchronized (lock) {
+			this.rejectionPolicy = rejectionPolicy;
+			lock.notifyAll();
+		}
+	}
+
+	int getQueueDepth() {
+		synchronized (lock) {
+			return interactive.size() + background.size();
+		}
+	}
+
+	public void execute(Runnable task) {
+		execute(task, Priority.INTERACTIVE);
+	}
+
+	/**
+	 * Queues the specified task in the lane for the specified priority.
+	 *
+	 * @throws RejectedExecutionException	thrown if the executor has been shut down, or if
+	 * 										the queue is full and the rejection policy is
+	 * 										{@link MobileServiceRejectionPolicy#REJECT}
+	 */
+	void execute(Runnable task, Priority priority) {
+		if (!enqueue(task, priority)) {
+			//The queue is full and the policy says that the task runs on the calling thread
+			task.run();
+		}
+	}
+
+	/**
+	 * Queues the specified task if there is room in the queue, without blocking and regardless
+	 * of the rejection policy.
+	 *
+	 * @return	whether the task was queued
+	 */
+	boolean tryExecute(Runnable task, Priority priority) {
+		synchronized (lock) {
+			if (shutdown || interactive.size() + background.size() >= maxQueued) {
+				return false;
+			}
+			addTask(task, priority);
+			return true;
+		}
+	}
+
+	private boolean enqueue(Runnable task, Priority priority) {
+		synchronized (lock) {
+			while (true) {
+				if (shutdown) {
+					throw new RejectedExecutionException("The mobile service has been shut down");
+				}
+				if (interactive.size() + background.size() < maxQueued) {
+					break;
+				}
+				//Blocking the UI thread would make the application unresponsive
+				if (rejectionPolicy == MobileServiceRejectionPolicy.REJECT ||
+						(rejectionPolicy == MobileServiceRejectionPolicy.BLOCK && Looper.myLooper() == Looper.getMainLooper())) {
+					throw new RejectedExecutionException("Too many pending mobile service operations");
+				}
+				if (rejectionPolicy == MobileServiceRejectionPolicy.CALLER_RUNS || isWorkerThread.get() != null) {
+					return false;
+				}
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RejectedExecutionException("Interrupted while waiting for room in the queue");
+				}
+			}
+			addTask(task, priority);
+			return true;
+		}
+	}
+
+	//Called with the lock held
+	private void addTask(Runnable task, Priority priority) {
+		if (priority == Priority.INTERACTIVE) {
+			interactive.addLast(task);
+		} else {
+			background.addLast(task);
+		}
+		if (idleWorkers > 0) {
+			lock.notifyAll();
+		}
+		if (interactive.size() + background.size() > idleWorkers && workers < maxConcurrency) {
+			startWorker();
+		}
+	}
+
+	/**
+	 * Stops accepting new tasks. Tasks that have already been queued still run, and the
+	 * worker threads exit when the queue is empty. The specified callback runs once the
+	 * last worker thread has exited.
+	 */
+	void shutdown(Runnable onTerminated) {
+		boolean terminated;
+		synchronized (lock) {
+			shutdown = true;
+			this.onTerminated = onTerminated;
+			terminated = workers == 0;
+			lock.notifyAll();
+		}
+		if (terminated) {
+			runTerminationCallback();
+		}
+	}
+
+	boolean isShutdown() {
+		synchronized (lock) {
+			return shutdown;
+		}
+	}
+
+	private void startWorker() {
+		++workers;
+		Thread worker = new Thread(new Runnable() {
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				isWorkerThread.set(Boolean.TRUE);
+				runWorker();
+			}
+		}, "MobileService-worker-" + (++nextWorkerId));
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	private void runWorker() {
+		boolean exited = false;
+		try {
+			while (true) {
+				Runnable task;
+				synchronized (lock) {
+					task = takeTask();
+					if (task == null) {
+						exited = true;
+						--workers;
+						if (shutdown && workers == 0) {
+							//Running outside the lock, below
+							break;
+						}
+						return;
+					}
+					//A slot in the queue has opened up for blocked producers
+					lock.notifyAll();
+				}
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					Log.e("MobileServiceExecutor", "Unhandled exception in mobile service operation", e);
+				}
+				//Clear an interrupt left over from a cancelled task, so that it does not affect the next one
+				Thread.interrupted();
+			}
+		} finally {
+			if (!exited) {
+				replaceFailedWorker();
+			}
+		}
+		runTerminationCallback();
+	}
+
+	//An Error thrown by a task terminates its worker thread; another worker takes over the queued tasks
+	private void replaceFailedWorker() {
+		boolean terminated;
+		synchronized (lock) {
+			--workers;
+			if (interactive.size() + background.size() > idleWorkers && workers < maxConcurrency) {
+				startWorker();
+			}
+			terminated = shutdown && workers == 0;
+		}
+		if (terminated) {
+			runTerminationCallback();
+		}
+	}
+
+	private void runTerminationCallback() {
+		Runnable callback;
+		synchronized (lock) {
+			callback = onTerminated;
+			onTerminated = null;
+		}
+		if (callback != null) {
+			callback.run();
+		}
+	}
+
+	//Called with the lock held; returns null when the worker should exit
+	private Runnable takeTask() {
+		long deadline = System.currentTimeMillis() + IDLE_WORKER_TIMEOUT_MS;
+		while (true) {
+			if (workers > maxConcurrency) {
+				return null;
+			}
+			if (!interactive.isEmpty()) {
+				return interactive.removeFirst();
+			}
+			if (!background.isEmpty()) {
+				return background.removeFirst();
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if (shutdown || remaining <= 0) {
+				return null;
+			}
+			++idleWorkers;
+			try {
+				lock.wait(remaining);
+			} catch (InterruptedException e) {
+				return null;
+			} finally {
+				--idleWorkers;
+			}
+		}
+	}
+
+}
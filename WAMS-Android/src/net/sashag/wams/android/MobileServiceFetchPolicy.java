@@ -0,0 +1,39 @@
+package net.sashag.wams.android;
+
+/**
+ * Specifies whether a query may be answered from the query cache of its {@link MobileService}.
+ * Set the policy of a query with {@link MobileTable.QueryBuilder#fetchPolicy}, and configure
+ * the cache with {@link MobileService#setQueryCacheLimits} and {@link MobileService#setQueryCacheTimeToLive}.
+ *
+ * @author Sasha Goldshtein
+ *
+ */
+public enum MobileServiceFetchPolicy {
+
+	/**
+	 * The query is always sent to the mobile service. This is the default. The results are cached
+	 * only if the mobile service returns validators (an ETag or a Last-Modified header) with them;
+	 * the next time, the query is sent as a conditional request, and if the results have not
+	 * changed, the cached results are returned without downloading them again. Like all cached
+	 * results, they are new item instances, so changes you made to the items returned the first
+	 * time are not reflected in them.
+	 */
+	NETWORK_ONLY,
+
+	/**
+	 * The query is answered from the cache if the cached results are younger than the cache's
+	 * time-to-live. Otherwise, the query is sent to the mobile service and its results are cached.
+	 */
+	CACHE_FIRST,
+
+	/**
+	 * The query is answered from the cache if it has any results for it, even stale ones, and is
+	 * then sent to the mobile service to refresh the cache. Asynchronous queries invoke their
+	 * callback twice in this case: first with the cached results, and then with the fresh results
+	 * or with the error that prevented retrieving them. The operation itself completes only with
+	 * the fresh results, so its continuations and {@link MobileServiceFuture#get} never see the
+	 * cached ones, and are not invoked on the thread that started the query.
+	 * Synchronous queries return the cached results, and refresh stale results in the background.
+	 */
+	STALE_WHILE_REVALIDATE
+}
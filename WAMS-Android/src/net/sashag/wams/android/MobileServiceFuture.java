@@ -0,0 +1,423 @@
+package net.sashag.wams.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+
+/**
+ * The pending result of an asynchronous operation, returned by the asynchronous methods of
+ * {@link MobileTable} and related classes. Use it to cancel the operation, to give it a deadline,
+ * or to start dependent operations when it completes.
+ * <p>
+ * Cancelling an operation aborts its HTTP requests, so it stops downloading and parsing results
+ * that are no longer needed, and its callback is not invoked. Cancel the operations of an activity
+ * when it is destroyed:
+ * <p>
+ * <pre>
+ * pending = apartments.where().equal("city", "Haifa").selectAsync(callback);
+ * ...
+ * protected void onDestroy() {
+ *     pending.cancel();
+ *     super.onDestroy();
+ * }
+ * </pre>
+ * <p>
+ * Dependent operations can be chained with {@link #then}, which starts the next operation on the
+ * background thread that completed the previous one, without a round trip through the UI thread:
+ * <p>
+ * <pre>
+ * owners.where().equal("name", "Sasha").selectAsync(null)
+ *     .then(new MobileServiceContinuation&lt;List&lt;Owner&gt;, List&lt;Apartment&gt;&gt;() {
+ *         public MobileServiceFuture&lt;List&lt;Apartment&gt;&gt; apply(List&lt;Owner&gt; result) {
+ *             return apartments.where().equal("ownerId", result.get(0).id).selectAsync(null);
+ *         }
+ *     })
+ *     .addCallback(callback);
+ * </pre>
+ *
+ * @author Sasha Goldshtein
+ *
+ * @param <T> the type of the result of the operation
+ */
+public class MobileServiceFuture<T> {
+
+	/**
+	 * The work of an asynchronous operation, run by a worker thread.
+	 */
+	interface Task<T> {
+		T run() throws MobileException;
+	}
+
+	private static ScheduledExecutorService deadlineTimer;
+
+	private final Handler defaultHandler;
+	private final CallbackCoalescer coalescer;
+	private final Cancellation cancellation = new Cancellation();
+	private final List<MobileServiceCallback<T>> listeners = new ArrayList<MobileServiceCallback<T>>(1);
+	private final List<Delivery> deliveries = new ArrayList<Delivery>(1);
+	private boolean done;
+	private boolean cancelled;
+	private boolean suppressed;
+	private T result;
+	private MobileException error;
+	private ScheduledFuture<?> deadline;
+
+	//A callback and the handler it is posted to
+	private class Delivery {
+		final MobileServiceCallback<T> callback;
+		final Handler handler;
+
+		Delivery(MobileServiceCallback<T> callback, Handler handler) {
+			this.callback = callback;
+			this.handler = handler;
+		}
+
+		void post(final T result, final MobileException error) {
+			coalescer.post(handler, new Runnable() {
+				public void run() {
+					if (isSuppressed()) {
+						return;
+					}
+					if (error != null) {
+						callback.errorOccurred(error);
+					} else {
+						callback.completedSuccessfully(result);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Creates a future whose callbacks are posted to the specified handler by default.
+	 *
+	 * @param callback	a callback to post to the handler when the operation completes, or <b>null</b>
+	 * @param coalescer	posts the callbacks on behalf of the mobile service
+	 */
+	MobileServiceFuture(MobileServiceCallback<T> callback, Handler defaultHandler, CallbackCoalescer coalescer) {
+		this.defaultHandler = defaultHandler;
+		this.coalescer = coalescer;
+		if (callback != null) {
+			addCallback(callback, defaultHandler);
+		}
+	}
+
+	/**
+	 * Adds a callback that is posted to the provided {@link Handler} when the operation completes,
+	 * or right away if it has already completed.
+	 *
+	 * @param callback	the callback invoked with the result of the operation or with an error
+	 * @param handler	the callback is posted to this handler
+	 * @return			this future
+	 */
+	public MobileServiceFuture<T> addCallback(MobileServiceCallback<T> callback, Handler handler) {
+		Delivery delivery = new Delivery(callback, handler);
+		synchronized (this) {
+			if (!done) {
+				deliveries.add(delivery);
+				return this;
+			}
+		}
+		delivery.post(result, error);
+		return this;
+	}
+
+	/**
+	 * Adds a callback that is invoked when the operation completes, or right away if it has
+	 * already completed. The callback is invoked on the thread of the handler that the operation
+	 * posts its callbacks to, which is the UI thread unless you specified a different handler.
+	 *
+	 * @param callback	the callback invoked with the result of the operation or with an error
+	 * @return			this future
+	 */
+	public MobileServiceFuture<T> addCallback(MobileServiceCallback<T> callback) {
+		return addCallback(callback, defaultHandler);
+	}
+
+	/**
+	 * Cancels the operation. Its HTTP requests are aborted, operations that have not started yet
+	 * do not start, and its callbacks are not invoked. If the operation has already completed,
+	 * its callbacks are still not invoked if they have not been invoked yet, but {@link #get}
+	 * returns its result. This also stops a query with the
+	 * {@link MobileServiceFetchPolicy#STALE_WHILE_REVALIDATE} policy from revalidating.
+	 * <p>
+	 * Cancelling an operation that changes data, such as an update, does not undo the change if
+	 * the request has already reached the mobile service.
+	 *
+	 * @return	<b>true</b> if the operation was cancelled before it completed
+	 */
+	public boolean cancel() {
+		synchronized (this) {
+			suppressed = true;
+		}
+		boolean completed = complete(null, new MobileException("The operation was cancelled"), /*cancelling*/true);
+		cancellation.cancel();
+		return completed;
+	}
+
+	/**
+	 * @return	whether the operation was cancelled before it completed
+	 */
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return	whether the operation has completed, failed, been cancelled, or missed its deadline
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Fails the operation if it does not complete within the specified time from now. Its HTTP
+	 * requests are aborted, and its callbacks receive a {@link MobileException}.
+	 * <p>
+	 * The connect and read timeouts of every HTTP request apply regardless of the deadline; see
+	 * {@link MobileService#setTimeouts}.
+	 *
+	 * @param timeoutMs	the time the operation has to complete, in milliseconds
+	 * @return			this future
+	 */
+	public MobileServiceFuture<T> setDeadline(final long timeoutMs) {
+		ScheduledFuture<?> timer = getDeadlineTimer().schedule(new Runnable() {
+			public void run() {
+				if (complete(null, new MobileException("The operation did not complete within " + timeoutMs + "ms"), false)) {
+					cancellation.cancel();
+				}
+			}
+		}, timeoutMs, TimeUnit.MILLISECONDS);
+		ScheduledFuture<?> previous;
+		synchronized (this) {
+			previous = deadline;
+			deadline = timer;
+		}
+		if (previous != null) {
+			previous.cancel(false);
+		}
+		return this;
+	}
+
+	/**
+	 * Waits for the operation to complete and returns its result. Do not call this method on the
+	 * UI thread.
+	 *
+	 * @return					the result of the operation
+	 * @throws MobileException	thrown if the operation failed, was cancelled, or missed its deadline,
+	 * 							or if the calling thread was interrupted
+	 */
+	public synchronized T get() throws MobileException {
+		while (!done) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MobileException("Interrupted while waiting for the operation to complete", e);
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+		return result;
+	}
+
+	/**
+	 * Starts a dependent operation when this operation completes successfully. The continuation
+	 * is invoked on the background thread that completed this operation. If this operation fails,
+	 * the continuation is not invoked, and the returned future fails with the same error. If the
+	 * continuation throws an unchecked exception, the returned future fails with a
+	 * {@link MobileException} caused by it.
+	 * <p>
+	 * Cancelling the returned future cancels whichever operation of the chain is in progress.
+	 * <p>
+	 * A query with the {@link MobileServiceFetchPolicy#STALE_WHILE_REVALIDATE} policy posts its
+	 * cached results to its callbacks only; the continuation is invoked once, with the fresh
+	 * results.
+	 *
+	 * @param continuation	starts the dependent operation with the result of this operation
+	 * @return				a future that completes with the result of the dependent operation
+	 */
+	public <U> MobileServiceFuture<U> then(final MobileServiceContinuation<? super T, U> continuation) {
+		final MobileServiceFuture<U> next = new MobileServiceFuture<U>(null, defaultHandler, coalescer);
+		next.cancellation.addListener(new Runnable() {
+			public void run() {
+				cancel();
+			}
+		});
+		addListener(new MobileServiceCallback<T>() {
+			public void completedSuccessfully(T item) {
+				MobileServiceFuture<U> stage;
+				try {
+					stage = continuation.apply(item);
+				} catch (MobileException e) {
+					next.failed(e);
+					return;
+				} catch (RuntimeException e) {
+					next.failed(new MobileException("The continuation failed with an unexpected error", e));
+					return;
+				}
+				if (stage == null) {
+					next.succeeded(null);
+				} else {
+					next.follow(stage);
+				}
+			}
+
+			public void errorOccurred(MobileException exception) {
+				next.failed(exception);
+			}
+		});
+		return next;
+	}
+
+	//Completes this future when the specified one completes, and cancels it if this one is cancelled
+	private void follow(final MobileServiceFuture<T> stage) {
+		cancellation.addListener(new Runnable() {
+			public void run() {
+				stage.cancel();
+			}
+		});
+		stage.addListener(new MobileServiceCallback<T>() {
+			public void completedSuccessfully(T item) {
+				succeeded(item);
+			}
+
+			public void errorOccurred(MobileException exception) {
+				failed(exception);
+			}
+		});
+	}
+
+	/**
+	 * Adds a listener that is invoked on the thread that completes the operation, or right away
+	 * if it has already completed. Listeners are also invoked with an error when the operation is
+	 * cancelled.
+	 */
+	void addListener(MobileServiceCallback<T> listener) {
+		synchronized (this) {
+			if (!done) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		invoke(listener, result, error);
+	}
+
+	Cancellation getCancellation() {
+		return cancellation;
+	}
+
+	/**
+	 * Runs the operation on the calling thread, unless it has already been cancelled, with its
+	 * cancellation current so that its HTTP requests can be aborted.
+	 */
+	void run(Task<T> task) {
+		if (isDone()) {
+			return;
+		}
+		Cancellation previous = cancellation.enter();
+		try {
+			succeeded(task.run());
+		} catch (MobileException e) {
+			failed(e);
+		} catch (RuntimeException e) {
+			//Otherwise the future never completes, and the exception escapes to the worker thread
+			failed(new MobileException("The operation failed with an unexpected error", e));
+		} finally {
+			Cancellation.exit(previous);
+		}
+	}
+
+	boolean succeeded(T result) {
+		return complete(result, null, false);
+	}
+
+	boolean failed(MobileException error) {
+		return complete(null, error, false);
+	}
+
+	/**
+	 * Posts interim results to the callbacks of an operation that has not completed yet, such as
+	 * a query that answers with stale results from the cache while it revalidates them. The
+	 * operation is not completed, so its listeners and continuations, and {@link #get}, only
+	 * see the results it completes with.
+	 */
+	void deliverInterim(T result) {
+		List<Delivery> targets;
+		synchronized (this) {
+			if (done || suppressed) {
+				return;
+			}
+			targets = new ArrayList<Delivery>(deliveries);
+		}
+		for (Delivery delivery : targets) {
+			delivery.post(result, null);
+		}
+	}
+
+	private boolean complete(T result, MobileException error, boolean cancelling) {
+		List<MobileServiceCallback<T>> notified;
+		List<Delivery> posted;
+		ScheduledFuture<?> timer;
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			done = true;
+			cancelled = cancelling;
+			this.result = result;
+			this.error = error;
+			notified = new ArrayList<MobileServiceCallback<T>>(listeners);
+			listeners.clear();
+			//Callbacks added from now on are posted right away
+			posted = cancelling ? null : new ArrayList<Delivery>(deliveries);
+			deliveries.clear();
+			timer = deadline;
+			deadline = null;
+			notifyAll();
+		}
+		if (timer != null) {
+			timer.cancel(false);
+		}
+		for (MobileServiceCallback<T> listener : notified) {
+			invoke(listener, result, error);
+		}
+		if (posted != null) {
+			for (Delivery delivery : posted) {
+				delivery.post(result, error);
+			}
+		}
+		return true;
+	}
+
+	private synchronized boolean isSuppressed() {
+		return suppressed;
+	}
+
+	private static <T> void invoke(MobileServiceCallback<T> listener, T result, MobileException error) {
+		if (error != null) {
+			listener.errorOccurred(error);
+		} else {
+			listener.completedSuccessfully(result);
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getDeadlineTimer() {
+		if (deadlineTimer == null) {
+			deadlineTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "MobileServiceDeadlines");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return deadlineTimer;
+	}
+}
@@ -0,0 +1,243 @@
+package net.sashag.wams.android;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A snapshot of the metrics of a single {@link MobileService}: how long the operations on each
+ * table take, how many rows were read and how long it took to convert them, which status codes
+ * the mobile service returned, how many bytes went over the network, and how busy the service
+ * is right now. Obtain a snapshot with {@link MobileService#getMetrics}, and hand it to an
+ * exporter, such as {@link MobileServiceTextExporter}, with {@link MobileService#exportMetrics}.
+ * <p>
+ * The counters keep growing from the moment the mobile service is created. To measure a period
+ * of time, take a snapshot at its start and at its end and subtract the counters.
+ *
+ * @author Sasha Goldshtein
+ *
+ */
+public class MobileServiceMetrics {
+
+	/**
+	 * The operations whose latency is measured for each table. Select covers every request
+	 * that evaluates a query, including counts, cursor pages, and mirror syncs; its latency
+	 * includes reading and converting the results.
+	 */
+	public enum Operation {
+		INSERT, UPDATE, DELETE, SELECT
+	}
+
+	/**
+	 * The latency distribution of an operation. The distribution is kept in buckets whose bounds
+	 * are powers of two in milliseconds, so percentiles are accurate to within a factor of two.
+	 */
+	public static class Latency {
+		private final long[] bucketCounts;
+		private final long count;
+		private final long errorCount;
+		private final long totalMicros;
+		private final long maxMicros;
+
+		Latency(long[] bucketCounts, long errorCount, long totalMicros, long maxMicros) {
+			long count = 0;
+			for (long bucketCount : bucketCounts) {
+				count += bucketCount;
+			}
+			this.bucketCounts = bucketCounts;
+			this.count = count;
+			this.errorCount = errorCount;
+			this.totalMicros = totalMicros;
+			this.maxMicros = maxMicros;
+		}
+
+		/**
+		 * @return	the number of times the operation was performed, including failures
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return	the number of times the operation failed
+		 */
+		public long getErrorCount() {
+			return errorCount;
+		}
+
+		/**
+		 * @return	the average latency, in microseconds
+		 */
+		public long getMeanMicros() {
+			return count == 0 ? 0 : totalMicros / count;
+		}
+
+		/**
+		 * @return	the longest latency, in microseconds
+		 */
+		public long getMaxMicros() {
+			return maxMicros;
+		}
+
+		/**
+		 * Estimates a percentile of the latency by the upper bound of the bucket it falls into.
+		 *
+		 * @param percentile	the percentile, between 0 and 100, e.g. 99 for the 99th percentile
+		 * @return				the estimated latency, in milliseconds, or 0 if there were no operations
+		 */
+		public long getPercentileMillis(double percentile) {
+			if (percentile < 0 || percentile > 100) {
+				throw new IllegalArgumentException("Percentile must be between 0 and 100");
+			}
+			long rank = (long) Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < bucketCounts.length; ++i) {
+				seen += bucketCounts[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min(getBucketBoundMillis(i), (maxMicros + 999) / 1000);
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * @return	the number of operations in each bucket; bucket <i>i</i> holds latencies below
+		 * 			{@link #getBucketBoundMillis getBucketBoundMillis(i)}, and at least the bound
+		 * 			of the previous bucket
+		 */
+		public long[] getBucketCounts() {
+			return bucketCounts.clone();
+		}
+
+		/**
+		 * @return	the upper bound of the specified bucket, in milliseconds, or
+		 * 			{@link Long#MAX_VALUE} for the last bucket
+		 */
+		public long getBucketBoundMillis(int bucket) {
+			return bucket == bucketCounts.length - 1 ? Long.MAX_VALUE : 1L << bucket;
+		}
+	}
+
+	/**
+	 * The metrics of the operations on a single table.
+	 */
+	public static class Table {
+		private final Latency[] latencies;
+		private final long rowsDeserialized;
+		private final long deserializationMicros;
+		private final long serializationMicros;
+
+		Table(Latency[] latencies, long rowsDeserialized, long deserializationMicros, long serializationMicros) {
+			this.latencies = latencies;
+			this.rowsDeserialized = rowsDeserialized;
+			this.deserializationMicros = deserializationMicros;
+			this.serializationMicros = serializationMicros;
+		}
+
+		/**
+		 * @return	the latency distribution of the specified operation on the table
+		 */
+		public Latency getLatency(Operation operation) {
+			return latencies[operation.ordinal()];
+		}
+
+		/**
+		 * @return	the number of rows read from query results and converted to objects
+		 */
+		public long getRowsDeserialized() {
+			return rowsDeserialized;
+		}
+
+		/**
+		 * @return	the total time spent converting rows to objects, in microseconds
+		 */
+		public long getDeserializationMicros() {
+			return deserializationMicros;
+		}
+
+		/**
+		 * @return	the total time spent converting objects to JSON for inserts and updates, in microseconds
+		 */
+		public long getSerializationMicros() {
+			return serializationMicros;
+		}
+	}
+
+	private final long timestamp;
+	private final Map<String, Table> tables;
+	private final Map<Integer, Long> statusCodeCounts;
+	private final long networkErrorCount;
+	private final long bytesSent;
+	private final long bytesReceived;
+	private final int queueDepth;
+	private final int inFlightRequests;
+
+	MobileServiceMetrics(long timestamp, Map<String, Table> tables, Map<Integer, Long> statusCodeCounts, long networkErrorCount,
+			long bytesSent, long bytesReceived, int queueDepth, int inFlightRequests) {
+		this.timestamp = timestamp;
+		this.tables = Collections.unmodifiableMap(tables);
+		this.statusCodeCounts = Collections.unmodifiableMap(statusCodeCounts);
+		this.networkErrorCount = networkErrorCount;
+		this.bytesSent = bytesSent;
+		this.bytesReceived = bytesReceived;
+		this.queueDepth = queueDepth;
+		this.inFlightRequests = inFlightRequests;
+	}
+
+	/**
+	 * @return	the time the snapshot was taken, in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return	the metrics of each table that has been accessed, by table name
+	 */
+	public Map<String, Table> getTables() {
+		return tables;
+	}
+
+	/**
+	 * @return	the number of responses with each HTTP status code, including responses that
+	 * 			were retried
+	 */
+	public Map<Integer, Long> getStatusCodeCounts() {
+		return statusCodeCounts;
+	}
+
+	/**
+	 * @return	the number of requests that failed without a response, such as requests that
+	 * 			timed out or could not connect
+	 */
+	public long getNetworkErrorCount() {
+		return networkErrorCount;
+	}
+
+	/**
+	 * @return	the number of bytes of request bodies sent, after compression
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * @return	the number of bytes of response bodies received, before decompression
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * @return	the number of asynchronous operations waiting for a worker thread
+	 */
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * @return	the number of HTTP requests whose responses have not been fully read yet
+	 */
+	public int getInFlightRequests() {
+		return inFlightRequests;
+	}
+}
@@ -0,0 +1,22 @@
+package net.sashag.wams.android;
+
+import java.io.IOException;
+
+/**
+ * Exports a snapshot of the metrics of a mobile service, e.g. to a log, a file, or your own
+ * analytics backend. See {@link MobileService#exportMetrics} and {@link MobileServiceTextExporter}.
+ * 
+ * @author Sasha Goldshtein
+ *
+ */
+public interface MobileServiceMetricsExporter {
+
+	/**
+	 * Called on the thread that invoked {@link MobileService#exportMetrics}.
+	 * 
+	 * @param metrics		the snapshot to export
+	 * @throws IOException	thrown if the snapshot could not be written
+	 */
+	void export(MobileServiceMetrics metrics) throws IOException;
+	
+}
@@ -0,0 +1,37 @@
+package net.sashag.wams.android;
+
+import java.util.List;
+
+/**
+ * A page of the items matching a query, along with the total number of matching items, which
+ * is useful for displaying "page 3 of 12" without retrieving all the items. Obtained from
+ * {@link MobileTable.QueryBuilder#selectWithCount}.
+ *
+ * @author Sasha Goldshtein
+ *
+ * @param <E> the type of items in the page
+ */
+public class MobileServicePage<E> {
+
+	private final List<E> items;
+	private final int totalCount;
+
+	MobileServicePage(List<E> items, int totalCount) {
+		this.items = items;
+		this.totalCount = totalCount;
+	}
+
+	/**
+	 * @return	the items in this page, as limited by the top and skip values of the query
+	 */
+	public List<E> getItems() {
+		return items;
+	}
+
+	/**
+	 * @return	the total number of items matching the query, regardless of its top and skip values
+	 */
+	public int getTotalCount() {
+		return totalCount;
+	}
+}
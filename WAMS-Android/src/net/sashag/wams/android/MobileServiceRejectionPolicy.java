@@ -0,0 +1,33 @@
+package net.sashag.wams.android;
+
+/**
+ * Specifies what happens to an asynchronous operation that is started while the
+ * queue of pending operations of a {@link MobileService} is full. See
+ * {@link MobileService#setRejectionPolicy} and {@link MobileService#setMaxQueuedOperations}.
+ *
+ * @author Sasha Goldshtein
+ *
+ */
+public enum MobileServiceRejectionPolicy {
+
+	/**
+	 * The thread that starts the operation waits until there is room in the queue. This
+	 * slows down producers to the rate at which the mobile service can handle operations.
+	 * Operations started from one of the service's own worker threads are never blocked;
+	 * they run on the calling thread instead, to prevent a deadlock. Operations started from
+	 * the UI thread are never blocked either, because that would make the application
+	 * unresponsive; they are rejected as with {@link #REJECT}. This is the default.
+	 */
+	BLOCK,
+
+	/**
+	 * The operation runs synchronously on the thread that starts it. Do not use this policy
+	 * if you start operations from the UI thread.
+	 */
+	CALLER_RUNS,
+
+	/**
+	 * The operation is not started, and its callback receives a {@link MobileException}.
+	 */
+	REJECT
+}
@@ -0,0 +1,22 @@
+package net.sashag.wams.android;
+
+/**
+ * Receives the results of a query one row at a time, as they are read from the network.
+ * Use a visitor with {@link MobileTable.QueryBuilder#select(MobileServiceRowVisitor)} to
+ * process large results without holding all of them in memory at once.
+ *
+ * @author Sasha Goldshtein
+ *
+ * @param <E> the type of elements returned by the query
+ */
+public interface MobileServiceRowVisitor<E> {
+
+	/**
+	 * Called for every row in the query results, in order, on the thread that evaluates the query.
+	 *
+	 * @param item	the row, deserialized into a new instance of the table class
+	 * @return		<b>true</b> to continue reading rows, or <b>false</b> to stop reading and
+	 * 				discard the rest of the response
+	 */
+	boolean visitRow(E item);
+}
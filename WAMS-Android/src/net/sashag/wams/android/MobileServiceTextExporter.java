@@ -0,0 +1,66 @@
+package net.sashag.wams.android;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Writes a snapshot of the metrics of a mobile service as human-readable text, one line per
+ * table and operation. For example, to print the metrics to the log:
+ * <p>
+ * <pre>
+ * StringWriter text = new StringWriter();
+ * mobileService.exportMetrics(new MobileServiceTextExporter(text));
+ * Log.i("Metrics", text.toString());
+ * </pre>
+ * 
+ * @author Sasha Goldshtein
+ *
+ */
+public class MobileServiceTextExporter implements MobileServiceMetricsExporter {
+
+	private final Writer writer;
+
+	/**
+	 * @param writer	the writer the text is written to; it is flushed, but not closed
+	 */
+	public MobileServiceTextExporter(Writer writer) {
+		this.writer = writer;
+	}
+
+	public void export(MobileServiceMetrics metrics) throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, MobileServiceMetrics.Table> table : metrics.getTables().entrySet()) {
+			MobileServiceMetrics.Table tableMetrics = table.getValue();
+			for (MobileServiceMetrics.Operation operation : MobileServiceMetrics.Operation.values()) {
+				MobileServiceMetrics.Latency latency = tableMetrics.getLatency(operation);
+				if (latency.getCount() == 0) {
+					continue;
+				}
+				text.append(table.getKey()).append(' ').append(operation.name().toLowerCase())
+					.append(": count=").append(latency.getCount())
+					.append(" errors=").append(latency.getErrorCount())
+					.append(" mean=").append(latency.getMeanMicros() / 1000.0).append("ms")
+					.append(" p50<=").append(latency.getPercentileMillis(50)).append("ms")
+					.append(" p90<=").append(latency.getPercentileMillis(90)).append("ms")
+					.append(" p99<=").append(latency.getPercentileMillis(99)).append("ms")
+					.append(" max=").append(latency.getMaxMicros() / 1000.0).append("ms\n");
+			}
+			text.append(table.getKey())
+				.append(" rows: deserialized=").append(tableMetrics.getRowsDeserialized())
+				.append(" deserialization=").append(tableMetrics.getDeserializationMicros() / 1000.0).append("ms")
+				.append(" serialization=").append(tableMetrics.getSerializationMicros() / 1000.0).append("ms\n");
+		}
+		text.append("status codes:");
+		for (Map.Entry<Integer, Long> statusCode : metrics.getStatusCodeCounts().entrySet()) {
+			text.append(' ').append(statusCode.getKey()).append('=').append(statusCode.getValue());
+		}
+		text.append(" network errors=").append(metrics.getNetworkErrorCount()).append('\n');
+		text.append("bytes: sent=").append(metrics.getBytesSent())
+			.append(" received=").append(metrics.getBytesReceived()).append('\n');
+		text.append("queue depth=").append(metrics.getQueueDepth())
+			.append(" in-flight requests=").append(metrics.getInFlightRequests()).append('\n');
+		writer.write(text.toString());
+		writer.flush();
+	}
+}
@@ -1,26 +1,21 @@
 package net.sashag.wams.android;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
-import org.apache.http.HttpResponse;
+import org.apache.http.Header;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.json.JSONArray;
+import org.apache.http.message.BasicHeader;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.Context;
@@ -37,47 +32,78 @@ import android.util.Log;
  */
 public class MobileTable<E> {
 
+	private static final int DEFAULT_CURSOR_PAGE_SIZE = 50;
+	private static final int DEFAULT_MAX_IN_FLIGHT = 4;
+	private static final int MAX_TRACKED_ITEMS = 1000;
+	
+	/**
+	 * A placeholder for a value that is provided later, when a prepared query is bound. Pass it
+	 * instead of a value to the filter methods of {@link QueryBuilder}, and then call
+	 * {@link QueryBuilder#prepare}. See {@link PreparedQuery} for details.
+	 */
+	public static final Object PARAMETER = new Object() {
+		@Override
+		public String toString() {
+			return "?";
+		}
+	};
+	
+	private final MobileService mobileService;
 	private final Context context;
-	private HttpRequestDecorator requestDecorator;
+	private final HttpTransport transport;
 	private final String serviceUrl;
 	private final String tableName;
-	private final Class<E> clazz;
-	private final Executor executor;
+	private final TableBinding<E> binding;
+	private final MobileServiceExecutor executor;
+	private final CallbackCoalescer coalescer;
+	private final MetricsRegistry.TableMetrics metrics;
 	private final Handler uiHandler;
+	private final QueryCache queryCache;
+	private final InFlightQueries inFlightQueries;
+	private volatile boolean writeBehindEnabled;
+	private volatile ChangeTracker changeTracker;
 	
-	MobileTable(Context context, HttpRequestDecorator requestDecorator, String serviceUrl, Class<E> clazz) {
-		this.context = context;
-		this.requestDecorator = requestDecorator;
-		this.serviceUrl = serviceUrl;
-		this.clazz = clazz;
+	MobileTable(MobileService mobileService, Class<E> clazz) {
+		this.mobileService = mobileService;
+		this.context = mobileService.getContext();
+		this.transport = mobileService.getTransport();
+		this.serviceUrl = mobileService.getServiceUrl();
 		DataTable dataTableAnnotation = clazz.getAnnotation(DataTable.class);
 		if (dataTableAnnotation == null) {
 			throw new InvalidParameterException("Only classes annotated with @DataTable can be used with MobileTable");
 		}
 		this.tableName = dataTableAnnotation.value();
-		this.executor = Executors.newCachedThreadPool();
+		this.binding = TableBinding.forClass(clazz);
+		this.executor = mobileService.getExecutor();
+		this.coalescer = mobileService.getCallbackCoalescer();
+		this.metrics = mobileService.getMetricsRegistry().forTable(tableName);
 		this.uiHandler = new Handler(this.context.getMainLooper());
+		this.queryCache = mobileService.getQueryCache();
+		this.inFlightQueries = mobileService.getInFlightQueries();
 	}
 
 	/**
 	 * Retrieves all elements in the mobile table and posts the specified callback to
 	 * the provided {@link Handler} when the results are available or an exception occurs.
 	 * 
-	 * @param callback	called when the results are available or an exception occurs
+	 * @param callback	called when the results are available or an exception occurs, or <b>null</b>
 	 * @param handler	callbacks are posted to this handler
+	 * @return			a future that can be used to cancel the operation
 	 */
-	public void allAsync(MobileServiceCallbackWithResults<E> callback, Handler handler) {
-		new QueryBuilder().selectAsync(callback, handler);
+	public MobileServiceFuture<List<E>> allAsync(MobileServiceCallbackWithResults<E> callback, Handler handler) {
+		return new QueryBuilder().selectAsync(callback, handler);
 	}
 	
 	/**
 	 * Retrieves all elements in the mobile table and calls the specified callback when
 	 * the results are available or an exception occurs.
 	 * 
-	 * @param callback	called on the UI thread when the results are available or an exception occurs
+	 * @param callback	called on the UI thread when the results are available or an exception occurs,
+	 * 					or <b>null</b>
+	 * @return			a future that can be used to cancel the operation
 	 */
-	public void allAsync(MobileServiceCallbackWithResults<E> callback) {
-		allAsync(callback, uiHandler);
+	public MobileServiceFuture<List<E>> allAsync(MobileServiceCallbackWithResults<E> callback) {
+		return allAsync(callback, uiHandler);
 	}
 	
 	/**
@@ -106,57 +132,162 @@ public class MobileTable<E> {
 		return new QueryBuilder();
 	}
 	
-	private static class HandlerDecoratorWithResults<T> implements MobileServiceCallbackWithResults<T> {
-		private Handler handler;
-		private MobileServiceCallbackWithResults<T> callback;
+	/**
+	 * Opens a cursor that iterates over all elements in the mobile table in pages of
+	 * the specified size. Unlike {@link all}, the cursor does not retrieve the entire
+	 * table at once; see {@link MobileTableCursor} for details.
+	 * 
+	 * @param pageSize			the number of elements to retrieve in each request
+	 * @return					a cursor positioned before the first element
+	 * @throws MobileException	thrown if the page size is not positive
+	 */
+	public MobileTableCursor<E> cursor(int pageSize) throws MobileException {
+		return new QueryBuilder().cursor(pageSize);
+	}
+	
+	/**
+	 * Opens a cursor that iterates over all elements in the mobile table in pages of
+	 * a default size. See {@link MobileTableCursor} for details.
+	 * 
+	 * @return					a cursor positioned before the first element
+	 * @throws MobileException	never thrown with the default page size
+	 */
+	public MobileTableCursor<E> cursor() throws MobileException {
+		return cursor(DEFAULT_CURSOR_PAGE_SIZE);
+	}
+	
+	/**
+	 * Creates a mirror that maintains a replica of the entire mobile table on the device.
+	 * See {@link MobileTableMirror} for details.
+	 * 
+	 * @return					a mirror of the table; call {@link MobileTableMirror#sync} to populate it
+	 * @throws MobileException	never thrown for the entire table
+	 */
+	public MobileTableMirror<E> mirror() throws MobileException {
+		return new QueryBuilder().mirror();
+	}
+	
+	/**
+	 * Enables or disables write-behind mode for this table. In write-behind mode, {@link insertAsync},
+	 * {@link updateAsync} and {@link deleteAsync} do not wait for the network. Instead, they record
+	 * the change in a journal on the device and return, and the journal is sent to the mobile service
+	 * in the background. The callback of each change is invoked when the mobile service acknowledges
+	 * it, which may take a long time if the network is not available.
+	 * <p>
+	 * Changes that have not been sent yet are coalesced: updating the same item several times results
+	 * in a single request, and inserting and then deleting an item results in no requests at all.
+	 * The journal survives process death; changes left over from a previous run are sent when
+	 * write-behind mode is first enabled, but their callbacks are not invoked. Each user has a
+	 * journal of their own: when another user logs in, or the user logs out, the changes that
+	 * have not been sent yet stay on the device, and are sent when the user who made them logs
+	 * in again.
+	 * <p>
+	 * Changes that fail because of a connection error or a server error are sent again later. A
+	 * delete of an item that no longer exists succeeds. An insert that is sent again may create
+	 * a duplicate item if the first attempt reached the mobile service and only its response was
+	 * lost; to prevent that, give the item a client-generated unique column, and reject inserts
+	 * of existing values in the table's insert script.
+	 * <p>
+	 * The synchronous methods of this class always go directly to the mobile service, so do not mix
+	 * them with write-behind changes to the same items.
+	 * 
+	 * @param enabled	whether to enable write-behind mode
+	 */
+	public void setWriteBehindEnabled(boolean enabled) {
+		if (enabled) {
+			mobileService.getWriteBehindJournal(); //Sends the changes left over from a previous run
+		}
+		writeBehindEnabled = enabled;
+	}
+	
+	/**
+	 * Enables or disables change tracking for this table. With change tracking enabled, the table
+	 * remembers the column values of the items that queries return and that {@link insert} creates,
+	 * and {@link update} sends only the columns that have changed since, or does not send a request
+	 * at all if nothing has changed. This makes requests smaller, and makes it less likely that an
+	 * update overwrites a concurrent change to other columns of the same item.
+	 * <p>
+	 * The values of up to 1000 recently used items are remembered. Items that are not remembered,
+	 * such as items you create yourself with an existing id, are updated in full.
+	 * 
+	 * @param enabled	whether to enable change tracking
+	 */
+	public void setChangeTrackingEnabled(boolean enabled) {
+		changeTracker = enabled ? new ChangeTracker(MAX_TRACKED_ITEMS) : null;
+	}
+	
+	/**
+	 * Records the values of an item that has been retrieved from or sent to the mobile service,
+	 * if change tracking is enabled.
+	 * 
+	 * @param columns	the columns whose values were retrieved, or <b>null</b> for all the columns
+	 */
+	void trackItem(E item, Set<String> columns) throws IllegalAccessException, JSONException {
+		ChangeTracker tracker = changeTracker;
+		if (tracker != null) {
+			tracker.snapshot(binding.getId(item), binding.toJsonObject(item, /*withId*/true), columns);
+		}
+	}
+	
+	//Forgets the values of an item that is changed by other means, so that its next update is sent in full
+	void untrackItem(int id) {
+		ChangeTracker tracker = changeTracker;
+		if (tracker != null) {
+			tracker.forget(id);
+		}
+	}
+	
+	//Adapts a callback with results to the callback type of the future of a query
+	private static class ResultsCallback<T> implements MobileServiceCallback<List<T>> {
+		private final MobileServiceCallbackWithResults<T> callback;
 		
-		HandlerDecoratorWithResults(Handler handler, MobileServiceCallbackWithResults<T> callback) {
-			this.handler = handler;
+		ResultsCallback(MobileServiceCallbackWithResults<T> callback) {
 			this.callback = callback;
 		}
 		
-		public void completedSuccessfully(final List<T> results) {
-			handler.post(new Runnable() {
-				public void run() {
-					callback.completedSuccessfully(results);
-				}
-			});
+		static <T> ResultsCallback<T> wrap(MobileServiceCallbackWithResults<T> callback) {
+			return callback != null ? new ResultsCallback<T>(callback) : null;
+		}
+		
+		public void completedSuccessfully(List<T> results) {
+			callback.completedSuccessfully(results);
 		}
 
-		public void errorOccurred(final MobileException exception) {
-			handler.post(new Runnable() {
-				public void run() {
-					callback.errorOccurred(exception);
-				}
-			});
+		public void errorOccurred(MobileException exception) {
+			callback.errorOccurred(exception);
 		}
-		
 	}
 	
-	private static class HandlerDecorator<E> implements MobileServiceCallback<E> {
-		private Handler handler;
-		private MobileServiceCallback<E> callback;
+	//Completes a future when a change queued in the write-behind journal is sent
+	private static class FutureCompletion<T> implements MobileServiceCallback<T> {
+		private final MobileServiceFuture<T> future;
 		
-		HandlerDecorator(Handler handler, MobileServiceCallback<E> callback) {
-			this.handler = handler;
-			this.callback = callback;
+		FutureCompletion(MobileServiceFuture<T> future) {
+			this.future = future;
 		}
 		
-		public void completedSuccessfully(final E item) {
-			handler.post(new Runnable() {
-				public void run() {
-					callback.completedSuccessfully(item);
-				}
-			});
+		public void completedSuccessfully(T item) {
+			future.succeeded(item);
 		}
 
-		public void errorOccurred(final MobileException exception) {
-			handler.post(new Runnable() {
+		public void errorOccurred(MobileException exception) {
+			future.failed(exception);
+		}
+	}
+	
+	//Runs the task on the executor on behalf of the future, or fails the future if the task cannot be scheduled
+	private <T> MobileServiceFuture<T> execute(final MobileServiceFuture<T> future, final MobileServiceFuture.Task<T> task,
+			MobileServiceExecutor.Priority priority, String operation) {
+		try {
+			executor.execute(new Runnable() {
 				public void run() {
-					callback.errorOccurred(exception);
+					future.run(task);
 				}
-			});
+			}, priority);
+		} catch (RejectedExecutionException e) {
+			future.failed(new MobileException("Error scheduling " + operation + " operation", e));
 		}
+		return future;
 	}
 	
 	/**
@@ -167,11 +298,12 @@ public class MobileTable<E> {
 	 * 
 	 * @param item		the item to insert
 	 * @param callback	the callback invoked when the operation completes, specifying an
-	 * 					error if one occurred
+	 * 					error if one occurred, or <b>null</b>
 	 * @param handler	callbacks are posted to this handler
+	 * @return			a future that can be used to cancel the operation
 	 */
-	public void insertAsync(E item, MobileServiceCallback<E> callback, Handler handler) {
-		insertAsyncCore(item, new HandlerDecorator<E>(handler, callback));
+	public MobileServiceFuture<E> insertAsync(E item, MobileServiceCallback<E> callback, Handler handler) {
+		return insertAsyncCore(item, new MobileServiceFuture<E>(callback, handler, coalescer));
 	}
 	
 	/**
@@ -181,23 +313,27 @@ public class MobileTable<E> {
 	 * 
 	 * @param item		the item to insert
 	 * @param callback	the callback invoked on the UI thread when the operation completes,
-	 * 					specifying an error if one occurred
+	 * 					specifying an error if one occurred, or <b>null</b>
+	 * @return			a future that can be used to cancel the operation
 	 */
-	public void insertAsync(E item, MobileServiceCallback<E> callback) {
-		insertAsync(item, callback, uiHandler);
+	public MobileServiceFuture<E> insertAsync(E item, MobileServiceCallback<E> callback) {
+		return insertAsync(item, callback, uiHandler);
 	}
 	
-	private void insertAsyncCore(final E item, final MobileServiceCallback<E> callback) {
-		executor.execute(new Runnable() {
-			public void run() {
-				try {
-					insert(item);
-					callback.completedSuccessfully(item);
-				} catch (MobileException e) {
-					callback.errorOccurred(e);
-				}
+	private MobileServiceFuture<E> insertAsyncCore(final E item, final MobileServiceFuture<E> future) {
+		//The journal is looked up every time, because each user has a journal of their own
+		WriteBehindJournal journal = writeBehindEnabled ? mobileService.getWriteBehindJournal() : null;
+		if (journal != null) {
+			//The change stays in the journal even if the future is cancelled
+			journal.insert(tableName, binding, item, new FutureCompletion<E>(future));
+			return future;
+		}
+		return execute(future, new MobileServiceFuture.Task<E>() {
+			public E run() throws MobileException {
+				insert(item);
+				return item;
 			}
-		});
+		}, MobileServiceExecutor.Priority.BACKGROUND, "insert");
 	}
 	
 	/**
@@ -208,54 +344,124 @@ public class MobileTable<E> {
 	 * @throws MobileException	thrown if an error occurred while inserting the item
 	 */
 	public void insert(E item) throws MobileException {
+		long start = System.nanoTime();
+		boolean succeeded = false;
+		try {
+			insertCore(item);
+			succeeded = true;
+		} finally {
+			metrics.getLatency(MobileServiceMetrics.Operation.INSERT).record(start, succeeded);
+		}
+	}
+	
+	private void insertCore(E item) throws MobileException {
 		String insertUrl = getInsertUrl();
 		int statusCode;
-		JSONObject jsonResult = null;
 		try {
-			String body = Serializer.toJson(item, /*withId*/false);
-			HttpURLConnection urlConnection = null;
+			long serializationStart = System.nanoTime();
+			String body = binding.toJsonObject(item, /*withId*/false).toString();
+			metrics.recordSerialization(serializationStart);
+			HttpTransport.Response response = transport.execute(HttpTransport.POST, insertUrl, body);
+			queryCache.invalidateTable(tableName);
 			try {
-				URL url = new URL(insertUrl);
-				urlConnection = (HttpURLConnection) url.openConnection();
-				urlConnection.setDoOutput(true);
-				urlConnection.setDoInput(true);
-				urlConnection.setRequestMethod("POST");
-				urlConnection.addRequestProperty("Content-Type", "application/json");
-				urlConnection.addRequestProperty("ACCEPT", "application/json");
-				requestDecorator.decorateHttpRequest(urlConnection);
-				
-				DataOutputStream bodyOutput = new DataOutputStream(urlConnection.getOutputStream());
-				bodyOutput.writeBytes(body);
-				bodyOutput.flush();
-				bodyOutput.close();
-				
-				statusCode = urlConnection.getResponseCode();
-				Log.d("MobileTable", "HTTP POST request for insert returned status code: " + statusCode);
-				
-				InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-				BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-				StringBuilder result = new StringBuilder();
-				String line;
-				while ((line = reader.readLine()) != null) {
-					result.append(line);
-				}
-				jsonResult = new JSONObject(result.toString());
-				
+				statusCode = response.getStatusCode();
+				if (Log.isLoggable("MobileTable", Log.DEBUG)) {
+					Log.d("MobileTable", "HTTP POST request for insert returned status code: " + statusCode);
+				}
 				if (statusCode == HttpStatus.SC_CREATED) {
+					JSONObject jsonResult = new JSONObject(response.readString());
 					int id = jsonResult.getInt("id");
-					Serializer.setIdOn(item, id);
+					binding.setId(item, id);
+					trackItem(item, null);
 					return;
 				}
 			} finally {
-				if (urlConnection != null) {
-					urlConnection.disconnect();
-				}
+				response.close();
 			}
 		} catch (Exception e) {
 			throw new MobileException("Error creating item", e);
 		}
 		
-		throw new MobileException("Error creating new item, status code: " + statusCode);
+		throw new MobileException("Error creating new item, status code: " + statusCode, statusCode);
+	}
+	
+	/**
+	 * Inserts the specified items into the mobile table, with at most the specified number of
+	 * insert requests in flight at any given time, and posts the specified callback to the
+	 * provided {@link Handler} when all the items have been processed. Each item is modified
+	 * to include its id as soon as the mobile service returns it.
+	 * 
+	 * @param items			the items to insert
+	 * @param maxInFlight	the maximum number of concurrent insert requests
+	 * @param callback		the callback invoked with the outcome for each item, or with an error
+	 * 						if the operation could not be started, or <b>null</b>
+	 * @param handler		the callback is posted to this handler
+	 * @return				a future that can be used to cancel the operation
+	 */
+	public MobileServiceFuture<MobileServiceBulkResult<E>> insertAllAsync(Collection<E> items, int maxInFlight,
+			MobileServiceCallback<MobileServiceBulkResult<E>> callback, Handler handler) {
+		final List<E> list = new ArrayList<E>(items);
+		final int finalMaxInFlight = maxInFlight;
+		return execute(new MobileServiceFuture<MobileServiceBulkResult<E>>(callback, handler, coalescer),
+				new MobileServiceFuture.Task<MobileServiceBulkResult<E>>() {
+			public MobileServiceBulkResult<E> run() throws MobileException {
+				return insertAll(list, finalMaxInFlight);
+			}
+		}, MobileServiceExecutor.Priority.BACKGROUND, "insert");
+	}
+	
+	/**
+	 * Inserts the specified items into the mobile table, with a default number of insert requests
+	 * in flight, and calls the specified callback when all the items have been processed. Each
+	 * item is modified to include its id as soon as the mobile service returns it.
+	 * 
+	 * @param items		the items to insert
+	 * @param callback	the callback invoked on the UI thread with the outcome for each item, or
+	 * 					with an error if the operation could not be started, or <b>null</b>
+	 * @return			a future that can be used to cancel the operation
+	 */
+	public MobileServiceFuture<MobileServiceBulkResult<E>> insertAllAsync(Collection<E> items,
+			MobileServiceCallback<MobileServiceBulkResult<E>> callback) {
+		return insertAllAsync(items, DEFAULT_MAX_IN_FLIGHT, callback, uiHandler);
+	}
+	
+	/**
+	 * Inserts the specified items into the mobile table, with at most the specified number of
+	 * insert requests in flight at any given time. Unlike calling {@link insert} in a loop, the
+	 * time this takes is not bound by the round trip time of every single request. Each item is
+	 * modified to include its id as soon as the mobile service returns it. A failure to insert
+	 * one item does not stop the others from being inserted.
+	 * <p>
+	 * Requests beyond the number of pooled connections (see {@link MobileService#setMaxConnections})
+	 * wait for a connection to become available, so there is little point in specifying a larger
+	 * number of requests in flight.
+	 * 
+	 * @param items				the items to insert
+	 * @param maxInFlight		the maximum number of concurrent insert requests
+	 * @return					the outcome for each item, in the order of the provided collection
+	 * @throws MobileException	thrown if the calling thread was interrupted while waiting for
+	 * 							the operation to complete
+	 */
+	public MobileServiceBulkResult<E> insertAll(Collection<E> items, int maxInFlight) throws MobileException {
+		List<E> list = items instanceof List ? (List<E>) items : new ArrayList<E>(items);
+		return BulkOperation.run(list, new BulkOperation.ItemOperation<E>() {
+			public void apply(E item) throws MobileException {
+				insert(item);
+			}
+		}, HttpStatus.SC_CREATED, executor, maxInFlight);
+	}
+	
+	/**
+	 * Inserts the specified items into the mobile table, with a default number of insert requests
+	 * in flight. See {@link insertAll(Collection, int)} for details.
+	 * 
+	 * @param items				the items to insert
+	 * @return					the outcome for each item, in the order of the provided collection
+	 * @throws MobileException	thrown if the calling thread was interrupted while waiting for
+	 * 							the operation to complete
+	 */
+	public MobileServiceBulkResult<E> insertAll(Collection<E> items) throws MobileException {
+		return insertAll(items, DEFAULT_MAX_IN_FLIGHT);
 	}
 	
 	/**
@@ -266,11 +472,12 @@ public class MobileTable<E> {
 	 * 
 	 * @param item		the item to update
 	 * @param callback	the callback invoked when the operation completes, specifying an
-	 * 					error if one occurred
+	 * 					error if one occurred, or <b>null</b>
 	 * @param handler	the callback is posted to this handler
+	 * @return			a future that can be used to cancel the operation
 	 */
-	public void updateAsync(E item, MobileServiceCallback<E> callback, Handler handler) {
-		updateAsyncCore(item, new HandlerDecorator<E>(handler, callback));
+	public MobileServiceFuture<E> updateAsync(E item, MobileServiceCallback<E> callback, Handler handler) {
+		return updateAsyncCore(item, new MobileServiceFuture<E>(callback, handler, coalescer));
 	}
 	
 	/**
@@ -281,60 +488,94 @@ public class MobileTable<E> {
 	 * 
 	 * @param item		the item to update
 	 * @param callback	the callback invoked on the UI thread when the operation completes,
-	 * 					specifying an error if one occurred
+	 * 					specifying an error if one occurred, or <b>null</b>
+	 * @return			a future that can be used to cancel the operation
 	 */
-	public void updateAsync(E item, MobileServiceCallback<E> callback) {
-		updateAsync(item, callback, uiHandler);
+	public MobileServiceFuture<E> updateAsync(E item, MobileServiceCallback<E> callback) {
+		return updateAsync(item, callback, uiHandler);
 	}
 	
-	private void updateAsyncCore(final E item, final MobileServiceCallback<E> callback) {
-		executor.execute(new Runnable() {
-			public void run() {
-				try {
-					update(item);
-					callback.completedSuccessfully(item);
-				} catch (MobileException e) {
-					callback.errorOccurred(e);
-				}
+	private MobileServiceFuture<E> updateAsyncCore(final E item, final MobileServiceFuture<E> future) {
+		WriteBehindJournal journal = writeBehindEnabled ? mobileService.getWriteBehindJournal() : null;
+		if (journal != null) {
+			try {
+				untrackItem(binding.getId(item));
+			} catch (IllegalAccessException e) {
+				future.failed(new MobileException("Error updating item", e));
+				return future;
 			}
-		});
+			journal.update(tableName, binding, item, new FutureCompletion<E>(future));
+			return future;
+		}
+		return execute(future, new MobileServiceFuture.Task<E>() {
+			public E run() throws MobileException {
+				update(item);
+				return item;
+			}
+		}, MobileServiceExecutor.Priority.BACKGROUND, "update");
 	}
 	
 	/**
 	 * Updates the mobile table with the new information for the provided item. The id field
 	 * (the field decorated with the {@link Key} annotation) must be set to the item's id for 
-	 * the update to succeed.
+	 * the update to succeed. If change tracking is enabled, only the changed columns are sent;
+	 * see {@link setChangeTrackingEnabled}.
 	 * 
 	 * @param item				the item to update
 	 * @throws MobileException	thrown if an error occurred while updating the item
 	 */
 	public void update(E item) throws MobileException {
+		long start = System.nanoTime();
+		boolean succeeded = false;
+		try {
+			updateCore(item);
+			succeeded = true;
+		} finally {
+			metrics.getLatency(MobileServiceMetrics.Operation.UPDATE).record(start, succeeded);
+		}
+	}
+	
+	private void updateCore(E item) throws MobileException {
 		int statusCode;
+		int id;
+		JSONObject json;
 		try {
-			int id = Serializer.getIdFrom(item);
+			id = binding.getId(item);
 			String updateUrl = getUpdateUrlForId(id);
 			
-			String body = Serializer.toJson(item, /*withId*/true);
-			HttpClient httpClient = new DefaultHttpClient();
-			HttpPatch httpPatch = new HttpPatch(updateUrl);
-			httpPatch.addHeader("Content-Type", "application/json");
-			httpPatch.addHeader("ACCEPT", "application/json");
-			requestDecorator.decorateHttpRequest(httpPatch);
-			
-			StringEntity postBody = new StringEntity(body);
-			postBody.setContentType("application/json");
-			httpPatch.setEntity(postBody);
-			
-			HttpResponse response = httpClient.execute(httpPatch);
-			statusCode = response.getStatusLine().getStatusCode();
+			long serializationStart = System.nanoTime();
+			json = binding.toJsonObject(item, /*withId*/true);
+			metrics.recordSerialization(serializationStart);
+			ChangeTracker tracker = changeTracker;
+			JSONObject changes = tracker != null ? tracker.getChanges(id, json) : null;
+			if (changes != null && changes.length() == 1) {
+				if (Log.isLoggable("MobileTable", Log.DEBUG)) {
+					Log.d("MobileTable", "Item " + id + " has not changed, skipping update");
+				}
+				return;
+			}
+			String body = (changes != null ? changes : json).toString();
+			HttpTransport.Response response = transport.execute(HttpTransport.PATCH, updateUrl, body);
+			queryCache.invalidateTable(tableName);
+			statusCode = response.getStatusCode();
+			response.close();
 		} catch (Exception e) {
 			throw new MobileException("Error updating item", e);
 		}
 		
-		if (statusCode == HttpStatus.SC_OK)
+		if (statusCode == HttpStatus.SC_OK) {
+			ChangeTracker tracker = changeTracker;
+			if (tracker != null) {
+				try {
+					tracker.snapshot(id, json, null);
+				} catch (JSONException e) {
+					throw new MobileException("Error updating item", e);
+				}
+			}
 			return;
+		}
 		
-		throw new MobileException("Error updating item, status code: " + statusCode);
+		throw new MobileException("Error updating item, status code: " + statusCode, statusCode);
 
 	}
 	
@@ -345,11 +586,12 @@ public class MobileTable<E> {
 	 * 
 	 * @param item		the item to delete
 	 * @param callback	the callback invoked when the operation completes, specifying an
-	 * 					error if one occurred
+	 * 					error if one occurred, or <b>null</b>
 	 * @param handler	the callback is posted to this handler
+	 * @return			a future that can be used to cancel the operation
 	 */
-	public void deleteAsync(E item, MobileServiceCallback<E> callback, Handler handler) {
-		deleteAsyncCore(item, new HandlerDecorator<E>(handler, callback));
+	public MobileServiceFuture<E> deleteAsync(E item, MobileServiceCallback<E> callback, Handler handler) {
+		return deleteAsyncCore(item, new MobileServiceFuture<E>(callback, handler, coalescer));
 	}
 	
 	/**
@@ -359,23 +601,31 @@ public class MobileTable<E> {
 	 * 
 	 * @param item		the item to delete
 	 * @param callback	the callback invoked on the UI thread when the operation completes, specifying
-	 * 					an error if one occurred
+	 * 					an error if one occurred, or <b>null</b>
+	 * @return			a future that can be used to cancel the operation
 	 */
-	public void deleteAsync(E item, MobileServiceCallback<E> callback) {
-		deleteAsync(item, callback, uiHandler);
+	public MobileServiceFuture<E> deleteAsync(E item, MobileServiceCallback<E> callback) {
+		return deleteAsync(item, callback, uiHandler);
 	}
 	
-	private void deleteAsyncCore(final E item, final MobileServiceCallback<E> callback) {
-		executor.execute(new Runnable() {
-			public void run() {
-				try {
-					delete(item);
-					callback.completedSuccessfully(item);
-				} catch (MobileException e) {
-					callback.errorOccurred(e);
-				}
+	private MobileServiceFuture<E> deleteAsyncCore(final E item, final MobileServiceFuture<E> future) {
+		WriteBehindJournal journal = writeBehindEnabled ? mobileService.getWriteBehindJournal() : null;
+		if (journal != null) {
+			try {
+				untrackItem(binding.getId(item));
+			} catch (IllegalAccessException e) {
+				future.failed(new MobileException("Error deleting item", e));
+				return future;
+			}
+			journal.delete(tableName, binding, item, new FutureCompletion<E>(future));
+			return future;
+		}
+		return execute(future, new MobileServiceFuture.Task<E>() {
+			public E run() throws MobileException {
+				delete(item);
+				return item;
 			}
-		});
+		}, MobileServiceExecutor.Priority.BACKGROUND, "delete");
 	}
 	
 	/**
@@ -386,23 +636,37 @@ public class MobileTable<E> {
 	 * @throws MobileException	thrown if an exception occurs while deleting the item
 	 */
 	public void delete(E item) throws MobileException {
+		int id;
+		try {
+			id = binding.getId(item);
+		} catch (Exception e) {
+			throw new MobileException("Error deleting item", e);
+		}
+		deleteById(id);
+	}
+	
+	private void deleteById(int id) throws MobileException {
+		long start = System.nanoTime();
+		boolean succeeded = false;
+		try {
+			deleteByIdCore(id);
+			succeeded = true;
+		} finally {
+			metrics.getLatency(MobileServiceMetrics.Operation.DELETE).record(start, succeeded);
+		}
+	}
+	
+	private void deleteByIdCore(int id) throws MobileException {
 		int statusCode;
 		try {
-			int id = Serializer.getIdFrom(item);
 			String deleteUrl = getDeleteUrlForId(id);
-			HttpURLConnection urlConnection = null;
-			try {
-				URL url = new URL(deleteUrl);
-				urlConnection = (HttpURLConnection) url.openConnection();
-				urlConnection.setRequestMethod("DELETE");
-				requestDecorator.decorateHttpRequest(urlConnection);
-				
-				statusCode = urlConnection.getResponseCode();
+			HttpTransport.Response response = transport.execute(HttpTransport.DELETE, deleteUrl, null);
+			queryCache.invalidateTable(tableName);
+			untrackItem(id);
+			statusCode = response.getStatusCode();
+			response.close();
+			if (Log.isLoggable("MobileTable", Log.INFO)) {
 				Log.i("MobileTable", "HTTP DELETE request returned status code: " + statusCode);
-			} finally {
-				if (urlConnection != null) {
-					urlConnection.disconnect();
-				}
 			}
 		} catch (Exception e) {
 			throw new MobileException("Error deleting item", e);
@@ -410,25 +674,37 @@ public class MobileTable<E> {
 		if (statusCode == HttpStatus.SC_NO_CONTENT)
 			return; //Successfully deleted the item
 		
-		throw new MobileException("Error deleting item, status code: " + statusCode);
+		throw new MobileException("Error deleting item, status code: " + statusCode, statusCode);
+	}
+	
+	String getTableName() {
+		return tableName;
+	}
+	
+	TableBinding<E> getBinding() {
+		return binding;
 	}
 	
-	private String getDeleteUrlForId(int id) {
+	String getDeleteUrlForId(int id) {
 		return serviceUrl + "/tables/" + tableName + "/" + id;
 	}
 	
-	private String getInsertUrl() {
+	String getInsertUrl() {
 		return serviceUrl + "/tables/" + tableName;
 	}
 	
-	private String getSelectUrl() {
+	String getSelectUrl() {
 		return serviceUrl + "/tables/" + tableName;
 	}
 	
-	private String getUpdateUrlForId(int id) {
+	String getUpdateUrlForId(int id) {
 		return serviceUrl + "/tables/" + tableName + "/" + id;
 	}
 	
+	interface JsonRowVisitor {
+		boolean visitRow(JSONObject row, int rowLength) throws Exception;
+	}
+	
 	/**
 	 * Helper class for constructing queries using a fluent API. The methods of this class
 	 * enable query construction in steps, such as the following:
@@ -441,35 +717,39 @@ public class MobileTable<E> {
 	 * items matching the query. Note that the query is evaluated on the server; only objects
 	 * matching the query criteria are passed back to the client.
 	 * <p>
-	 * Currently, this class does not support Boolean algebra operations such as AND/OR.
-	 * All filters provided are joined together using an AND clause. In other words, the 
-	 * preceding query retrieves objects with a "bedrooms" property equal to 2 AND a "footage"
-	 * property whose value is greater than 1337.
+	 * Conditions are joined together using an AND clause unless you separate them with {@link or}.
+	 * In other words, the preceding query retrieves objects with a "bedrooms" property equal to 2
+	 * AND a "footage" property whose value is greater than 1337. AND binds more tightly than OR;
+	 * use {@link beginGroup} and {@link endGroup} to group conditions differently, and {@link not}
+	 * to negate the next condition or group:
+	 * <p>
+	 * <pre>
+	 * table.where().equal("published", true)
+	 *     .beginGroup().equal("city", "Haifa").or().in("bedrooms", 3, 4).endGroup().select();
+	 * </pre>
 	 * 
 	 * @author Sasha Goldshtein
 	 *
 	 */
 	public class QueryBuilder {
 		
-		private static final int EQUAL = 1;
-		private static final int GT = 2;
-		private static final int LT = 3;
-		
-		private class QueryOperand {
-			public QueryOperand(int operand, String value) {
-				this.operand = operand;
-				this.value = value;
-			}
-			
-			public int operand;
-			public String value;
-		}
+		private static final int NOT_MODIFIED = -1;
+		//Longer query URLs are rejected by some servers and proxies; see buildQueryUrls
+		private static final int MAX_URL_LENGTH = 2048;
 		
-		private Map<String, QueryOperand> operands = new TreeMap<String, QueryOperand>();
+		private QueryFilter.Junction filter = new QueryFilter.Junction();
+		private final ArrayList<QueryFilter.Junction> openGroups = new ArrayList<QueryFilter.Junction>();
+		private boolean negateNext;
 		private int top = -1;
 		private int skip = -1;
 		private String[] orderBy;
 		private String[] orderByDesc;
+		private String[] columns;
+		private TableBinding.Projection projection;
+		private boolean inlineCount;
+		private MobileServiceFetchPolicy fetchPolicy = MobileServiceFetchPolicy.NETWORK_ONLY;
+		private int parameterCount;
+		private String boundUrl;
 		
 		private QueryBuilder() { }
 		
@@ -477,35 +757,257 @@ public class MobileTable<E> {
 		 * Match objects whose specified property is equal to the specified value.
 		 * 
 		 * @param column	the property to match
-		 * @param value		the value to match
+		 * @param value		the value to match, or {@link MobileTable#PARAMETER}
 		 * @return			an instance of this class that can be used for further query customization
 		 */
 		public QueryBuilder equal(String column, Object value) {
-			operands.put(column, new QueryOperand(EQUAL, value.toString()));
-			return this;
+			return addComparison(column, QueryFilter.EQUAL, value);
+		}
+		
+		/**
+		 * Match objects whose specified property is not equal to the specified value.
+		 * 
+		 * @param column	the property to match
+		 * @param value		the value to match, or {@link MobileTable#PARAMETER}
+		 * @return			an instance of this class that can be used for further query customization
+		 */
+		public QueryBuilder notEqual(String column, Object value) {
+			return addComparison(column, QueryFilter.NOT_EQUAL, value);
 		}
 		
 		/**
 		 * Match objects whose specified numeric property value is greater than the specified value. 
 		 * 
 		 * @param column	the property to match
-		 * @param value		the value to match
+		 * @param value		the value to match, or {@link MobileTable#PARAMETER}
 		 * @return			an instance of this class that can be used for further query customization
 		 */
 		public QueryBuilder gt(String column, Object value) {
-			operands.put(column, new QueryOperand(GT, value.toString()));
-			return this;
+			return addComparison(column, QueryFilter.GREATER_THAN, value);
+		}
+		
+		/**
+		 * Match objects whose specified numeric property value is greater than or equal to the
+		 * specified value.
+		 * 
+		 * @param column	the property to match
+		 * @param value		the value to match, or {@link MobileTable#PARAMETER}
+		 * @return			an instance of this class that can be used for further query customization
+		 */
+		public QueryBuilder ge(String column, Object value) {
+			return addComparison(column, QueryFilter.GREATER_THAN_OR_EQUAL, value);
 		}
 		
 		/**
 		 * Match objects whose specified numeric property value is less than the specified value.
 		 * 
 		 * @param column	the property to match
-		 * @param value		the value to match
+		 * @param value		the value to match, or {@link MobileTable#PARAMETER}
 		 * @return			an instance of this class that can be used for further query customization
 		 */
 		public QueryBuilder lt(String column, Object value) {
-			operands.put(column, new QueryOperand(LT, value.toString()));
+			return addComparison(column, QueryFilter.LESS_THAN, value);
+		}
+		
+		/**
+		 * Match objects whose specified numeric property value is less than or equal to the
+		 * specified value.
+		 * 
+		 * @param column	the property to match
+		 * @param value		the value to match, or {@link MobileTable#PARAMETER}
+		 * @return			an instance of this class that can be used for further query customization
+		 */
+		public QueryBuilder le(String column, Object value) {
+			return addComparison(column, QueryFilter.LESS_THAN_OR_EQUAL, value);
+		}
+		
+		/**
+		 * Match objects whose specified property is equal to one of the specified values. This is
+		 * a shorthand for a group of {@link equal} conditions joined with {@link or}, so a single
+		 * request retrieves the items matching any of the values. If the list of values makes the
+		 * query URL too long, the query is split into several requests; see {@link select()}.
+		 * 
+		 * @param column	the property to match
+		 * @param values	the values to match; duplicate values are ignored, and an empty list
+		 * 					of values matches no objects
+		 * @return			an instance of this class that can be used for further query customization
+		 */
+		public QueryBuilder in(String column, Collection<?> values) {
+			//Duplicates would return the same items twice if the query is split
+			LinkedHashSet<String> distinctValues = new LinkedHashSet<String>(values.size());
+			for (Object value : values) {
+				if (value == PARAMETER) {
+					throw new InvalidParameterException("Parameters are not supported in an in() list");
+				}
+				distinctValues.add(value.toString());
+			}
+			return addCondition(new QueryFilter.InList(column, isStringColumn(column),
+					distinctValues.toArray(new String[distinctValues.size()])));
+		}
+		
+		/**
+		 * Match objects whose specified property is equal to one of the specified values.
+		 * See {@link in(String, Collection)} for details.
+		 * 
+		 * @param column	the property to match
+		 * @param values	the values to match
+		 * @return			an instance of this class that can be used for further query customization
+		 */
+		public QueryBuilder in(String column, Object... values) {
+			return in(column, Arrays.asList(values));
+		}
+		
+		/**
+		 * Join the preceding conditions and the following conditions with an OR clause, instead of
+		 * an AND clause. AND binds more tightly than OR, so
+		 * <code>equal("a", 1).equal("b", 2).or().equal("c", 3)</code> matches objects whose "a" and
+		 * "b" properties are 1 and 2, or whose "c" property is 3.
+		 * 
+		 * @return					an instance of this class that can be used for further query customization
+		 * @throws MobileException	thrown if there is no preceding condition in the current group
+		 */
+		public QueryBuilder or() throws MobileException {
+			if (negateNext || !currentGroup().or()) {
+				throw new MobileException("or() must follow a condition");
+			}
+			boundUrl = null;
+			return this;
+		}
+		
+		/**
+		 * Negate the next condition or group.
+		 * 
+		 * @return	an instance of this class that can be used for further query customization
+		 */
+		public QueryBuilder not() {
+			negateNext = !negateNext;
+			boundUrl = null;
+			return this;
+		}
+		
+		/**
+		 * Start a group of conditions, which is joined with the preceding and following conditions
+		 * as a single condition. This is the equivalent of an opening parenthesis.
+		 * 
+		 * @return	an instance of this class that can be used for further query customization
+		 */
+		public QueryBuilder beginGroup() {
+			QueryFilter.Junction group = new QueryFilter.Junction();
+			addCondition(group);
+			openGroups.add(group);
+			return this;
+		}
+		
+		/**
+		 * End the group of conditions started by the matching call to {@link beginGroup}. This is
+		 * the equivalent of a closing parenthesis.
+		 * 
+		 * @return					an instance of this class that can be used for further query customization
+		 * @throws MobileException	thrown if there is no group to end, or if the group is empty
+		 * 							or ends with {@link or} or {@link not}
+		 */
+		public QueryBuilder endGroup() throws MobileException {
+			if (openGroups.isEmpty()) {
+				throw new MobileException("endGroup() does not match a call to beginGroup()");
+			}
+			if (negateNext || !currentGroup().isComplete()) {
+				throw new MobileException("A group must end with a condition");
+			}
+			openGroups.remove(openGroups.size() - 1);
+			return this;
+		}
+		
+		private QueryFilter.Junction currentGroup() {
+			return openGroups.isEmpty() ? filter : openGroups.get(openGroups.size() - 1);
+		}
+		
+		private QueryBuilder addComparison(String column, int operator, Object value) {
+			if (value == PARAMETER) {
+				return addCondition(new QueryFilter.Comparison(column, operator, isStringColumn(column), null, parameterCount++));
+			}
+			return addCondition(new QueryFilter.Comparison(column, operator, isStringColumn(column), value.toString(), -1));
+		}
+		
+		private QueryBuilder addCondition(QueryFilter condition) {
+			//The query is changing, so a URL bound by a prepared query no longer applies
+			boundUrl = null;
+			if (negateNext) {
+				condition = new QueryFilter.Not(condition);
+				negateNext = false;
+			}
+			currentGroup().add(condition);
+			return this;
+		}
+		
+		private void copyFrom(QueryBuilder other) {
+			other.checkComplete();
+			filter = other.filter.copy(null);
+			top = other.top;
+			skip = other.skip;
+			orderBy = other.orderBy;
+			orderByDesc = other.orderByDesc;
+			columns = other.columns;
+			projection = other.projection;
+			fetchPolicy = other.fetchPolicy;
+			parameterCount = other.parameterCount;
+			boundUrl = other.boundUrl;
+		}
+		
+		//Creates a query whose filter is the filter of this query joined with the specified condition,
+		//and which retrieves the same columns as this query
+		private QueryBuilder narrow(QueryFilter.Junction filter, String column, int operator, Object value) {
+			return narrow(filter).addComparison(column, operator, value);
+		}
+		
+		//Creates a query with the specified filter, to which further conditions are joined with and,
+		//and which retrieves the same columns as this query
+		private QueryBuilder narrow(QueryFilter.Junction filter) {
+			QueryBuilder query = new QueryBuilder();
+			if (!filter.isEmpty()) {
+				query.addCondition(filter);
+			}
+			query.columns = columns;
+			query.projection = projection;
+			return query;
+		}
+		
+		//Creates a query with the specified filter that retrieves only the specified columns
+		private QueryBuilder project(QueryFilter.Junction filter, String... columns) {
+			QueryBuilder query = new QueryBuilder();
+			query.filter = filter.copy(null);
+			query.columns = columns;
+			query.projection = binding.project(columns);
+			return query;
+		}
+		
+		private void checkComplete() {
+			if (!openGroups.isEmpty()) {
+				throw new IllegalStateException("The query has a group that was not ended with endGroup()");
+			}
+			if (negateNext) {
+				throw new IllegalStateException("The query ends with not()");
+			}
+		}
+		
+		/**
+		 * Retrieve only the specified columns of the matching items, which reduces the size of the
+		 * response when you need only some of the columns. The id is always retrieved. The other
+		 * fields of the items keep the values set by their default constructor, so do not pass
+		 * these items to {@link MobileTable#update}, which would overwrite the other columns with
+		 * these values.
+		 * 
+		 * @param columns			the names of the columns to retrieve
+		 * @return					an instance of this class that can be used for further query customization
+		 * @throws MobileException	thrown if this method has already been called with this
+		 * 							{@link QueryBuilder} instance
+		 */
+		public QueryBuilder columns(String... columns) throws MobileException {
+			if (this.columns != null) {
+				throw new MobileException("Columns have already been set to: " + Arrays.toString(this.columns));
+			}
+			projection = binding.project(columns);
+			this.columns = columns.clone();
+			boundUrl = null;
 			return this;
 		}
 		
@@ -522,6 +1024,7 @@ public class MobileTable<E> {
 				throw new MobileException("Value for top has already been set to: " + top);
 			}
 			top = items;
+			boundUrl = null;
 			return this;
 		}
 	
@@ -538,6 +1041,7 @@ public class MobileTable<E> {
 				throw new MobileException("Value for skip has already been set to: " + skip);
 			}
 			skip = items;
+			boundUrl = null;
 			return this;
 		}
 		
@@ -558,6 +1062,7 @@ public class MobileTable<E> {
 				throw new MobileException("You cannot use both orderBy and orderByDesc in a single query");
 			}
 			orderBy = properties;
+			boundUrl = null;
 			return this;
 		}
 		
@@ -578,75 +1083,500 @@ public class MobileTable<E> {
 				throw new MobileException("You cannot use both orderBy and orderByDesc in a single query");
 			}
 			orderByDesc = properties;
+			boundUrl = null;
 			return this;
 		}
 		
-		//TODO: Support Boolean algebra (AND, OR ...)
+		/**
+		 * Specifies whether the query may be answered from the query cache of the mobile service.
+		 * The default is {@link MobileServiceFetchPolicy#NETWORK_ONLY}. The policy applies to
+		 * {@link select()} and {@link selectAsync}; queries that stream their results to a visitor
+		 * are always sent to the mobile service.
+		 * <p>
+		 * Cached results are shared: the items in a list returned from the cache are the same
+		 * instances that were returned the first time, so treat them as read-only.
+		 * 
+		 * @param policy	the fetch policy for this query
+		 * @return			an instance of this class that can be used for further query customization
+		 */
+		public QueryBuilder fetchPolicy(MobileServiceFetchPolicy policy) {
+			fetchPolicy = policy;
+			return this;
+		}
 		
-		private String quoteValueIfNecessary(String key, String value) {
-			Class<?> fieldClass = Serializer.getFieldClassForKey(clazz, key);
-			if (fieldClass.equals(String.class)) {
-				return "'" + value + "'";
+		/**
+		 * Opens a cursor that iterates over the items matching the query in ascending id order,
+		 * retrieving them from the mobile service in pages of the specified size. The next page
+		 * is retrieved in the background while you consume the current one. See
+		 * {@link MobileTableCursor} for details.
+		 * <p>
+		 * The cursor pages through the results by filtering on the id column, so the query
+		 * cannot specify an order, or top and skip values.
+		 * 
+		 * @param pageSize			the number of items to retrieve in each request
+		 * @return					a cursor positioned before the first matching item
+		 * @throws MobileException	thrown if the page size is not positive, or if the query
+		 * 							cannot be evaluated with a cursor
+		 */
+		public MobileTableCursor<E> cursor(int pageSize) throws MobileException {
+			if (pageSize <= 0) {
+				throw new MobileException("Page size must be positive, got: " + pageSize);
 			}
-			return value;
+			if (top != -1 || skip != -1 || orderBy != null || orderByDesc != null) {
+				throw new MobileException("Cursors return items in id order, and cannot be used with top, skip, or orderBy");
+			}
+			checkComplete();
+			final QueryFilter.Junction filter = this.filter.copy(null);
+			return new MobileTableCursor<E>(new MobileTableCursor.PageFetcher<E>() {
+				public List<E> fetchPage(int afterId, int pageSize) throws MobileException {
+					QueryBuilder page = narrow(filter, "id", QueryFilter.GREATER_THAN, afterId);
+					page.top = pageSize;
+					page.orderBy = new String[] { "id" };
+					return page.select();
+				}
+				
+				public int getId(E item) throws MobileException {
+					try {
+						return binding.getId(item);
+					} catch (IllegalAccessException e) {
+						throw new MobileException("Error reading id from item", e);
+					}
+				}
+			}, executor, pageSize);
 		}
 		
-		private String buildQueryUrl() {
-			String selectUrl = getSelectUrl();
-			if (operands.size() == 0)
-				return selectUrl;
-			selectUrl += "?$filter=(";
-			//At this time we assume that all operands are to be strung together with 'and'
-			ArrayList<String> keys = new ArrayList<String>(operands.keySet());
-			for (int i = 0; i < keys.size(); ++i) {
-				String key = keys.get(i);
-				QueryOperand operand = operands.get(key);
-				String quotedValue = quoteValueIfNecessary(key, operand.value);
-				switch (operand.operand) {
-				case EQUAL:
-					selectUrl += "(" + key + "%20eq%20" + quotedValue + ")";
-					break;
-				case GT:
-					selectUrl += "(" + key + "%20gt%20" + quotedValue + ")";
-					break;
-				case LT:
-					selectUrl += "(" + key + "%20lt%20" + quotedValue + ")";
-					break;
+		/**
+		 * Creates a mirror that maintains a replica of the items matching the query on the device.
+		 * Mirrors of the same query share the same replica. See {@link MobileTableMirror} for details.
+		 * <p>
+		 * The mirror retrieves changes by filtering on the id column or on its watermark column,
+		 * and specifying its own order, so the query cannot specify an order, or top and skip values.
+		 * The mirror stores complete items, so the query cannot specify columns either.
+		 * 
+		 * @return					a mirror of the query; call {@link MobileTableMirror#sync} to populate it
+		 * @throws MobileException	thrown if the query cannot be mirrored
+		 */
+		public MobileTableMirror<E> mirror() throws MobileException {
+			if (top != -1 || skip != -1 || orderBy != null || orderByDesc != null) {
+				throw new MobileException("Mirrors retrieve items in their own order, and cannot be used with top, skip, or orderBy");
+			}
+			if (columns != null) {
+				throw new MobileException("Mirrors store complete items, and cannot be used with columns");
+			}
+			checkComplete();
+			final QueryFilter.Junction filter = this.filter.copy(null);
+			MobileTableMirror.RowSource source = new MobileTableMirror.RowSource() {
+				public int readAfterId(int afterId, int pageSize, JsonRowVisitor visitor) throws MobileException {
+					QueryBuilder page = narrow(filter, "id", QueryFilter.GREATER_THAN, afterId);
+					page.top = pageSize;
+					page.orderBy = new String[] { "id" };
+					return page.readRows(page.buildQueryUrl(), null, visitor);
+				}
+				
+				public int readAfterWatermark(String column, String watermark, int afterId, int pageSize,
+						JsonRowVisitor visitor) throws MobileException {
+					QueryBuilder page;
+					if (afterId < 0) {
+						page = narrow(filter, column, QueryFilter.GREATER_THAN, watermark);
+					} else {
+						//Items with equal watermarks may straddle pages, so continue from the id within the watermark
+						page = narrow(filter);
+						page.beginGroup()
+							.gt(column, watermark)
+							.or().equal(column, watermark).gt("id", afterId)
+							.endGroup();
+					}
+					page.top = pageSize;
+					page.orderBy = new String[] { column, "id" };
+					return page.readRows(page.buildQueryUrl(), null, visitor);
+				}
+				
+				public String readMaxWatermark(final String column) throws MobileException {
+					QueryBuilder last = project(filter, column);
+					last.top = 1;
+					last.orderByDesc = new String[] { column };
+					final String[] watermark = new String[1];
+					last.readRows(last.buildQueryUrl(), null, new JsonRowVisitor() {
+						public boolean visitRow(JSONObject row, int rowLength) {
+							Object value = row.opt(column);
+							watermark[0] = value == null || value == JSONObject.NULL ? null : value.toString();
+							return false;
+						}
+					});
+					return watermark[0];
 				}
-				if (i != keys.size() - 1) {
-					selectUrl += "%20and%20";
+				
+				public int readIds(JsonRowVisitor visitor) throws MobileException {
+					QueryBuilder ids = project(filter);
+					int count = 0;
+					for (String url : ids.buildQueryUrls()) {
+						count += ids.readRows(url, null, visitor);
+					}
+					return count;
 				}
+			};
+			return new MobileTableMirror<E>(mobileService.getMirrorDatabase(), buildQueryUrl(), binding, source,
+					executor, coalescer, uiHandler);
+		}
+		
+		/**
+		 * Compiles the query into a template that can be evaluated repeatedly with different values
+		 * for its parameters. Pass {@link MobileTable#PARAMETER} instead of a value to the filter
+		 * methods to declare a parameter; see {@link PreparedQuery} for details. The template is
+		 * independent of this {@link QueryBuilder}, which you can continue to modify.
+		 * 
+		 * @return	a prepared query with a parameter for each {@link MobileTable#PARAMETER} value,
+		 * 			in the order in which they were specified
+		 */
+		public PreparedQuery prepare() {
+			return new PreparedQuery(this, compile(null, 0, 0));
+		}
+		
+		//Compiles the query URL into the segments between parameters, rendering only part of the
+		//specified in() list if it is not null
+		private QueryFilter.Compiler compile(QueryFilter.InList splitList, int splitFrom, int splitTo) {
+			checkComplete();
+			String selectUrl = getSelectUrl();
+			QueryFilter.Compiler compiler = new QueryFilter.Compiler(selectUrl.length() + 128, splitList, splitFrom, splitTo);
+			StringBuilder url = compiler.url();
+			url.append(selectUrl);
+			char separator = '?';
+			if (!filter.isEmpty()) {
+				url.append("?$filter=");
+				filter.compile(compiler);
+				separator = '&';
 			}
-			selectUrl += ")";
 			if (top != -1) {
-				selectUrl += "&$top=" + top;
+				url.append(separator).append("$top=").append(top);
+				separator = '&';
 			}
 			if (skip != -1) {
-				selectUrl += "&$skip=" + skip;
+				url.append(separator).append("$skip=").append(skip);
+				separator = '&';
 			}
 			if (orderBy != null && orderBy.length > 0) {
-				selectUrl += "&$orderby=";
-				selectUrl += joinOrderByFields(orderBy, false);
+				url.append(separator).append("$orderby=");
+				appendOrderByFields(url, orderBy, false);
+				separator = '&';
 			}
 			if (orderByDesc != null && orderByDesc.length > 0) {
-				selectUrl += "&$orderby=";
-				selectUrl += joinOrderByFields(orderByDesc, true);
+				url.append(separator).append("$orderby=");
+				appendOrderByFields(url, orderByDesc, true);
+				separator = '&';
+			}
+			if (columns != null) {
+				url.append(separator).append("$select=id");
+				for (String column : columns) {
+					if (!column.equals("id")) {
+						url.append(',').append(column);
+					}
+				}
+				separator = '&';
+			}
+			if (inlineCount) {
+				url.append(separator).append("$inlinecount=allpages");
+			}
+			compiler.finish();
+			return compiler;
+		}
+		
+		//Creates an item from a row, reading only the columns that the query retrieves
+		E toObject(JSONObject row) throws JSONException, InstantiationException, IllegalAccessException {
+			long start = System.nanoTime();
+			E item = binding.toObject(row, projection);
+			long elapsed = System.nanoTime() - start;
+			metrics.recordDeserialization(elapsed);
+			RequestTracer.addHydratedRow(elapsed);
+			trackItem(item, projection == null ? null : projection.names);
+			return item;
+		}
+		
+		private boolean isStringColumn(String key) {
+			return binding.getColumnType(key).equals(String.class);
+		}
+		
+		/**
+		 * Deletes the items matching the query, with at most the specified number of delete requests
+		 * in flight at any given time. Only the ids of the matching items are retrieved from the
+		 * mobile service, and a failure to delete one item does not stop the others from being deleted.
+		 * 
+		 * @param maxInFlight		the maximum number of concurrent delete requests
+		 * @return					the outcome for the id of each matching item
+		 * @throws MobileException	thrown if an error occurred while retrieving the ids of the
+		 * 							matching items
+		 */
+		public MobileServiceBulkResult<Integer> delete(int maxInFlight) throws MobileException {
+			final List<Integer> ids = new ArrayList<Integer>();
+			JsonRowVisitor idReader = new JsonRowVisitor() {
+				public boolean visitRow(JSONObject row, int rowLength) throws JSONException {
+					ids.add(row.getInt("id"));
+					return true;
+				}
+			};
+			//Only the ids are needed, whatever columns the query retrieves
+			QueryBuilder idQuery = new QueryBuilder();
+			idQuery.copyFrom(this);
+			idQuery.columns = new String[0];
+			idQuery.projection = binding.project(idQuery.columns);
+			idQuery.boundUrl = null;
+			for (String url : idQuery.buildQueryUrls()) {
+				readRows(url, null, idReader);
+			}
+			return BulkOperation.run(ids, new BulkOperation.ItemOperation<Integer>() {
+				public void apply(Integer id) throws MobileException {
+					deleteById(id);
+				}
+			}, HttpStatus.SC_NO_CONTENT, executor, maxInFlight);
+		}
+		
+		/**
+		 * Deletes the items matching the query, with a default number of delete requests in flight.
+		 * See {@link delete(int)} for details.
+		 * 
+		 * @return					the outcome for the id of each matching item
+		 * @throws MobileException	thrown if an error occurred while retrieving the ids of the
+		 * 							matching items
+		 */
+		public MobileServiceBulkResult<Integer> delete() throws MobileException {
+			return delete(DEFAULT_MAX_IN_FLIGHT);
+		}
+		
+		/**
+		 * Deletes the items matching the query, and posts the specified callback to the provided
+		 * {@link Handler} when all the matching items have been processed. See {@link delete(int)}
+		 * for details.
+		 * 
+		 * @param maxInFlight	the maximum number of concurrent delete requests
+		 * @param callback		the callback invoked with the outcome for the id of each matching item,
+		 * 						or with an error if the ids of the matching items could not be retrieved,
+		 * 						or <b>null</b>
+		 * @param handler		the callback is posted to this handler
+		 * @return				a future that can be used to cancel the operation
+		 */
+		public MobileServiceFuture<MobileServiceBulkResult<Integer>> deleteAsync(final int maxInFlight,
+				MobileServiceCallback<MobileServiceBulkResult<Integer>> callback, Handler handler) {
+			return execute(new MobileServiceFuture<MobileServiceBulkResult<Integer>>(callback, handler, coalescer),
+					new MobileServiceFuture.Task<MobileServiceBulkResult<Integer>>() {
+				public MobileServiceBulkResult<Integer> run() throws MobileException {
+					return delete(maxInFlight);
+				}
+			}, MobileServiceExecutor.Priority.BACKGROUND, "delete");
+		}
+		
+		/**
+		 * Deletes the items matching the query, with a default number of delete requests in flight,
+		 * and calls the specified callback when all the matching items have been processed.
+		 * 
+		 * @param callback	the callback invoked on the UI thread with the outcome for the id of each
+		 * 					matching item, or with an error if the ids could not be retrieved, or <b>null</b>
+		 * @return			a future that can be used to cancel the operation
+		 */
+		public MobileServiceFuture<MobileServiceBulkResult<Integer>> deleteAsync(
+				MobileServiceCallback<MobileServiceBulkResult<Integer>> callback) {
+			return deleteAsync(DEFAULT_MAX_IN_FLIGHT, callback, uiHandler);
+		}
+		
+		/**
+		 * Retrieves the number of items matching the query, without retrieving the items themselves.
+		 * The top and skip values and the order of the query are ignored.
+		 * 
+		 * @return					the number of matching items
+		 * @throws MobileException	thrown if an exception occurred while evaluating the query
+		 */
+		public int count() throws MobileException {
+			QueryBuilder countQuery = withInlineCount();
+			countQuery.top = 0;
+			countQuery.skip = -1;
+			countQuery.orderBy = null;
+			countQuery.orderByDesc = null;
+			countQuery.columns = new String[0];
+			countQuery.projection = binding.project(countQuery.columns);
+			return countQuery.readWithCount(new JsonRowVisitor() {
+				public boolean visitRow(JSONObject row, int rowLength) {
+					return true;
+				}
+			});
+		}
+		
+		/**
+		 * Retrieves the number of items matching the query, and posts the specified callback to the
+		 * provided {@link Handler} when the operation completes. See {@link count()} for details.
+		 * 
+		 * @param callback	the callback invoked when the operation completes, providing the number
+		 * 					of matching items or an exception if one occurred, or <b>null</b>
+		 * @param handler	the callback is posted to this handler
+		 * @return			a future that can be used to cancel the operation
+		 */
+		public MobileServiceFuture<Integer> countAsync(MobileServiceCallback<Integer> callback, Handler handler) {
+			return execute(new MobileServiceFuture<Integer>(callback, handler, coalescer), new MobileServiceFuture.Task<Integer>() {
+				public Integer run() throws MobileException {
+					return count();
+				}
+			}, MobileServiceExecutor.Priority.INTERACTIVE, "select");
+		}
+		
+		/**
+		 * Retrieves the number of items matching the query, and calls the specified callback on
+		 * the UI thread when the operation completes. See {@link count()} for details.
+		 * 
+		 * @param callback	the callback invoked when the operation completes, providing the number
+		 * 					of matching items or an exception if one occurred, or <b>null</b>
+		 * @return			a future that can be used to cancel the operation
+		 */
+		public MobileServiceFuture<Integer> countAsync(MobileServiceCallback<Integer> callback) {
+			return countAsync(callback, uiHandler);
+		}
+		
+		/**
+		 * Evaluates the query and returns the matching items, along with the total number of items
+		 * matching the query regardless of its top and skip values. Use this method to retrieve a
+		 * page of items and the number of pages in a single request. The results are not cached,
+		 * regardless of the fetch policy of the query.
+		 * 
+		 * @return					the matching items and the total number of matching items
+		 * @throws MobileException	thrown if an exception occurred while evaluating the query
+		 */
+		public MobileServicePage<E> selectWithCount() throws MobileException {
+			final List<E> results = new ArrayList<E>();
+			int totalCount = withInlineCount().readWithCount(new JsonRowVisitor() {
+				public boolean visitRow(JSONObject row, int rowLength) throws Exception {
+					results.add(toObject(row));
+					return true;
+				}
+			});
+			return new MobileServicePage<E>(results, totalCount);
+		}
+		
+		/**
+		 * Evaluates the query and returns the matching items along with the total number of matching
+		 * items, and posts the specified callback to the provided {@link Handler} when the operation
+		 * completes. See {@link selectWithCount()} for details.
+		 * 
+		 * @param callback	the callback invoked when the operation completes, providing the page
+		 * 					of items or an exception if one occurred, or <b>null</b>
+		 * @param handler	the callback is posted to this handler
+		 * @return			a future that can be used to cancel the operation
+		 */
+		public MobileServiceFuture<MobileServicePage<E>> selectWithCountAsync(MobileServiceCallback<MobileServicePage<E>> callback,
+				Handler handler) {
+			return execute(new MobileServiceFuture<MobileServicePage<E>>(callback, handler, coalescer),
+					new MobileServiceFuture.Task<MobileServicePage<E>>() {
+				public MobileServicePage<E> run() throws MobileException {
+					return selectWithCount();
+				}
+			}, MobileServiceExecutor.Priority.INTERACTIVE, "select");
+		}
+		
+		/**
+		 * Evaluates the query and returns the matching items along with the total number of matching
+		 * items, and calls the specified callback on the UI thread when the operation completes.
+		 * See {@link selectWithCount()} for details.
+		 * 
+		 * @param callback	the callback invoked when the operation completes, providing the page
+		 * 					of items or an exception if one occurred, or <b>null</b>
+		 * @return			a future that can be used to cancel the operation
+		 */
+		public MobileServiceFuture<MobileServicePage<E>> selectWithCountAsync(MobileServiceCallback<MobileServicePage<E>> callback) {
+			return selectWithCountAsync(callback, uiHandler);
+		}
+		
+		//Creates a copy of this query that also retrieves the total number of matching items
+		private QueryBuilder withInlineCount() {
+			QueryBuilder query = new QueryBuilder();
+			query.copyFrom(this);
+			query.boundUrl = null;
+			query.inlineCount = true;
+			return query;
+		}
+		
+		//Evaluates a query with an inline count, and returns the total number of matching items; if
+		//the query was split into several requests, their counts are of disjoint sets of items
+		private int readWithCount(JsonRowVisitor visitor) throws MobileException {
+			int[] count = new int[1];
+			int totalCount = 0;
+			for (String queryUrl : buildQueryUrls()) {
+				readRows(queryUrl, null, visitor, count);
+				if (count[0] == -1) {
+					throw new MobileException("The mobile service did not return the number of matching items");
+				}
+				totalCount += count[0];
+			}
+			return totalCount;
+		}
+		
+		MobileTable<E> getTable() {
+			return MobileTable.this;
+		}
+		
+		String buildQueryUrl() {
+			if (boundUrl != null) {
+				return boundUrl;
+			}
+			List<String> segments = compile(null, 0, 0).segments;
+			if (segments.size() != 1) {
+				throw new IllegalStateException("The query has parameters; call prepare() and bind values to them first");
+			}
+			return segments.get(0);
+		}
+		
+		/**
+		 * Builds the URLs of the requests that evaluate the query. If the query URL is too long, and
+		 * the query has an in() list joined with the rest of the filter with and, the list is split so
+		 * that each request has a URL that is short enough. Every item matches one value of the list
+		 * at most, so each item is returned by one request at most.
+		 * 
+		 * @throws MobileException	thrown if the query URL is too long and cannot be split
+		 */
+		List<String> buildQueryUrls() throws MobileException {
+			String url = buildQueryUrl();
+			if (url.length() <= MAX_URL_LENGTH) {
+				return Collections.singletonList(url);
+			}
+			QueryFilter.InList list = filter.getSplittableInList();
+			if (list == null || list.size() < 2) {
+				throw new MobileException("The query URL is " + url.length() + " characters long, and the query " +
+						"does not have an in() list that can be split into several requests");
+			}
+			//A query with a top of zero returns no items, only a count, which is the sum of the split counts
+			if (top > 0 || skip != -1 || orderBy != null || orderByDesc != null) {
+				throw new MobileException("The query URL is " + url.length() + " characters long, and a query " +
+						"with top, skip, or orderBy cannot be split into several requests");
+			}
+			int[] termLengths = list.getTermLengths();
+			int separatorLength = QueryFilter.InList.getSeparatorLength();
+			int baseLength = compile(list, 0, 1).segments.get(0).length() - termLengths[0];
+			List<String> urls = new ArrayList<String>();
+			int from = 0;
+			int length = baseLength + termLengths[0];
+			for (int i = 1; i < termLengths.length; ++i) {
+				if (length + separatorLength + termLengths[i] > MAX_URL_LENGTH) {
+					urls.add(compile(list, from, i).segments.get(0));
+					from = i;
+					length = baseLength + termLengths[i];
+				} else {
+					length += separatorLength + termLengths[i];
+				}
+			}
+			if (length > MAX_URL_LENGTH) {
+				throw new MobileException("The query URL is too long even with a single value of its in() list");
 			}
-			return selectUrl;
+			urls.add(compile(list, from, termLengths.length).segments.get(0));
+			if (Log.isLoggable("MobileTable", Log.DEBUG)) {
+				Log.d("MobileTable", "Split a query with " + list.size() + " in() values into " + urls.size() + " requests");
+			}
+			return urls;
 		}
 		
-		private String joinOrderByFields(String[] fields, boolean descending) {
-			String result = "";
+		private void appendOrderByFields(StringBuilder url, String[] fields, boolean descending) {
 			for (int i = 0; i < fields.length; ++i) {
-				result += fields[i];
-				if (descending) {
-					result += "%20desc";
+				if (i != 0) {
+					url.append(',');
 				}
-				if (i != fields.length - 1) {
-					result += ",";
+				url.append(fields[i]);
+				if (descending) {
+					url.append("%20desc");
 				}
 			}
-			return result;
 		}
 		
 		/**
@@ -654,11 +1584,12 @@ public class MobileTable<E> {
 		 * specified callback to the provided {@link Handler}.
 		 * 
 		 * @param callback	the callback invoked when the operation completes, providing the 
-		 * 					list of items or an exception if one occurred
+		 * 					list of items or an exception if one occurred, or <b>null</b>
 		 * @param handler	the callback is posted to this handler
+		 * @return			a future that can be used to cancel the operation
 		 */
-		public void selectAsync(MobileServiceCallbackWithResults<E> callback, Handler handler) {
-			selectAsyncCore(new HandlerDecoratorWithResults<E>(handler, callback));
+		public MobileServiceFuture<List<E>> selectAsync(MobileServiceCallbackWithResults<E> callback, Handler handler) {
+			return selectAsyncCore(new MobileServiceFuture<List<E>>(ResultsCallback.wrap(callback), handler, coalescer));
 		}
 
 		/**
@@ -666,61 +1597,433 @@ public class MobileTable<E> {
 		 * specified callback.
 		 * 
 		 * @param callback	the callback invoked when the operation completes, providing the 
-		 * 					list of items or an exception if one occurred
+		 * 					list of items or an exception if one occurred, or <b>null</b>
+		 * @return			a future that can be used to cancel the operation
 		 */
-		public void selectAsync(MobileServiceCallbackWithResults<E> callback) {
-			selectAsync(callback, uiHandler);
+		public MobileServiceFuture<List<E>> selectAsync(MobileServiceCallbackWithResults<E> callback) {
+			return selectAsync(callback, uiHandler);
 		}
 		
-		private void selectAsyncCore(final MobileServiceCallbackWithResults<E> callback) {
-			executor.execute(new Runnable() {
-				public void run() {
-					try {
-						List<E> results = select();
-						callback.completedSuccessfully(results);
-					} catch (MobileException e) {
-						callback.errorOccurred(e);
+		private MobileServiceFuture<List<E>> selectAsyncCore(final MobileServiceFuture<List<E>> future) {
+			final String queryUrl = buildQueryUrl();
+			final boolean revalidate;
+			if (fetchPolicy == MobileServiceFetchPolicy.STALE_WHILE_REVALIDATE) {
+				List<E> cached = getCachedResults(queryUrl, /*allowStale*/true);
+				if (cached != null) {
+					//Post the cached results to the callbacks right away; the future completes with the fresh results
+					future.deliverInterim(cached);
+				}
+				revalidate = true;
+			} else {
+				revalidate = false;
+			}
+			final String key = getInFlightKey(queryUrl, revalidate);
+			final InFlightQueries.Listener listener = new InFlightQueries.Listener() {
+				@SuppressWarnings("unchecked")
+				public void completed(Object results, MobileException error) {
+					//Every caller gets its own list, because callers are free to modify it
+					if (error != null) {
+						future.failed(error);
+					} else {
+						future.succeeded(new ArrayList<E>((List<E>) results));
 					}
 				}
+			};
+			final InFlightQueries.Call call = inFlightQueries.join(key, listener, /*onlyIfStarted*/false);
+			//A cancelled caller leaves the query, which is aborted if no other caller is waiting for it
+			future.getCancellation().addListener(new Runnable() {
+				public void run() {
+					inFlightQueries.leave(key, listener);
+				}
 			});
+			if (call == null) {
+				//An identical query is already in flight, and its results will be delivered to us too
+				return future;
+			}
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						inFlightQueries.start(call);
+						Cancellation previous = call.getCancellation().enter();
+						try {
+							inFlightQueries.complete(call, evaluate(revalidate), null);
+						} catch (MobileException e) {
+							inFlightQueries.complete(call, null, e);
+						} finally {
+							Cancellation.exit(previous);
+						}
+					}
+				}, MobileServiceExecutor.Priority.INTERACTIVE);
+			} catch (RejectedExecutionException e) {
+				inFlightQueries.complete(call, null, new MobileException("Error scheduling select operation", e));
+			}
+			return future;
 		}
 		
 		/**
-		 * Evaluates the query and returns the matching items.
+		 * Evaluates the query and returns the matching items. If an identical query is already in
+		 * flight, this method waits for its results instead of sending another request.
 		 * 
 		 * @throws MobileException	thrown if an exception occurred while evaluating the query
 		 */
+		@SuppressWarnings("unchecked")
 		public List<E> select() throws MobileException {
 			String queryUrl = buildQueryUrl();
+			InFlightQueries.Waiter waiter = new InFlightQueries.Waiter();
+			InFlightQueries.Call call = inFlightQueries.join(getInFlightKey(queryUrl, false), waiter, /*onlyIfStarted*/true);
+			if (call != null) {
+				inFlightQueries.start(call);
+				try {
+					inFlightQueries.complete(call, evaluate(false), null);
+				} catch (MobileException e) {
+					inFlightQueries.complete(call, null, e);
+				}
+			}
+			return new ArrayList<E>((List<E>) waiter.await());
+		}
+		
+		//Queries are shared only by callers with the same identity, and with the same fetch policy,
+		//because a query that bypasses the cache should not receive results from the cache
+		private String getInFlightKey(String queryUrl, boolean revalidate) {
+			String mode = revalidate ? "REVALIDATE" : fetchPolicy.name();
+			return mode + " " + mobileService.getAuthenticationToken() + " " + queryUrl;
+		}
+		
+		private List<E> evaluate(boolean revalidate) throws MobileException {
+			List<String> queryUrls = buildQueryUrls();
+			if (queryUrls.size() == 1) {
+				return revalidate ? fetch(queryUrls.get(0)) : selectCached(queryUrls.get(0));
+			}
+			List<E> results = new ArrayList<E>();
+			for (String queryUrl : queryUrls) {
+				results.addAll(revalidate ? fetch(queryUrl) : selectCached(queryUrl));
+			}
+			return results;
+		}
+		
+		private List<E> selectCached(String queryUrl) throws MobileException {
+			if (fetchPolicy != MobileServiceFetchPolicy.NETWORK_ONLY) {
+				boolean allowStale = fetchPolicy == MobileServiceFetchPolicy.STALE_WHILE_REVALIDATE;
+				QueryCache.Entry entry = queryCache.get(queryUrl);
+				if (entry != null && (allowStale || entry.isFresh())) {
+					if (!entry.isFresh()) {
+						revalidateInBackground(queryUrl);
+					}
+					return createResults(entry);
+				}
+			}
+			return fetch(queryUrl);
+		}
+		
+		//Retrieves the results from the mobile service, with a conditional request if there are cached
+		//results with validators, and caches the results if the fetch policy or the validators allow it
+		private List<E> fetch(String queryUrl) throws MobileException {
+			final List<E> results = new ArrayList<E>();
+			final List<JSONObject> rows = new ArrayList<JSONObject>();
+			final long[] size = new long[1];
+			long invalidationToken = queryCache.getInvalidationCount();
+			QueryCache.Entry cached = queryCache.get(queryUrl);
+			QueryCache.Validators validators = new QueryCache.Validators(cached);
+			int count = readRows(queryUrl, validators, new JsonRowVisitor() {
+				public boolean visitRow(JSONObject row, int rowLength) throws Exception {
+					results.add(toObject(row));
+					rows.add(row);
+					size[0] += rowLength;
+					return true;
+				}
+			});
+			if (count == NOT_MODIFIED) {
+				if (Log.isLoggable("MobileTable", Log.DEBUG)) {
+					Log.d("MobileTable", "Query results not modified, using cached results: " + queryUrl);
+				}
+				queryCache.put(tableName, queryUrl, cached.rows, cached.size, validators, invalidationToken);
+				return createResults(cached);
+			}
+			if (fetchPolicy != MobileServiceFetchPolicy.NETWORK_ONLY || validators.isPresent()) {
+				queryCache.put(tableName, queryUrl, rows, size[0], validators, invalidationToken);
+			}
+			return results;
+		}
+		
+		private List<E> getCachedResults(String queryUrl, boolean allowStale) {
+			QueryCache.Entry entry = queryCache.get(queryUrl);
+			if (entry == null || !(allowStale || entry.isFresh())) {
+				return null;
+			}
 			try {
-				URL url = new URL(queryUrl);
-				Log.d("MobileTable", "Executing select request: " + queryUrl);
-				HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-				urlConnection.setRequestMethod("GET");
-				urlConnection.addRequestProperty("Content-Type", "application/json");
-				urlConnection.addRequestProperty("ACCEPT", "application/json");
-				requestDecorator.decorateHttpRequest(urlConnection);
-				
+				return createResults(entry);
+			} catch (MobileException e) {
+				Log.w("MobileTable", "Error deserializing cached query results: " + queryUrl, e);
+				return null;
+			}
+		}
+		
+		//The cache keeps rows rather than items, so that changes callers make to the items they got
+		//are not handed to the next caller as if they came from the server
+		private List<E> createResults(QueryCache.Entry entry) throws MobileException {
+			List<E> results = new ArrayList<E>(entry.rows.size());
+			try {
+				for (JSONObject row : entry.rows) {
+					results.add(toObject(row));
+				}
+			} catch (Exception e) {
+				throw new MobileException("Error deserializing cached query results", e);
+			}
+			return results;
+		}
+		
+		private Header[] getConditionalHeaders(QueryCache.Validators validators) {
+			if (validators == null || !validators.isPresent()) {
+				return null;
+			}
+			List<Header> headers = new ArrayList<Header>(2);
+			if (validators.entityTag != null) {
+				headers.add(new BasicHeader("If-None-Match", validators.entityTag));
+			}
+			if (validators.lastModified != null) {
+				headers.add(new BasicHeader("If-Modified-Since", validators.lastModified));
+			}
+			return headers.toArray(new Header[headers.size()]);
+		}
+		
+		private void revalidateInBackground(final String queryUrl) {
+			//If the queue is full, the stale results will be refreshed by a later query
+			executor.tryExecute(new Runnable() {
+				public void run() {
+					try {
+						fetch(queryUrl);
+					} catch (MobileException e) {
+						Log.w("MobileTable", "Error refreshing cached query results: " + queryUrl, e);
+					}
+				}
+			}, MobileServiceExecutor.Priority.BACKGROUND);
+		}
+		
+		/**
+		 * Evaluates the query and passes the matching items to the specified visitor one at a time,
+		 * as they are read from the network. Only a single row is held in memory at any given time,
+		 * which makes this method suitable for processing very large results. The visitor is
+		 * invoked on the calling thread.
+		 * 
+		 * @param visitor			the visitor that receives the matching items
+		 * @return					the number of items passed to the visitor
+		 * @throws MobileException	thrown if an exception occurred while evaluating the query
+		 */
+		public int select(final MobileServiceRowVisitor<E> visitor) throws MobileException {
+			final boolean[] stopped = new boolean[1];
+			JsonRowVisitor rowVisitor = new JsonRowVisitor() {
+				public boolean visitRow(JSONObject row, int rowLength) throws Exception {
+					stopped[0] = !visitor.visitRow(toObject(row));
+					return !stopped[0];
+				}
+			};
+			int count = 0;
+			for (String queryUrl : buildQueryUrls()) {
+				count += readRows(queryUrl, null, rowVisitor);
+				if (stopped[0]) {
+					break;
+				}
+			}
+			return count;
+		}
+		
+		/**
+		 * Sends the query and passes the rows to the specified visitor. If validators are specified,
+		 * the query is sent as a conditional request with the validators' values, and the validators
+		 * are then updated with the values returned by the mobile service.
+		 * 
+		 * @return	the number of rows passed to the visitor, or {@link NOT_MODIFIED} if the mobile
+		 * 			service indicated that the results have not changed since the validators were obtained
+		 */
+		private int readRows(String queryUrl, QueryCache.Validators validators, JsonRowVisitor visitor) throws MobileException {
+			return readRows(queryUrl, validators, visitor, null);
+		}
+		
+		/**
+		 * Sends the query and passes the rows to the specified visitor, as {@link readRows} does, and
+		 * stores the number of matching items in the first element of inlineCount if it is not
+		 * <b>null</b>. The count is -1 if the response did not include one, or if the visitor stopped
+		 * before the end of the results.
+		 */
+		private int readRows(String queryUrl, QueryCache.Validators validators, JsonRowVisitor visitor,
+				int[] inlineCount) throws MobileException {
+			long start = System.nanoTime();
+			boolean succeeded = false;
+			try {
+				int count = readRowsCore(queryUrl, validators, visitor, inlineCount);
+				succeeded = true;
+				return count;
+			} finally {
+				metrics.getLatency(MobileServiceMetrics.Operation.SELECT).record(start, succeeded);
+			}
+		}
+		
+		private int readRowsCore(String queryUrl, QueryCache.Validators validators, JsonRowVisitor visitor,
+				int[] inlineCount) throws MobileException {
+			int statusCode;
+			if (inlineCount != null) {
+				inlineCount[0] = -1;
+			}
+			try {
+				if (Log.isLoggable("MobileTable", Log.DEBUG)) {
+					Log.d("MobileTable", "Executing select request: " + queryUrl);
+				}
+				HttpTransport.Response response = transport.executeWithHeaders(HttpTransport.GET, queryUrl, getConditionalHeaders(validators));
+				boolean completed = false;
 				try {
-					InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-					BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-					StringBuilder response = new StringBuilder();
-					String line;
-					while ((line = reader.readLine()) != null) {
-						response.append(line);
+					statusCode = response.getStatusCode();
+					if (statusCode == HttpStatus.SC_NOT_MODIFIED && validators != null && validators.isPresent()) {
+						completed = true;
+						return NOT_MODIFIED;
+					}
+					if (validators != null) {
+						validators.entityTag = response.getHeader("ETag");
+						validators.lastModified = response.getHeader("Last-Modified");
 					}
-					JSONArray jsonArray = new JSONArray(response.toString());
-					List<E> results = new ArrayList<E>(jsonArray.length());
-					for (int i = 0; i < jsonArray.length(); i++) {
-						results.add(Serializer.toObject(jsonArray.getJSONObject(i), MobileTable.this.clazz));
+					if (statusCode == HttpStatus.SC_OK) {
+						InputStream in = response.getContent();
+						JsonRowReader reader = new JsonRowReader(new InputStreamReader(in, "UTF-8"));
+						int count = 0;
+						reader.beginResults();
+						while (reader.hasNext()) {
+							++count;
+							if (!visitor.visitRow(reader.nextObject(), reader.getRowLength())) {
+								return count;
+							}
+						}
+						reader.endResults();
+						if (inlineCount != null) {
+							inlineCount[0] = reader.getCount();
+						}
+						completed = true;
+						return count;
 					}
-					return results;
+					completed = true;
 				} finally {
-					urlConnection.disconnect();
+					if (completed) {
+						response.close();
+					} else {
+						//Don't download the rest of a response we are no longer interested in
+						response.abort();
+					}
 				}
 			} catch (Exception e) {
 				throw new MobileException("Error fetching objects", e);
 			}
+			throw new MobileException("Error fetching objects, status code: " + statusCode, statusCode);
+		}
+	}
+	
+	/**
+	 * A query compiled into a template, which can be evaluated repeatedly with different values for
+	 * its parameters. The URL of the query, the order of its filters, and the quoting rules of its
+	 * parameters are computed once, when the query is prepared; binding values only escapes them
+	 * and joins them with the precomputed parts of the URL. Prepared queries are immutable, so you
+	 * can keep them in fields and use them from multiple threads.
+	 * <p>
+	 * An example of a prepared query with two parameters:
+	 * <p>
+	 * <pre>
+	 * MobileTable&lt;Apartment&gt;.PreparedQuery query = apartments.where()
+	 *     .equal("city", MobileTable.PARAMETER).gt("bedrooms", MobileTable.PARAMETER).prepare();
+	 * List&lt;Apartment&gt; apartmentsInTown = query.bind("Haifa", 2).select();
+	 * </pre>
+	 * 
+	 * @author Sasha Goldshtein
+	 *
+	 */
+	public class PreparedQuery {
+		
+		private final QueryBuilder template;
+		private final String[] segments;
+		private final int[] parameterIndexes;
+		private final boolean[] quoteParameters;
+		private final int[] parameterPositions;
+		private final int length;
+		
+		private PreparedQuery(QueryBuilder query, QueryFilter.Compiler compiler) {
+			this.template = new QueryBuilder();
+			template.copyFrom(query);
+			this.segments = compiler.segments.toArray(new String[compiler.segments.size()]);
+			int count = compiler.parameterIndexes.size();
+			this.parameterIndexes = new int[count];
+			this.quoteParameters = new boolean[count];
+			this.parameterPositions = new int[count];
+			for (int i = 0; i < count; ++i) {
+				parameterIndexes[i] = compiler.parameterIndexes.get(i);
+				quoteParameters[i] = compiler.parameterQuotes.get(i);
+			}
+			//Bound values are passed in declaration order, which is the order of the parameter indexes
+			for (int i = 0; i < count; ++i) {
+				for (int j = 0; j < count; ++j) {
+					if (parameterIndexes[j] < parameterIndexes[i]) {
+						++parameterPositions[i];
+					}
+				}
+			}
+			int length = 0;
+			for (String segment : this.segments) {
+				length += segment.length();
+			}
+			this.length = length;
+		}
+		
+		/**
+		 * Retrieves the number of parameters that must be bound to evaluate this query.
+		 * 
+		 * @return	the number of parameters
+		 */
+		public int getParameterCount() {
+			return parameterIndexes.length;
+		}
+		
+		/**
+		 * Binds values to the parameters of this query, and returns a query that you can evaluate
+		 * with any of the methods of {@link QueryBuilder}, or customize further.
+		 * 
+		 * @param values			the values of the parameters, in the order in which the parameters
+		 * 							were specified
+		 * @return					a query with the specified values
+		 * @throws MobileException	thrown if the number of values is different from the number of parameters,
+		 * 							or if one of the values is <b>null</b>
+		 */
+		public QueryBuilder bind(Object... values) throws MobileException {
+			if (values.length != parameterIndexes.length) {
+				throw new MobileException("The query has " + parameterIndexes.length + " parameter(s), but " +
+						values.length + " value(s) were provided");
+			}
+			String[] strings = new String[values.length];
+			String[] valuesByIndex = new String[template.parameterCount];
+			int length = this.length;
+			for (int i = 0; i < parameterIndexes.length; ++i) {
+				Object value = values[parameterPositions[i]];
+				if (value == null) {
+					throw new MobileException("Value for parameter " + parameterPositions[i] + " is null");
+				}
+				strings[i] = value.toString();
+				valuesByIndex[parameterIndexes[i]] = strings[i];
+				//Leave room for quotes, and for escaping a few characters
+				length += strings[i].length() + 8;
+			}
+			QueryBuilder query = new QueryBuilder();
+			query.copyFrom(template);
+			query.filter = template.filter.copy(valuesByIndex);
+			query.boundUrl = buildUrl(strings, length);
+			return query;
+		}
+		
+		//The values are in the order of the parameters in the URL
+		private String buildUrl(String[] values, int length) {
+			if (segments.length == 1) {
+				return segments[0];
+			}
+			StringBuilder url = new StringBuilder(length);
+			for (int i = 0; i < values.length; ++i) {
+				url.append(segments[i]);
+				QueryFilter.appendValue(url, quoteParameters[i], values[i]);
+			}
+			url.append(segments[segments.length - 1]);
+			return url.toString();
 		}
 	}
 	
@@ -0,0 +1,170 @@
+package net.sashag.wams.android;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Iterates over the results of a query page by page, in ascending id order. Each page is
+ * retrieved with an "id gt &lt;last id&gt;" filter rather than with $skip, so retrieving a page
+ * costs the same regardless of how deep into the table it is. While you consume a page, the
+ * next page is retrieved in the background.
+ * <p>
+ * Obtain a cursor from {@link MobileTable#cursor(int)} or {@link MobileTable.QueryBuilder#cursor(int)}.
+ * Call {@link #close} if you stop iterating before reaching the end, so that no further pages
+ * are retrieved. This class is not thread-safe; use it from a single thread, and because
+ * {@link #hasNext} may block while waiting for the network, do not use it on the UI thread.
+ * <p>
+ * An example of iterating over a large table:
+ * <pre>
+ * MobileTableCursor&lt;Apartment&gt; cursor = apartments.cursor(100);
+ * try {
+ *     while (cursor.hasNext()) {
+ *         Apartment apartment = cursor.next();
+ *         ...
+ *     }
+ * } finally {
+ *     cursor.close();
+ * }
+ * </pre>
+ *
+ * @author Sasha Goldshtein
+ *
+ * @param <E> the type of elements the cursor returns
+ */
+public class MobileTableCursor<E> {
+
+	interface PageFetcher<E> {
+		List<E> fetchPage(int afterId, int pageSize) throws MobileException;
+		int getId(E item) throws MobileException;
+	}
+
+	private final PageFetcher<E> fetcher;
+	private final Executor executor;
+	private final int pageSize;
+	private List<E> page = Collections.emptyList();
+	private int index;
+	private FutureTask<List<E>> nextPage;
+	private boolean closed;
+
+	MobileTableCursor(PageFetcher<E> fetcher, Executor executor, int pageSize) {
+		this.fetcher = fetcher;
+		this.executor = executor;
+		this.pageSize = pageSize;
+		this.nextPage = prefetch(0);
+	}
+
+	/**
+	 * Determines whether there are more items. If the current page has been consumed, this
+	 * method waits for the next page to arrive from the mobile service.
+	 *
+	 * @return					whether there are more items
+	 * @throws MobileException	thrown if an error occurred while retrieving the next page
+	 */
+	public boolean hasNext() throws MobileException {
+		if (closed) {
+			return false;
+		}
+		if (index < page.size()) {
+			return true;
+		}
+		if (nextPage == null) {
+			return false;
+		}
+		page = awaitNextPage();
+		index = 0;
+		if (page.size() < pageSize) {
+			//A short page means that there is nothing after it
+			nextPage = null;
+		} else {
+			nextPage = prefetch(fetcher.getId(page.get(page.size() - 1)));
+		}
+		return !page.isEmpty();
+	}
+
+	/**
+	 * Retrieves the next item.
+	 *
+	 * @return					the next item
+	 * @throws MobileException	thrown if an error occurred while retrieving the next page
+	 * @throws NoSuchElementException	thrown if there are no more items
+	 */
+	public E next() throws MobileException {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return page.get(index++);
+	}
+
+	/**
+	 * Stops iterating. No further pages are retrieved, and the HTTP request of a page that is
+	 * currently being retrieved in the background is aborted, so the rest of that page is not
+	 * downloaded. It is safe to call this method more than once.
+	 */
+	public void close() {
+		closed = true;
+		page = Collections.emptyList();
+		if (nextPage != null) {
+			nextPage.cancel(false);
+			nextPage = null;
+		}
+	}
+
+	private FutureTask<List<E>> prefetch(final int afterId) {
+		final Cancellation cancellation = new Cancellation();
+		FutureTask<List<E>> task = new PageTask<E>(new Callable<List<E>>() {
+			public List<E> call() throws MobileException {
+				Cancellation previous = cancellation.enter();
+				try {
+					return fetcher.fetchPage(afterId, pageSize);
+				} finally {
+					Cancellation.exit(previous);
+				}
+			}
+		}, cancellation);
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			//There is no room to prefetch in the background, so fetch the page right away
+			task.run();
+		}
+		return task;
+	}
+
+	private List<E> awaitNextPage() throws MobileException {
+		try {
+			return nextPage.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MobileException("Interrupted while waiting for the next page", e);
+		} catch (ExecutionException e) {
+			nextPage = null;
+			if (e.getCause() instanceof MobileException) {
+				throw (MobileException) e.getCause();
+			}
+			throw new MobileException("Error fetching the next page", e.getCause());
+		}
+	}
+
+	//Interrupting the worker does not stop a blocking socket read, so cancelling a page aborts its request
+	private static class PageTask<E> extends FutureTask<List<E>> {
+		private final Cancellation cancellation;
+
+		PageTask(Callable<List<E>> callable, Cancellation cancellation) {
+			super(callable);
+			this.cancellation = cancellation;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			cancellation.cancel();
+			return super.cancel(mayInterruptIfRunning);
+		}
+	}
+
+}
@@ -0,0 +1,585 @@
+package net.sashag.wams.android;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.json.JSONObject;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Maintains a replica of a mobile table, or of the items matching a query, in a SQLite database
+ * on the device. Reads are served from the replica without going to the network, and {@link #sync}
+ * brings the replica up to date.
+ * <p>
+ * The first sync retrieves all the matching items. Subsequent syncs retrieve only the items that
+ * changed since the previous sync, according to a high-water mark:
+ * <ul>
+ * <li>If you set a watermark column with {@link #setWatermarkColumn}, such as an "updatedAt"
+ * timestamp or a version number that the server increases whenever an item changes, items whose
+ * watermark is greater than the highest watermark seen so far are retrieved. This picks up both
+ * new and updated items.</li>
+ * <li>Otherwise, items whose id is greater than the highest id seen so far are retrieved. This
+ * picks up new items only.</li>
+ * </ul>
+ * Deleted items are detected in one of two ways. If the server marks deleted items instead of
+ * deleting them, set the marker column with {@link #setTombstoneColumn}, and items that arrive
+ * with the marker set are removed from the replica. Otherwise, call {@link #setReconcileDeletes}
+ * to have every sync retrieve the ids of all the matching items (but nothing else), and remove
+ * the items that no longer exist.
+ * <p>
+ * Obtain a mirror from {@link MobileTable#mirror()} or {@link MobileTable.QueryBuilder#mirror()},
+ * and configure it before the first sync. Changes you make through {@link MobileTable} are not
+ * applied to the replica until the next sync.
+ * <p>
+ * Each user has replicas of their own. A mirror belongs to the user who was logged in when it was
+ * obtained; when another user logs in, or the user logs out, the mirror can no longer be used, and
+ * you must obtain a new one. The replicas of the previous user stay on the device, and are used
+ * again when that user logs in.
+ * <p>
+ * An example of keeping a replica of published apartments up to date:
+ * <pre>
+ * MobileTableMirror&lt;Apartment&gt; mirror = apartments.where().equal("published", true).mirror();
+ * mirror.setWatermarkColumn("updatedAt");
+ * mirror.setReconcileDeletes(true);
+ * mirror.sync();
+ * List&lt;Apartment&gt; published = mirror.getAll();
+ * </pre>
+ *
+ * @author Sasha Goldshtein
+ *
+ * @param <E> the type of elements in the mirrored table
+ */
+public class MobileTableMirror<E> {
+
+	/**
+	 * Reads rows of the mirrored query from the mobile service, without deserializing them.
+	 */
+	interface RowSource {
+		/** Reads the rows whose id is greater than the specified id, in id order. */
+		int readAfterId(int afterId, int pageSize, MobileTable.JsonRowVisitor visitor) throws MobileException;
+		/**
+		 * Reads the rows that follow the specified watermark and id, in watermark and then id order:
+		 * the rows whose watermark is greater, and the rows whose watermark is equal and whose id is
+		 * greater. If the id is negative, reads only the rows whose watermark is greater.
+		 */
+		int readAfterWatermark(String column, String watermark, int afterId, int pageSize, MobileTable.JsonRowVisitor visitor) throws MobileException;
+		/** Reads the greatest watermark of all the rows, or returns <b>null</b> if there are no rows. */
+		String readMaxWatermark(String column) throws MobileException;
+		/** Reads only the ids of all the rows. */
+		int readIds(MobileTable.JsonRowVisitor visitor) throws MobileException;
+	}
+
+	static final String DATABASE_NAME_PREFIX = "wams-mirror-";
+	private static final int DATABASE_VERSION = 1;
+	private static final String SYNC_STATE_TABLE = "syncState";
+	private static final String COLUMN_MIRROR = "mirror";
+	private static final String COLUMN_WATERMARK_COLUMN = "watermarkColumn";
+	private static final String COLUMN_WATERMARK = "watermark";
+	private static final String COLUMN_MAX_ID = "maxId";
+	private static final String COLUMN_LAST_SYNC_TIME = "lastSyncTime";
+	private static final String COLUMN_ID = "id";
+	private static final String COLUMN_JSON = "json";
+	private static final int DEFAULT_PAGE_SIZE = 100;
+
+	private final SQLiteDatabase database;
+	private final String mirrorName;
+	private final String rowsTable;
+	private final TableBinding<E> binding;
+	private final RowSource source;
+	private final MobileServiceExecutor executor;
+	private final CallbackCoalescer coalescer;
+	private final Handler uiHandler;
+	private final Object syncLock = new Object();
+	private volatile String watermarkColumn;
+	private volatile String tombstoneColumn;
+	private volatile boolean reconcileDeletes;
+	private volatile int pageSize = DEFAULT_PAGE_SIZE;
+
+	MobileTableMirror(SQLiteDatabase database, String mirrorName, TableBinding<E> binding, RowSource source,
+			MobileServiceExecutor executor, CallbackCoalescer coalescer, Handler uiHandler) {
+		this.database = database;
+		this.mirrorName = mirrorName;
+		this.rowsTable = getRowsTableName(mirrorName);
+		this.binding = binding;
+		this.source = source;
+		this.executor = executor;
+		this.coalescer = coalescer;
+		this.uiHandler = uiHandler;
+		database.execSQL("CREATE TABLE IF NOT EXISTS " + rowsTable + " (" +
+				COLUMN_ID + " INTEGER PRIMARY KEY, " + COLUMN_JSON + " TEXT NOT NULL)");
+	}
+
+	//Mirrors of different queries must never share a table, so name it by a digest of the query URL
+	static String getRowsTableName(String mirrorName) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest(mirrorName.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not supported", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not supported", e);
+		}
+		StringBuilder name = new StringBuilder("rows_");
+		for (byte b : digest) {
+			name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return name.toString();
+	}
+
+	static SQLiteDatabase openDatabase(Context context, String databaseName) {
+		return new DatabaseHelper(context, databaseName).getWritableDatabase();
+	}
+
+	/**
+	 * Sets the column used as the high-water mark for incremental syncs. The server must increase
+	 * the column's value whenever an item is inserted or updated. Changing the watermark column
+	 * discards the replica, so the next sync retrieves all the matching items again.
+	 *
+	 * @param column	the name of a numeric or string column, or <b>null</b> to use the id
+	 * 					as the high-water mark
+	 * @return			this mirror, for further configuration
+	 */
+	public MobileTableMirror<E> setWatermarkColumn(String column) {
+		if (column != null) {
+			binding.getColumnType(column); //Throws if there is no such column
+		}
+		watermarkColumn = column;
+		return this;
+	}
+
+	/**
+	 * Sets the Boolean column that the server sets, instead of deleting an item, to indicate that
+	 * the item has been deleted. Items that arrive with this column set are removed from the replica.
+	 *
+	 * @param column	the name of the column, or <b>null</b> if the server deletes items
+	 * @return			this mirror, for further configuration
+	 */
+	public MobileTableMirror<E> setTombstoneColumn(String column) {
+		tombstoneColumn = column;
+		return this;
+	}
+
+	/**
+	 * Determines whether every sync retrieves the ids of all the matching items, so that the
+	 * items that were deleted on the server can be removed from the replica. This is off by default.
+	 *
+	 * @param reconcile		whether to remove deleted items from the replica
+	 * @return				this mirror, for further configuration
+	 */
+	public MobileTableMirror<E> setReconcileDeletes(boolean reconcile) {
+		reconcileDeletes = reconcile;
+		return this;
+	}
+
+	/**
+	 * Sets the number of items retrieved in each request during a sync. The default is 100.
+	 *
+	 * @param pageSize	the number of items in each request, must be positive
+	 * @return			this mirror, for further configuration
+	 */
+	public MobileTableMirror<E> setPageSize(int pageSize) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("Page size must be positive, got: " + pageSize);
+		}
+		this.pageSize = pageSize;
+		return this;
+	}
+
+	/**
+	 * Brings the replica up to date with the mobile service. Only one sync of a mirror runs at a
+	 * time; reads from the replica can proceed while a sync is running, and observe the items of
+	 * each page of the sync as soon as it has been retrieved.
+	 *
+	 * @return					the number of items that were added, updated or removed
+	 * @throws MobileException	thrown if an error occurred while retrieving items; the items
+	 * 							retrieved up to that point are kept, and the next sync continues
+	 * 							from there
+	 */
+	public int sync() throws MobileException {
+		synchronized (syncLock) {
+			checkOpen();
+			SyncState state = readSyncState();
+			String column = watermarkColumn;
+			boolean fullLoad = state == null || !equal(column, state.watermarkColumn);
+			int changed;
+			if (fullLoad) {
+				if (state != null) {
+					Log.i("MobileTableMirror", "Watermark column changed, reloading mirror " + mirrorName);
+				}
+				//Rows left over from an interrupted load may have been deleted on the server since
+				clearRows();
+				state = new SyncState(column, null, 0);
+				if (column != null) {
+					//Items that change while the load is in progress are picked up by the next sync
+					state.watermark = source.readMaxWatermark(column);
+				}
+				changed = syncAfterId(state);
+			} else if (column == null) {
+				changed = syncAfterId(state);
+			} else {
+				changed = syncAfterWatermark(state);
+			}
+			if (reconcileDeletes && !fullLoad) {
+				changed += removeDeletedRows();
+			}
+			state.lastSyncTime = System.currentTimeMillis();
+			writeSyncState(state);
+			Log.d("MobileTableMirror", "Synced mirror " + mirrorName + ", " + changed + " item(s) changed");
+			return changed;
+		}
+	}
+
+	/**
+	 * Brings the replica up to date in the background, and posts the specified callback to the
+	 * provided {@link Handler} when the sync completes.
+	 *
+	 * @param callback	the callback invoked with the number of items that were added, updated or
+	 * 					removed, or with an error if one occurred, or <b>null</b>
+	 * @param handler	the callback is posted to this handler
+	 * @return			a future that can be used to cancel the sync; the changes that were already
+	 * 					applied to the replica are kept, and the next sync resumes from them
+	 */
+	public MobileServiceFuture<Integer> syncAsync(MobileServiceCallback<Integer> callback, Handler handler) {
+		final MobileServiceFuture<Integer> future = new MobileServiceFuture<Integer>(callback, handler, coalescer);
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					future.run(new MobileServiceFuture.Task<Integer>() {
+						public Integer run() throws MobileException {
+							return sync();
+						}
+					});
+				}
+			}, MobileServiceExecutor.Priority.BACKGROUND);
+		} catch (RejectedExecutionException e) {
+			future.failed(new MobileException("Error scheduling sync operation", e));
+		}
+		return future;
+	}
+
+	/**
+	 * Brings the replica up to date in the background, and calls the specified callback on the
+	 * UI thread when the sync completes.
+	 *
+	 * @param callback	the callback invoked with the number of items that were added, updated or
+	 * 					removed, or with an error if one occurred, or <b>null</b>
+	 * @return			a future that can be used to cancel the sync
+	 */
+	public MobileServiceFuture<Integer> syncAsync(MobileServiceCallback<Integer> callback) {
+		return syncAsync(callback, uiHandler);
+	}
+
+	/**
+	 * Retrieves all the items in the replica, in id order.
+	 *
+	 * @return					the items in the replica, or an empty list if it has not been synced yet
+	 * @throws MobileException	thrown if an item could not be deserialized
+	 */
+	public List<E> getAll() throws MobileException {
+		checkOpen();
+		Cursor cursor = database.query(rowsTable, new String[] { COLUMN_JSON }, null, null, null, null, COLUMN_ID);
+		try {
+			List<E> items = new ArrayList<E>();
+			while (cursor.moveToNext()) {
+				items.add(toObject(cursor.getString(0)));
+			}
+			return items;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Retrieves the item with the specified id from the replica.
+	 *
+	 * @param id				the id of the item
+	 * @return					the item, or <b>null</b> if there is no such item in the replica
+	 * @throws MobileException	thrown if the item could not be deserialized
+	 */
+	public E get(int id) throws MobileException {
+		checkOpen();
+		Cursor cursor = database.query(rowsTable, new String[] { COLUMN_JSON },
+				COLUMN_ID + " = ?", new String[] { String.valueOf(id) }, null, null, null);
+		try {
+			return cursor.moveToNext() ? toObject(cursor.getString(0)) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Retrieves the number of items in the replica.
+	 *
+	 * @return	the number of items
+	 */
+	public int count() {
+		checkOpen();
+		Cursor cursor = database.rawQuery("SELECT COUNT(*) FROM " + rowsTable, null);
+		try {
+			return cursor.moveToNext() ? cursor.getInt(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Retrieves the time of the last successful sync.
+	 *
+	 * @return	the time of the last sync, in milliseconds since the epoch, or 0 if the replica
+	 * 			has never been synced
+	 */
+	public long getLastSyncTime() {
+		checkOpen();
+		SyncState state = readSyncState();
+		return state != null ? state.lastSyncTime : 0;
+	}
+
+	/**
+	 * Discards the replica, so that the next sync retrieves all the matching items again.
+	 */
+	public void clear() {
+		synchronized (syncLock) {
+			checkOpen();
+			clearRows();
+			database.delete(SYNC_STATE_TABLE, COLUMN_MIRROR + " = ?", new String[] { mirrorName });
+		}
+	}
+
+	private void checkOpen() {
+		if (!database.isOpen()) {
+			throw new IllegalStateException("The mirror belongs to a user who is no longer logged in; obtain a new mirror");
+		}
+	}
+
+	//Pages through the rows in id order; used for the first sync, and for syncs without a watermark column
+	private int syncAfterId(SyncState state) throws MobileException {
+		int changed = 0;
+		while (true) {
+			final List<JSONObject> page = new ArrayList<JSONObject>(pageSize);
+			int count = source.readAfterId(state.maxId, pageSize, new MobileTable.JsonRowVisitor() {
+				public boolean visitRow(JSONObject row, int rowLength) {
+					page.add(row);
+					return true;
+				}
+			});
+			changed += storePage(page, state);
+			if (state.watermarkColumn == null) {
+				//Persist progress after every page, so that an interrupted sync continues from here;
+				//an interrupted load by watermark starts over, because the watermark is not final yet
+				writeSyncState(state);
+			}
+			if (count < pageSize) {
+				return changed;
+			}
+		}
+	}
+
+	private int syncAfterWatermark(SyncState state) throws MobileException {
+		String column = state.watermarkColumn;
+		String startWatermark = state.watermark;
+		if (startWatermark == null) {
+			//The table was empty when it was loaded, so there is no high-water mark to continue from
+			return syncAfterId(state);
+		}
+		//Page by the watermark and id of the last row rather than by skipping rows, because an item
+		//that is updated during the sync moves to the end, and would shift an unread row into the skipped ones
+		int changed = 0;
+		String afterWatermark = startWatermark;
+		int afterId = -1;
+		while (true) {
+			final List<JSONObject> page = new ArrayList<JSONObject>(pageSize);
+			int count = source.readAfterWatermark(column, afterWatermark, afterId, pageSize, new MobileTable.JsonRowVisitor() {
+				public boolean visitRow(JSONObject row, int rowLength) {
+					page.add(row);
+					return true;
+				}
+			});
+			changed += storePage(page, state);
+			for (JSONObject row : page) {
+				state.watermark = maxWatermark(state.watermark, row.opt(column));
+			}
+			if (count < pageSize || page.isEmpty()) {
+				return changed;
+			}
+			JSONObject last = page.get(page.size() - 1);
+			afterWatermark = last.opt(column).toString();
+			afterId = last.optInt(COLUMN_ID);
+		}
+	}
+
+	private int storePage(List<JSONObject> page, SyncState state) throws MobileException {
+		String tombstone = tombstoneColumn;
+		int changed = 0;
+		database.beginTransaction();
+		try {
+			for (JSONObject row : page) {
+				int id = row.optInt(COLUMN_ID, -1);
+				if (id == -1) {
+					throw new MobileException("Row without an id: " + row);
+				}
+				state.maxId = Math.max(state.maxId, id);
+				if (tombstone != null && isSet(row.opt(tombstone))) {
+					changed += database.delete(rowsTable, COLUMN_ID + " = ?", new String[] { String.valueOf(id) });
+				} else {
+					ContentValues values = new ContentValues();
+					values.put(COLUMN_ID, id);
+					values.put(COLUMN_JSON, row.toString());
+					database.replace(rowsTable, null, values);
+					++changed;
+				}
+			}
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+		}
+		return changed;
+	}
+
+	private int removeDeletedRows() throws MobileException {
+		final Set<Integer> ids = new HashSet<Integer>();
+		source.readIds(new MobileTable.JsonRowVisitor() {
+			public boolean visitRow(JSONObject row, int rowLength) throws Exception {
+				ids.add(row.getInt(COLUMN_ID));
+				return true;
+			}
+		});
+		List<Integer> deleted = new ArrayList<Integer>();
+		Cursor cursor = database.query(rowsTable, new String[] { COLUMN_ID }, null, null, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				int id = cursor.getInt(0);
+				if (!ids.contains(id)) {
+					deleted.add(id);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		if (deleted.isEmpty()) {
+			return 0;
+		}
+		database.beginTransaction();
+		try {
+			for (Integer id : deleted) {
+				database.delete(rowsTable, COLUMN_ID + " = ?", new String[] { String.valueOf(id) });
+			}
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+		}
+		return deleted.size();
+	}
+
+	private void clearRows() {
+		database.delete(rowsTable, null, null);
+	}
+
+	private E toObject(String json) throws MobileException {
+		try {
+			return binding.toObject(new JSONObject(json));
+		} catch (Exception e) {
+			throw new MobileException("Error deserializing mirrored item", e);
+		}
+	}
+
+	private static boolean isSet(Object value) {
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		}
+		//Booleans are sometimes stored as 0/1 on the server
+		return value instanceof Number && ((Number) value).intValue() != 0;
+	}
+
+	//Compares numerically if both watermarks are numbers, and lexicographically otherwise
+	private static String maxWatermark(String current, Object candidate) {
+		if (candidate == null || candidate == JSONObject.NULL) {
+			return current;
+		}
+		String value = candidate.toString();
+		if (current == null) {
+			return value;
+		}
+		try {
+			return Double.parseDouble(value) > Double.parseDouble(current) ? value : current;
+		} catch (NumberFormatException e) {
+			return value.compareTo(current) > 0 ? value : current;
+		}
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private SyncState readSyncState() {
+		Cursor cursor = database.query(SYNC_STATE_TABLE,
+				new String[] { COLUMN_WATERMARK_COLUMN, COLUMN_WATERMARK, COLUMN_MAX_ID, COLUMN_LAST_SYNC_TIME },
+				COLUMN_MIRROR + " = ?", new String[] { mirrorName }, null, null, null);
+		try {
+			if (!cursor.moveToNext()) {
+				return null;
+			}
+			SyncState state = new SyncState(cursor.getString(0), cursor.getString(1), cursor.getInt(2));
+			state.lastSyncTime = cursor.getLong(3);
+			return state;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private void writeSyncState(SyncState state) {
+		ContentValues values = new ContentValues();
+		values.put(COLUMN_MIRROR, mirrorName);
+		values.put(COLUMN_WATERMARK_COLUMN, state.watermarkColumn);
+		values.put(COLUMN_WATERMARK, state.watermark);
+		values.put(COLUMN_MAX_ID, state.maxId);
+		values.put(COLUMN_LAST_SYNC_TIME, state.lastSyncTime);
+		database.replace(SYNC_STATE_TABLE, null, values);
+	}
+
+	private static class SyncState {
+		final String watermarkColumn;
+		String watermark;
+		int maxId;
+		long lastSyncTime;
+
+		SyncState(String watermarkColumn, String watermark, int maxId) {
+			this.watermarkColumn = watermarkColumn;
+			this.watermark = watermark;
+			this.maxId = maxId;
+		}
+	}
+
+	private static class DatabaseHelper extends SQLiteOpenHelper {
+
+		DatabaseHelper(Context context, String name) {
+			super(context, name, null, DATABASE_VERSION);
+		}
+
+		@Override
+		public void onCreate(SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE " + SYNC_STATE_TABLE + " (" +
+					COLUMN_MIRROR + " TEXT PRIMARY KEY, " +
+					COLUMN_WATERMARK_COLUMN + " TEXT, " +
+					COLUMN_WATERMARK + " TEXT, " +
+					COLUMN_MAX_ID + " INTEGER NOT NULL, " +
+					COLUMN_LAST_SYNC_TIME + " INTEGER NOT NULL)");
+		}
+
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package net.sashag.wams.android;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * Caches the results of queries of a single {@link MobileService}, keyed by query URL. The
+ * results are kept as parsed JSON rows, and every caller gets items created from them, so that
+ * callers can modify their items without affecting the cache. Queries built from the same conditions in the same order have the same URL, and share an
+ * entry. The cache is bounded by a number of entries and by an estimate of the memory the results
+ * take up, and evicts the least recently used entries first. Entries older than the time-to-live
+ * are stale; they are kept until they are evicted, so that they can be served while they are being
+ * revalidated.
+ * <p>
+ * Entries also keep the validators (ETag and Last-Modified) returned with the results, so that
+ * the next request for the same query can be conditional, and a "304 Not Modified" response can
+ * be answered with the cached results without downloading and parsing them again.
+ * <p>
+ * Changes to a table remove its entries. A query whose results arrive after a change has been
+ * made does not populate the cache, because its results might predate the change.
+ */
+class QueryCache {
+
+	/**
+	 * The validators of a query response. Before a query is sent, holds the validators of the
+	 * cached results, if any; after the response arrives, holds the validators of the response.
+	 */
+	static class Validators {
+		String entityTag;
+		String lastModified;
+
+		Validators(Entry entry) {
+			if (entry != null) {
+				entityTag = entry.entityTag;
+				lastModified = entry.lastModified;
+			}
+		}
+
+		boolean isPresent() {
+			return entityTag != null || lastModified != null;
+		}
+	}
+
+	static class Entry {
+		final String tableName;
+		final List<JSONObject> rows;
+		final long size;
+		final long expirationTime;
+		final String entityTag;
+		final String lastModified;
+
+		Entry(String tableName, List<JSONObject> rows, long size, long expirationTime, Validators validators) {
+			this.tableName = tableName;
+			this.rows = rows;
+			this.size = size;
+			this.expirationTime = expirationTime;
+			this.entityTag = validators != null ? validators.entityTag : null;
+			this.lastModified = validators != null ? validators.lastModified : null;
+		}
+
+		boolean isFresh() {
+			return System.currentTimeMillis() < expirationTime;
+		}
+	}
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, /*accessOrder*/true);
+	private int maxEntries;
+	private long maxSize;
+	private long timeToLiveMs;
+	private long totalSize;
+	private long invalidationCount;
+
+	QueryCache(int maxEntries, long maxSize, long timeToLiveMs) {
+		this.maxEntries = maxEntries;
+		this.maxSize = maxSize;
+		this.timeToLiveMs = timeToLiveMs;
+	}
+
+	synchronized void setLimits(int maxEntries, long maxSize) {
+		if (maxEntries < 0 || maxSize < 0) {
+			throw new IllegalArgumentException("Cache limits must not be negative");
+		}
+		this.maxEntries = maxEntries;
+		this.maxSize = maxSize;
+		evict();
+	}
+
+	synchronized void setTimeToLive(long timeToLiveMs) {
+		this.timeToLiveMs = timeToLiveMs;
+	}
+
+	synchronized Entry get(String queryUrl) {
+		return entries.get(queryUrl);
+	}
+
+	/**
+	 * Retrieves a token to pass to {@link put} with the results of a query that is about to be sent.
+	 */
+	synchronized long getInvalidationCount() {
+		return invalidationCount;
+	}
+
+	/**
+	 * Adds the results of a query, unless a table has been changed since the specified token was obtained.
+	 *
+	 * @param size			an estimate of the memory the results take up, in characters of JSON
+	 * @param validators	the validators of the response the results were read from, or <b>null</b>
+	 */
+	synchronized void put(String tableName, String queryUrl, List<JSONObject> rows, long size, Validators validators, long invalidationToken) {
+		if (invalidationToken != invalidationCount || size > maxSize || maxEntries == 0) {
+			return;
+		}
+		Entry previous = entries.remove(queryUrl);
+		if (previous != null) {
+			totalSize -= previous.size;
+		}
+		entries.put(queryUrl, new Entry(tableName, rows, size, System.currentTimeMillis() + timeToLiveMs, validators));
+		totalSize += size;
+		evict();
+	}
+
+	synchronized void invalidateTable(String tableName) {
+		++invalidationCount;
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+			Entry entry = it.next();
+			if (entry.tableName.equals(tableName)) {
+				totalSize -= entry.size;
+				it.remove();
+			}
+		}
+	}
+
+	synchronized void clear() {
+		++invalidationCount;
+		entries.clear();
+		totalSize = 0;
+	}
+
+	//Called with the lock held
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while ((entries.size() > maxEntries || totalSize > maxSize) && it.hasNext()) {
+			totalSize -= it.next().size;
+			it.remove();
+		}
+	}
+}
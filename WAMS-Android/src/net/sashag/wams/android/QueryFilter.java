@@ -0,0 +1,364 @@
+package net.sashag.wams.android;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.net.Uri;
+
+/**
+ * A node in the filter of a query, which is a tree of conditions joined with and, or, and not.
+ * The tree is compiled into the $filter option of the query URL by a {@link Compiler}. Conditions
+ * may refer to parameters of a prepared query instead of values; the compiler splits the URL
+ * around them, and {@link #copy} substitutes values for them.
+ * <p>
+ * Conditions are immutable. A {@link Junction} is modified while the query is being built, and
+ * must be copied before it is handed to another thread.
+ * <p>
+ * The conditions joined with and are compiled in the order of their columns rather than in the
+ * order in which they were added, so that the same conditions always compile into the same URL,
+ * which the query cache, coalescing of identical queries, and mirrors identify queries by.
+ */
+abstract class QueryFilter {
+
+	static final int EQUAL = 0;
+	static final int NOT_EQUAL = 1;
+	static final int GREATER_THAN = 2;
+	static final int GREATER_THAN_OR_EQUAL = 3;
+	static final int LESS_THAN = 4;
+	static final int LESS_THAN_OR_EQUAL = 5;
+
+	private static final String[] OPERATORS = {
+		"%20eq%20", "%20ne%20", "%20gt%20", "%20ge%20", "%20lt%20", "%20le%20"
+	};
+	private static final String AND = "%20and%20";
+	private static final String OR = "%20or%20";
+	private static final String NOT = "not%20";
+
+	abstract void compile(Compiler compiler);
+
+	/**
+	 * @return	the key by which conditions joined with and are ordered; groups of conditions
+	 * 			have an empty key, so they precede the other conditions in the order they were added
+	 */
+	String getSortKey() {
+		return "";
+	}
+
+	/**
+	 * Copies this filter, substituting values for parameters.
+	 *
+	 * @param parameterValues	the values of the parameters by parameter index, or <b>null</b>
+	 * 							to keep the parameters
+	 */
+	abstract QueryFilter copy(String[] parameterValues);
+
+	/**
+	 * Appends a value to a query URL, quoted if it is compared with a string column, and escaped so
+	 * that it can be embedded in the URL.
+	 */
+	static void appendValue(StringBuilder url, boolean quote, String value) {
+		if (quote) {
+			//OData escapes a quote inside a string literal by doubling it
+			url.append(Uri.encode("'" + value.replace("'", "''") + "'"));
+		} else {
+			url.append(Uri.encode(value));
+		}
+	}
+
+	static class Comparison extends QueryFilter {
+		private final String column;
+		private final int operator;
+		private final boolean quote;
+		private final String value;
+		private final int parameterIndex;
+
+		Comparison(String column, int operator, boolean quote, String value, int parameterIndex) {
+			this.column = column;
+			this.operator = operator;
+			this.quote = quote;
+			this.value = value;
+			this.parameterIndex = parameterIndex;
+		}
+
+		@Override
+		void compile(Compiler compiler) {
+			StringBuilder url = compiler.url();
+			url.append('(').append(column).append(OPERATORS[operator]);
+			if (value == null) {
+				compiler.addParameter(parameterIndex, quote);
+			} else {
+				appendValue(url, quote, value);
+			}
+			url.append(')');
+		}
+
+		@Override
+		String getSortKey() {
+			return column + OPERATORS[operator] + (value != null ? value : "?" + parameterIndex);
+		}
+
+		@Override
+		QueryFilter copy(String[] parameterValues) {
+			if (value != null || parameterValues == null) {
+				return this;
+			}
+			return new Comparison(column, operator, quote, parameterValues[parameterIndex], -1);
+		}
+	}
+
+	/**
+	 * A column that is equal to one of several values, expanded into comparisons joined with or.
+	 * Because the expansion can make the query URL very long, the compiler can render a subset of
+	 * the values, so that the query can be split into several requests.
+	 */
+	static class InList extends QueryFilter {
+		private final String column;
+		private final boolean quote;
+		private final String[] values;
+
+		InList(String column, boolean quote, String[] values) {
+			this.column = column;
+			this.quote = quote;
+			this.values = values;
+		}
+
+		int size() {
+			return values.length;
+		}
+
+		@Override
+		void compile(Compiler compiler) {
+			int from = 0;
+			int to = values.length;
+			if (compiler.splitList == this) {
+				from = compiler.splitFrom;
+				to = compiler.splitTo;
+			}
+			StringBuilder url = compiler.url();
+			if (from == to) {
+				url.append("false");
+				return;
+			}
+			url.append('(');
+			for (int i = from; i < to; ++i) {
+				if (i != from) {
+					url.append(OR);
+				}
+				url.append('(').append(column).append(OPERATORS[EQUAL]);
+				appendValue(url, quote, values[i]);
+				url.append(')');
+			}
+			url.append(')');
+		}
+
+		//The length of the URL that each value takes up, excluding the or that joins it to the previous value
+		int[] getTermLengths() {
+			int[] lengths = new int[values.length];
+			int prefixLength = 1 + column.length() + OPERATORS[EQUAL].length();
+			StringBuilder value = new StringBuilder();
+			for (int i = 0; i < values.length; ++i) {
+				value.setLength(0);
+				appendValue(value, quote, values[i]);
+				lengths[i] = prefixLength + value.length() + 1;
+			}
+			return lengths;
+		}
+
+		static int getSeparatorLength() {
+			return OR.length();
+		}
+
+		@Override
+		String getSortKey() {
+			return column + OPERATORS[EQUAL];
+		}
+
+		@Override
+		QueryFilter copy(String[] parameterValues) {
+			return this;
+		}
+	}
+
+	static class Not extends QueryFilter {
+		private final QueryFilter operand;
+
+		Not(QueryFilter operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		void compile(Compiler compiler) {
+			compiler.url().append(NOT);
+			operand.compile(compiler);
+		}
+
+		@Override
+		String getSortKey() {
+			return operand.getSortKey();
+		}
+
+		@Override
+		QueryFilter copy(String[] parameterValues) {
+			return new Not(operand.copy(parameterValues));
+		}
+	}
+
+	/**
+	 * A group of conditions in disjunctive form: a list of alternatives joined with or, each of
+	 * which is a list of conditions joined with and. Conditions are added to the last alternative,
+	 * so and binds more tightly than or, as usual.
+	 */
+	static class Junction extends QueryFilter {
+		private static final Comparator<QueryFilter> BY_SORT_KEY = new Comparator<QueryFilter>() {
+			public int compare(QueryFilter a, QueryFilter b) {
+				return a.getSortKey().compareTo(b.getSortKey());
+			}
+		};
+
+		private final List<List<QueryFilter>> alternatives = new ArrayList<List<QueryFilter>>(1);
+
+		boolean isEmpty() {
+			return alternatives.isEmpty();
+		}
+
+		void add(QueryFilter condition) {
+			if (alternatives.isEmpty()) {
+				alternatives.add(new ArrayList<QueryFilter>(4));
+			}
+			alternatives.get(alternatives.size() - 1).add(condition);
+		}
+
+		/**
+		 * Starts a new alternative.
+		 *
+		 * @return	<b>false</b> if the current alternative is empty, so there is nothing to join with or
+		 */
+		boolean or() {
+			if (alternatives.isEmpty() || alternatives.get(alternatives.size() - 1).isEmpty()) {
+				return false;
+			}
+			alternatives.add(new ArrayList<QueryFilter>(4));
+			return true;
+		}
+
+		boolean isComplete() {
+			return !alternatives.isEmpty() && !alternatives.get(alternatives.size() - 1).isEmpty();
+		}
+
+		/**
+		 * Finds the longest in() list that the query can be split on. Splitting a list in two
+		 * splits the results in two only if every result must match the list, so the list must
+		 * be joined with the rest of the filter with and, and must not be negated.
+		 */
+		InList getSplittableInList() {
+			if (alternatives.size() != 1) {
+				return null;
+			}
+			InList longest = null;
+			for (QueryFilter condition : alternatives.get(0)) {
+				InList candidate = null;
+				if (condition instanceof InList) {
+					candidate = (InList) condition;
+				} else if (condition instanceof Junction) {
+					candidate = ((Junction) condition).getSplittableInList();
+				}
+				if (candidate != null && (longest == null || candidate.size() > longest.size())) {
+					longest = candidate;
+				}
+			}
+			return longest;
+		}
+
+		@Override
+		void compile(Compiler compiler) {
+			StringBuilder url = compiler.url();
+			url.append('(');
+			for (int i = 0; i < alternatives.size(); ++i) {
+				List<QueryFilter> conditions = alternatives.get(i);
+				if (conditions.size() > 1) {
+					//The sort is stable, so conditions with equal keys keep the order in which they were added
+					conditions = new ArrayList<QueryFilter>(conditions);
+					Collections.sort(conditions, BY_SORT_KEY);
+				}
+				boolean parenthesize = alternatives.size() > 1 && conditions.size() > 1;
+				if (i != 0) {
+					url.append(OR);
+				}
+				if (parenthesize) {
+					url.append('(');
+				}
+				for (int j = 0; j < conditions.size(); ++j) {
+					if (j != 0) {
+						url.append(AND);
+					}
+					conditions.get(j).compile(compiler);
+				}
+				if (parenthesize) {
+					url.append(')');
+				}
+			}
+			url.append(')');
+		}
+
+		@Override
+		Junction copy(String[] parameterValues) {
+			Junction copy = new Junction();
+			for (List<QueryFilter> conditions : alternatives) {
+				List<QueryFilter> copiedConditions = new ArrayList<QueryFilter>(conditions.size());
+				for (QueryFilter condition : conditions) {
+					copiedConditions.add(condition.copy(parameterValues));
+				}
+				copy.alternatives.add(copiedConditions);
+			}
+			return copy;
+		}
+	}
+
+	/**
+	 * Compiles a query URL into the segments between its parameters, recording the index and the
+	 * quoting rule of each parameter. A query without parameters compiles into a single segment.
+	 */
+	static class Compiler {
+		private final StringBuilder segment;
+		private final InList splitList;
+		private final int splitFrom;
+		private final int splitTo;
+		final List<String> segments = new ArrayList<String>(1);
+		final List<Integer> parameterIndexes = new ArrayList<Integer>(0);
+		final List<Boolean> parameterQuotes = new ArrayList<Boolean>(0);
+
+		Compiler(int capacity) {
+			this(capacity, null, 0, 0);
+		}
+
+		/**
+		 * Creates a compiler that renders only the values of the specified in() list from
+		 * index splitFrom (inclusive) to splitTo (exclusive).
+		 */
+		Compiler(int capacity, InList splitList, int splitFrom, int splitTo) {
+			this.segment = new StringBuilder(capacity);
+			this.splitList = splitList;
+			this.splitFrom = splitFrom;
+			this.splitTo = splitTo;
+		}
+
+		//The builder is reused for every segment, so callers may hold on to it
+		StringBuilder url() {
+			return segment;
+		}
+
+		void addParameter(int parameterIndex, boolean quote) {
+			segments.add(segment.toString());
+			segment.setLength(0);
+			parameterIndexes.add(parameterIndex);
+			parameterQuotes.add(quote);
+		}
+
+		List<String> finish() {
+			segments.add(segment.toString());
+			return segments;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package net.sashag.wams.android;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records when each HTTP request of a single {@link MobileService} reached each of its phases, in
+ * a fixed-size ring buffer that keeps the most recent requests. Each request is sent with its trace
+ * id in a header, so that it can be matched with the logs of the mobile service.
+ * <p>
+ * The buffer is a set of preallocated arrays, and a request only claims the next slot and writes
+ * numbers into it, so tracing does not allocate. The thread that sends a request makes its slot
+ * current, like {@link Cancellation}, so that the HTTP client and the code that reads the response
+ * can record phases without the slot being passed around. The time spent reading from the network
+ * and converting rows to objects is accumulated while the response is read; the rest of the time
+ * between the first byte and the end of the response is spent parsing JSON, or in row visitors.
+ * <p>
+ * Slots are reused without waiting for the requests that wrote them, so an entry may be garbled if
+ * more requests than the buffer holds are in flight at once, or if it is dumped while it is written.
+ */
+class RequestTracer {
+
+	static final String TRACE_ID_HEADER_NAME = "X-ZUMO-TRACE-ID";
+
+	static final int STARTED = 0;
+	static final int CONNECTED = 1;
+	static final int SENT = 2;
+	static final int FIRST_BYTE = 3;
+	static final int COMPLETED = 4;
+	private static final int PHASE_COUNT = 5;
+	private static final String[] PHASE_NAMES = { "started", "connected", "sent", "first byte", "completed" };
+
+	static final int NETWORK_ERROR = -1;
+
+	//The slot of the request that the calling thread is sending or reading
+	private static class Current {
+		RequestTracer tracer;
+		int slot = -1;
+	}
+
+	private static final ThreadLocal<Current> current = new ThreadLocal<Current>() {
+		@Override
+		protected Current initialValue() {
+			return new Current();
+		}
+	};
+
+	private final int capacity;
+	private final boolean dumpOnError;
+	private final long traceIdPrefix = (long) new Random().nextInt() << 32;
+	private final AtomicLong nextTraceId = new AtomicLong();
+	private final AtomicLong nextSlot = new AtomicLong();
+	private final long[] traceIds;
+	private final int[] attempts;
+	private final String[] methods;
+	private final String[] urls;
+	private final long[] startTimes;
+	private final long[] phaseNanos;
+	private final long[] readNanos;
+	private final long[] hydrationNanos;
+	private final int[] rowCounts;
+	private final int[] statusCodes;
+
+	RequestTracer(int capacity, boolean dumpOnError) {
+		this.capacity = capacity;
+		this.dumpOnError = dumpOnError;
+		traceIds = new long[capacity];
+		attempts = new int[capacity];
+		methods = new String[capacity];
+		urls = new String[capacity];
+		startTimes = new long[capacity];
+		phaseNanos = new long[capacity * PHASE_COUNT];
+		readNanos = new long[capacity];
+		hydrationNanos = new long[capacity];
+		rowCounts = new int[capacity];
+		statusCodes = new int[capacity];
+	}
+
+	boolean shouldDumpOnError() {
+		return dumpOnError;
+	}
+
+	/**
+	 * Creates the trace id of a request, which its retries share.
+	 */
+	long newTraceId() {
+		return traceIdPrefix | (nextTraceId.incrementAndGet() & 0xffffffffL);
+	}
+
+	static String formatTraceId(long traceId) {
+		return Long.toHexString(traceId);
+	}
+
+	/**
+	 * Retrieves the slot of this tracer that is current on the calling thread, or -1 if there is none.
+	 */
+	int getCurrentSlot() {
+		Current state = current.get();
+		return state.tracer == this ? state.slot : -1;
+	}
+
+	/**
+	 * Claims a slot for an attempt to send a request, and makes it current on the calling thread.
+	 * The slot that was current before, from {@link getCurrentSlot}, must be passed to {@link end}.
+	 */
+	int begin(long traceId, int attempt, String method, String url) {
+		int slot = (int) (nextSlot.getAndIncrement() % capacity);
+		traceIds[slot] = traceId;
+		attempts[slot] = attempt;
+		methods[slot] = method;
+		urls[slot] = url;
+		startTimes[slot] = System.currentTimeMillis();
+		for (int phase = 0; phase < PHASE_COUNT; ++phase) {
+			phaseNanos[slot * PHASE_COUNT + phase] = 0;
+		}
+		phaseNanos[slot * PHASE_COUNT + STARTED] = System.nanoTime();
+		readNanos[slot] = 0;
+		hydrationNanos[slot] = 0;
+		rowCounts[slot] = 0;
+		statusCodes[slot] = 0;
+		Current state = current.get();
+		state.tracer = this;
+		state.slot = slot;
+		return slot;
+	}
+
+	/**
+	 * Records that the status line and headers of the response of a request have arrived.
+	 */
+	void responded(int slot, int statusCode) {
+		phaseNanos[slot * PHASE_COUNT + FIRST_BYTE] = System.nanoTime();
+		statusCodes[slot] = statusCode;
+	}
+
+	/**
+	 * Records that a request failed without a response, and ends it.
+	 */
+	void failed(int slot, int previous) {
+		statusCodes[slot] = NETWORK_ERROR;
+		end(slot, previous);
+	}
+
+	/**
+	 * Records that the response of a request has been read or discarded, and makes the slot that
+	 * was current before it current again.
+	 */
+	void end(int slot, int previous) {
+		phaseNanos[slot * PHASE_COUNT + COMPLETED] = System.nanoTime();
+		Current state = current.get();
+		if (state.tracer == this && state.slot == slot) {
+			state.slot = previous;
+		}
+	}
+
+	/**
+	 * Records that the current request of the calling thread has reached a phase.
+	 */
+	static void mark(int phase) {
+		Current state = current.get();
+		if (state.tracer != null && state.slot != -1) {
+			state.tracer.phaseNanos[state.slot * PHASE_COUNT + phase] = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Adds time spent waiting for the body of the current response of the calling thread.
+	 */
+	static void addReadTime(long nanos) {
+		Current state = current.get();
+		if (state.tracer != null && state.slot != -1) {
+			state.tracer.readNanos[state.slot] += nanos;
+		}
+	}
+
+	/**
+	 * Adds a row of the current response of the calling thread, and the time it took to convert it to an object.
+	 */
+	static void addHydratedRow(long nanos) {
+		Current state = current.get();
+		if (state.tracer != null && state.slot != -1) {
+			state.tracer.hydrationNanos[state.slot] += nanos;
+			++state.tracer.rowCounts[state.slot];
+		}
+	}
+
+	/**
+	 * Writes the entries in the buffer as text, oldest first, one request per line.
+	 */
+	void dump(Writer writer) throws IOException {
+		long last = nextSlot.get();
+		long first = Math.max(0, last - capacity);
+		StringBuilder text = new StringBuilder();
+		for (long sequence = first; sequence < last; ++sequence) {
+			appendEntry(text, (int) (sequence % capacity));
+			text.append('\n');
+		}
+		writer.write(text.toString());
+		writer.flush();
+	}
+
+	private void appendEntry(StringBuilder text, int slot) {
+		text.append(formatTraceId(traceIds[slot]));
+		if (attempts[slot] != 0) {
+			text.append(" (retry ").append(attempts[slot]).append(')');
+		}
+		text.append(' ').append(methods[slot]).append(' ').append(urls[slot]).append(" at ").append(startTimes[slot]);
+		int statusCode = statusCodes[slot];
+		text.append(": ").append(statusCode == 0 ? "in progress" : statusCode == NETWORK_ERROR ? "network error" : "status " + statusCode);
+		long started = phaseNanos[slot * PHASE_COUNT + STARTED];
+		for (int phase = CONNECTED; phase < PHASE_COUNT; ++phase) {
+			long time = phaseNanos[slot * PHASE_COUNT + phase];
+			if (time != 0) {
+				text.append(", ").append(PHASE_NAMES[phase]).append(" +").append((time - started) / 1000).append("us");
+			}
+		}
+		long firstByte = phaseNanos[slot * PHASE_COUNT + FIRST_BYTE];
+		long completed = phaseNanos[slot * PHASE_COUNT + COMPLETED];
+		if (firstByte != 0 && completed != 0) {
+			long parse = completed - firstByte - readNanos[slot] - hydrationNanos[slot];
+			text.append("; body: download ").append(readNanos[slot] / 1000).append("us, parse ")
+				.append(Math.max(0, parse) / 1000).append("us, hydrate ").append(hydrationNanos[slot] / 1000)
+				.append("us for ").append(rowCounts[slot]).append(" row(s)");
+		}
+	}
+}
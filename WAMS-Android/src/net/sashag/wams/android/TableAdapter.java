@@ -0,0 +1,68 @@
+package net.sashag.wams.android;
+
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Converts instances of a class decorated by {@link DataTable} to and from their JSON
+ * representation using direct field access. Implementations of this interface are generated
+ * at build time by the annotation processor in the WAMS-Android-Processor project; there is
+ * no need to implement it by hand. The generated class is named after the table class with
+ * a <code>$$TableAdapter</code> suffix, and is picked up automatically by {@link MobileTable}.
+ * Classes without a generated adapter are serialized using reflection.
+ *
+ * @author Sasha Goldshtein
+ *
+ * @param <E> the table class this adapter converts
+ */
+public interface TableAdapter<E> {
+
+	/**
+	 * Creates a new instance of the table class from a JSON object returned by the mobile service.
+	 *
+	 * @param json				the JSON object that represents a single row
+	 * @return					a new instance populated from the JSON object
+	 * @throws JSONException	thrown if a value in the JSON object has an unexpected type
+	 */
+	E fromJson(JSONObject json) throws JSONException;
+
+	/**
+	 * Creates a new instance of the table class from a JSON object that contains only some of the
+	 * columns, because the query that returned it specified the columns to retrieve. Only the
+	 * specified columns and the {@link Key} field are read; the other fields keep their default values.
+	 *
+	 * @param json				the JSON object that represents a single row
+	 * @param columns			the names of the columns to read
+	 * @return					a new instance populated from the JSON object
+	 * @throws JSONException	thrown if a value in the JSON object has an unexpected type
+	 */
+	E fromJson(JSONObject json, Set<String> columns) throws JSONException;
+
+	/**
+	 * Converts an instance of the table class to a JSON object that can be sent to the mobile service.
+	 *
+	 * @param item				the item to convert
+	 * @param withId			whether to include the {@link Key} field as the "id" property
+	 * @return					the JSON object that represents the item
+	 * @throws JSONException	thrown if one of the values cannot be represented in JSON
+	 */
+	JSONObject toJson(E item, boolean withId) throws JSONException;
+
+	/**
+	 * Retrieves the value of the field decorated by {@link Key}.
+	 *
+	 * @param item	the item
+	 * @return		the item's id
+	 */
+	int getId(E item);
+
+	/**
+	 * Sets the value of the field decorated by {@link Key}.
+	 *
+	 * @param item	the item
+	 * @param id	the new id
+	 */
+	void setId(E item, int id);
+}
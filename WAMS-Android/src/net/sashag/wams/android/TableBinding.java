@@ -0,0 +1,414 @@
+package net.sashag.wams.android;
+
+import java.lang.reflect.Field;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * A compiled serialization plan for a single class. The fields decorated by {@link Key} and
+ * {@link DataMember} are discovered, validated and made accessible once per class, and every
+ * column gets a converter that matches its field type. Serializing or deserializing a row
+ * then runs through the plan without any annotation lookups or type comparisons.
+ * <p>
+ * If a {@link TableAdapter} was generated for the class at build time, rows are converted
+ * through it using direct field access, and the reflective converters are only used for
+ * metadata such as column types.
+ * <p>
+ * Plans are immutable and cached for the lifetime of the process, so they can be shared
+ * freely between threads.
+ */
+class TableBinding<E> {
+
+	static final String GENERATED_ADAPTER_SUFFIX = "$$TableAdapter";
+
+	private static final ConcurrentHashMap<Class<?>, TableBinding<?>> bindings =
+			new ConcurrentHashMap<Class<?>, TableBinding<?>>();
+
+	private final Class<E> clazz;
+	private final Field keyField;
+	private final ColumnBinding[] columns;
+	private final Map<String, Class<?>> columnTypes;
+	private final TableAdapter<E> adapter;
+
+	@SuppressWarnings("unchecked")
+	static <E> TableBinding<E> forClass(Class<E> clazz) {
+		TableBinding<?> binding = bindings.get(clazz);
+		if (binding == null) {
+			//Two threads may race to build the same plan; both results are equivalent
+			//so we simply keep whichever one got there first.
+			binding = new TableBinding<E>(clazz);
+			TableBinding<?> existing = bindings.putIfAbsent(clazz, binding);
+			if (existing != null) {
+				binding = existing;
+			}
+		}
+		return (TableBinding<E>) binding;
+	}
+
+	private TableBinding(Class<E> clazz) {
+		this.clazz = clazz;
+		Field key = null;
+		List<ColumnBinding> columnList = new ArrayList<ColumnBinding>();
+		Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+		for (Field field : clazz.getDeclaredFields()) {
+			if (field.getAnnotation(Key.class) != null) {
+				if (key != null) {
+					throw new InvalidParameterException("There can be only one @Key field per class");
+				}
+				if (field.getType() != int.class) {
+					throw new InvalidParameterException("@Key field must be of type int");
+				}
+				field.setAccessible(true);
+				key = field;
+				types.put("id", int.class);
+				continue;
+			}
+			DataMember dataMemberAnnotation = field.getAnnotation(DataMember.class);
+			if (dataMemberAnnotation != null) {
+				field.setAccessible(true);
+				columnList.add(ColumnBinding.create(dataMemberAnnotation.value(), field));
+				types.put(dataMemberAnnotation.value(), field.getType());
+			}
+		}
+		this.keyField = key;
+		this.columns = columnList.toArray(new ColumnBinding[columnList.size()]);
+		this.columnTypes = Collections.unmodifiableMap(types);
+		this.adapter = key != null ? findGeneratedAdapter(clazz) : null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <E> TableAdapter<E> findGeneratedAdapter(Class<E> clazz) {
+		try {
+			Class<?> adapterClass = Class.forName(clazz.getName() + GENERATED_ADAPTER_SUFFIX, true, clazz.getClassLoader());
+			return (TableAdapter<E>) adapterClass.newInstance();
+		} catch (ClassNotFoundException e) {
+			//No adapter was generated for this class, we will use reflection
+			return null;
+		} catch (Exception e) {
+			Log.w("Serializer", "Error instantiating generated adapter for " + clazz.getName() + ", using reflection instead", e);
+			return null;
+		}
+	}
+
+	Class<?> getColumnType(String column) {
+		Class<?> type = columnTypes.get(column);
+		if (type == null) {
+			throw new InvalidParameterException("No field found with @DataMember attribute with key '" + column + "'");
+		}
+		return type;
+	}
+
+	int getId(Object obj) throws IllegalArgumentException, IllegalAccessException {
+		if (adapter != null) {
+			return adapter.getId(clazz.cast(obj));
+		}
+		return requireKey().getInt(obj);
+	}
+
+	void setId(Object obj, int id) throws IllegalArgumentException, IllegalAccessException {
+		if (adapter != null) {
+			adapter.setId(clazz.cast(obj), id);
+			return;
+		}
+		requireKey().setInt(obj, id);
+	}
+
+	JSONObject toJsonObject(Object obj, boolean withId) throws IllegalArgumentException, IllegalAccessException, JSONException {
+		if (adapter != null) {
+			return adapter.toJson(clazz.cast(obj), withId);
+		}
+		JSONObject jsonObject = new JSONObject();
+		if (withId) {
+			if (keyField == null) {
+				throw new InvalidParameterException("The class provided does not have a @Key field");
+			}
+			jsonObject.put("id", keyField.getInt(obj));
+		}
+		for (ColumnBinding column : columns) {
+			column.write(obj, jsonObject);
+		}
+		return jsonObject;
+	}
+
+	/**
+	 * Creates a projection that reads only the specified columns, in addition to the id.
+	 *
+	 * @throws InvalidParameterException	thrown if one of the columns does not exist
+	 */
+	Projection project(String[] columnNames) {
+		Set<String> names = new HashSet<String>();
+		for (String columnName : columnNames) {
+			getColumnType(columnName); //Throws if there is no such column
+			names.add(columnName);
+		}
+		List<ColumnBinding> projected = new ArrayList<ColumnBinding>(names.size());
+		for (ColumnBinding column : columns) {
+			if (names.contains(column.name)) {
+				projected.add(column);
+			}
+		}
+		return new Projection(Collections.unmodifiableSet(names), projected.toArray(new ColumnBinding[projected.size()]));
+	}
+
+	E toObject(JSONObject jsonObject) throws JSONException, InstantiationException, IllegalAccessException {
+		return toObject(jsonObject, null);
+	}
+
+	/**
+	 * Creates an object from a JSON object, reading only the columns of the specified projection.
+	 * The other fields of the object keep their default values, and are not expected to be present
+	 * in the JSON object.
+	 *
+	 * @param projection	the columns to read, or <b>null</b> to read all the columns
+	 */
+	E toObject(JSONObject jsonObject, Projection projection) throws JSONException, InstantiationException, IllegalAccessException {
+		if (keyField == null) {
+			throw new InvalidParameterException("The class provided does not have a @Key field");
+		}
+		if (!jsonObject.has("id")) {
+			throw new InvalidParameterException("The JSON string does not contain an id element");
+		}
+		if (adapter != null) {
+			return projection == null ? adapter.fromJson(jsonObject) : adapter.fromJson(jsonObject, projection.names);
+		}
+		E obj = clazz.newInstance();
+		keyField.setInt(obj, jsonObject.getInt("id"));
+		for (ColumnBinding column : projection == null ? columns : projection.columns) {
+			if (!jsonObject.has(column.name)) {
+				//If a value is missing, the server table may have changed and our local class definition
+				//was not updated. Ideally, this would be an error, but for compatibility purposes with the
+				//other (C#, iOS) SDKs, we simply ignore the field and emit a warning.
+				Log.w("Serializer", "Server JSON object does not contain a value for field: " + column.name);
+				continue;
+			}
+			column.read(jsonObject, obj);
+		}
+		return obj;
+	}
+
+	private Field requireKey() {
+		if (keyField == null) {
+			throw new InvalidParameterException("Specified object does not have a @Key field");
+		}
+		return keyField;
+	}
+
+	/**
+	 * A subset of the columns of a class, used to read objects that were retrieved with only
+	 * some of their columns.
+	 */
+	static final class Projection {
+		final Set<String> names;
+		private final ColumnBinding[] columns;
+
+		private Projection(Set<String> names, ColumnBinding[] columns) {
+			this.names = names;
+			this.columns = columns;
+		}
+	}
+
+	/**
+	 * Reads and writes a single column. The concrete converter is chosen once, when the
+	 * plan is built, according to the type of the field.
+	 */
+	static abstract class ColumnBinding {
+		final String name;
+		final Field field;
+
+		ColumnBinding(String name, Field field) {
+			this.name = name;
+			this.field = field;
+		}
+
+		abstract void read(JSONObject json, Object target) throws JSONException, IllegalAccessException;
+
+		void write(Object source, JSONObject json) throws IllegalAccessException, JSONException {
+			json.put(name, field.get(source));
+		}
+
+		static ColumnBinding create(String name, Field field) {
+			Class<?> type = field.getType();
+			if (type == int.class) {
+				return new IntColumn(name, field);
+			}
+			if (type == Integer.class) {
+				return new BoxedIntColumn(name, field);
+			}
+			if (type == long.class) {
+				return new LongColumn(name, field);
+			}
+			if (type == Long.class) {
+				return new BoxedLongColumn(name, field);
+			}
+			if (type == double.class) {
+				return new DoubleColumn(name, field);
+			}
+			if (type == Double.class) {
+				return new BoxedDoubleColumn(name, field);
+			}
+			if (type == boolean.class || type == Boolean.class) {
+				return new BooleanColumn(name, field, type == boolean.class);
+			}
+			if (type == String.class) {
+				return new StringColumn(name, field);
+			}
+			return new ObjectColumn(name, field);
+		}
+	}
+
+	private static final class IntColumn extends ColumnBinding {
+		IntColumn(String name, Field field) {
+			super(name, field);
+		}
+
+		void read(JSONObject json, Object target) throws JSONException, IllegalAccessException {
+			field.setInt(target, json.getInt(name));
+		}
+
+		void write(Object source, JSONObject json) throws IllegalAccessException, JSONException {
+			json.put(name, field.getInt(source));
+		}
+	}
+
+	private static final class BoxedIntColumn extends ColumnBinding {
+		BoxedIntColumn(String name, Field field) {
+			super(name, field);
+		}
+
+		void read(JSONObject json, Object target) throws JSONException, IllegalAccessException {
+			field.set(target, Integer.valueOf(json.getInt(name)));
+		}
+	}
+
+	private static final class LongColumn extends ColumnBinding {
+		LongColumn(String name, Field field) {
+			super(name, field);
+		}
+
+		void read(JSONObject json, Object target) throws JSONException, IllegalAccessException {
+			field.setLong(target, json.getLong(name));
+		}
+
+		void write(Object source, JSONObject json) throws IllegalAccessException, JSONException {
+			json.put(name, field.getLong(source));
+		}
+	}
+
+	private static final class BoxedLongColumn extends ColumnBinding {
+		BoxedLongColumn(String name, Field field) {
+			super(name, field);
+		}
+
+		void read(JSONObject json, Object target) throws JSONException, IllegalAccessException {
+			field.set(target, Long.valueOf(json.getLong(name)));
+		}
+	}
+
+	private static final class DoubleColumn extends ColumnBinding {
+		DoubleColumn(String name, Field field) {
+			super(name, field);
+		}
+
+		void read(JSONObject json, Object target) throws JSONException, IllegalAccessException {
+			field.setDouble(target, json.getDouble(name));
+		}
+
+		void write(Object source, JSONObject json) throws IllegalAccessException, JSONException {
+			json.put(name, field.getDouble(source));
+		}
+	}
+
+	private static final class BoxedDoubleColumn extends ColumnBinding {
+		BoxedDoubleColumn(String name, Field field) {
+			super(name, field);
+		}
+
+		void read(JSONObject json, Object target) throws JSONException, IllegalAccessException {
+			field.set(target, Double.valueOf(json.getDouble(name)));
+		}
+	}
+
+	private static final class BooleanColumn extends ColumnBinding {
+		private final boolean primitive;
+
+		BooleanColumn(String name, Field field, boolean primitive) {
+			super(name, field);
+			this.primitive = primitive;
+		}
+
+		void read(JSONObject json, Object target) throws JSONException, IllegalAccessException {
+			//See comment in the write method -- we support 0/1 numeric values
+			//as the value of a Boolean property, because of cross-platform compat
+			//with the C# and iOS SDKs.
+			boolean value;
+			try {
+				int boolValue = json.getInt(name);
+				if (boolValue != 0 && boolValue != 1) {
+					throw new InvalidParameterException("Invalid value " + boolValue + " specified for Boolean property: " + name);
+				}
+				value = boolValue == 1;
+			} catch (JSONException e) {
+				if (Log.isLoggable("Serializer", Log.VERBOSE)) {
+					Log.v("Serializer", "JSON value for Boolean property '" + name + "' received as Boolean and not a number (0/1). This may fail with the C# and iOS SDKs.");
+				}
+				value = json.getBoolean(name);
+			}
+			if (primitive) {
+				field.setBoolean(target, value);
+			} else {
+				field.set(target, Boolean.valueOf(value));
+			}
+		}
+
+		void write(Object source, JSONObject json) throws IllegalAccessException, JSONException {
+			//Special hack for WAMS -- currently the C# and iOS SDKs convert Booleans to 0/1
+			//values, which are then stored in SQL Server as a numeric column and not BIT.
+			//We do the same here for cross-platform compatibility with these SDKs.
+			boolean value;
+			if (primitive) {
+				value = field.getBoolean(source);
+			} else {
+				Boolean boxed = (Boolean) field.get(source);
+				if (boxed == null) {
+					return;
+				}
+				value = boxed.booleanValue();
+			}
+			json.put(name, value ? 1 : 0);
+		}
+	}
+
+	private static final class StringColumn extends ColumnBinding {
+		StringColumn(String name, Field field) {
+			super(name, field);
+		}
+
+		void read(JSONObject json, Object target) throws JSONException, IllegalAccessException {
+			field.set(target, json.getString(name));
+		}
+	}
+
+	private static final class ObjectColumn extends ColumnBinding {
+		ObjectColumn(String name, Field field) {
+			super(name, field);
+		}
+
+		void read(JSONObject json, Object target) throws JSONException, IllegalAccessException {
+			//Taking a risk -- this may fail
+			field.set(target, json.get(name));
+		}
+	}
+
+}
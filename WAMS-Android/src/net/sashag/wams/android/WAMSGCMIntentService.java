@@ -1,7 +1,5 @@
 package net.sashag.wams.android;
 
-import java.util.List;
-
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -54,6 +52,9 @@ public class WAMSGCMIntentService extends GCMBaseIntentService {
 			Log.v("GCMIntentService", "Registered regId to server: " + regId);
 		} catch (MobileException e) {
 			Log.e("GCMIntentService", "Error registering regId: " + regId, e);
+		} finally {
+			//The service is only used for this event, so release its worker threads and connections
+			service.shutdown();
 		}
 	}
 
@@ -62,14 +63,18 @@ public class WAMSGCMIntentService extends GCMBaseIntentService {
 		MobileService service = new MobileService(context);
 		MobileTable<PushChannel> channelTable = service.getTable(PushChannel.class);
 		try {
-			List<PushChannel> channels = channelTable.where().equal("regId", regId).select();
-			for (PushChannel channel : channels) {
-				channelTable.delete(channel);
+			MobileServiceBulkResult<Integer> result = channelTable.where().equal("regId", regId).delete();
+			if (result.isSuccessful()) {
+				Log.v("GCMIntentService", "Unregistered regId from server: " + regId);
+			} else {
+				Log.e("GCMIntentService", "Error unregistering regId: " + regId + ", failed to delete " +
+						result.getFailureCount() + " channel(s)", result.getFailures().get(0).getException());
 			}
-			Log.v("GCMIntentService", "Unregistered regId from server: " + regId);
 		}
 		catch (MobileException e) {
 			Log.e("GCMIntentService", "Error unregistering regId: " + regId, e);
+		} finally {
+			service.shutdown();
 		}
 	}
 
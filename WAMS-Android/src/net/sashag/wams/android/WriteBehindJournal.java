@@ -0,0 +1,565 @@
+package net.sashag.wams.android;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.HttpStatus;
+import org.json.JSONObject;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * A durable journal of inserts, updates and deletes that are sent to the mobile service in the
+ * background, in the order in which they were made. The journal is stored in a SQLite database,
+ * so changes that have not reached the server survive process death and are sent the next time
+ * the journal is opened. Callbacks, however, live in memory only.
+ * <p>
+ * Changes that have not been sent yet are coalesced: repeated updates of the same item become a
+ * single PATCH, updates of an item whose insert has not been sent are folded into the insert,
+ * and an insert followed by a delete of the same item cancels out entirely. Items that have not
+ * been inserted yet do not have an id, so they are tracked by identity; after process death,
+ * only changes that have already been journaled are replayed.
+ * <p>
+ * When the mobile service cannot be reached, or returns a server error, sending stops and is
+ * retried later with an increasing delay. Other errors are permanent: the change is dropped
+ * from the journal and its callbacks receive the error. A delete of an item that no longer
+ * exists succeeds, because a retried delete may have reached the server the first time.
+ * <p>
+ * Inserts are not idempotent: if the server created an item but its response was lost to a
+ * connection error or replaced by a server error, the retried insert creates a second item.
+ * Tables that must not contain duplicates need a client-generated unique column that the
+ * insert script of the mobile service checks.
+ * <p>
+ * Each user has a journal of their own, so that changes are never sent with the authentication
+ * token of another user. When the user changes, the journal is closed, and its changes remain in
+ * its database until the user who made them logs in again.
+ */
+class WriteBehindJournal {
+
+	static final String DATABASE_NAME_PREFIX = "wams-journal-";
+	private static final int DATABASE_VERSION = 1;
+	private static final String TABLE = "journal";
+	private static final String COLUMN_SEQ = "seq";
+	private static final String COLUMN_TABLE_NAME = "tableName";
+	private static final String COLUMN_OP = "op";
+	private static final String COLUMN_ITEM_ID = "itemId";
+	private static final String COLUMN_INSERT_SEQ = "insertSeq";
+	private static final String COLUMN_BODY = "body";
+
+	private static final int INSERT = 1;
+	private static final int UPDATE = 2;
+	private static final int DELETE = 3;
+
+	private static final long MIN_RETRY_DELAY_MS = 1000;
+	private static final long MAX_RETRY_DELAY_MS = 60000;
+
+	private final String serviceUrl;
+	private final HttpTransport transport;
+	private final MobileServiceExecutor executor;
+	private final QueryCache queryCache;
+	private final Handler retryHandler;
+	private final SQLiteDatabase database;
+
+	private final Object lock = new Object();
+	private final LinkedList<Entry> entries = new LinkedList<Entry>();
+	private final IdentityHashMap<Object, Entry> pendingInserts = new IdentityHashMap<Object, Entry>();
+	private Entry inFlight;
+	private boolean draining;
+	private boolean closed;
+	private long retryDelay = MIN_RETRY_DELAY_MS;
+
+	private final Runnable drainTask = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	private final Runnable retryTask = new Runnable() {
+		public void run() {
+			scheduleDrain();
+		}
+	};
+
+	/**
+	 * Opens the journal stored in the specified database, and starts sending the changes left
+	 * over from a previous run.
+	 */
+	WriteBehindJournal(Context context, String databaseName, String serviceUrl, HttpTransport transport,
+			MobileServiceExecutor executor, QueryCache queryCache) {
+		this.serviceUrl = serviceUrl;
+		this.transport = transport;
+		this.executor = executor;
+		this.queryCache = queryCache;
+		this.retryHandler = new Handler(context.getMainLooper());
+		this.database = new DatabaseHelper(context, databaseName).getWritableDatabase();
+		load();
+		if (!entries.isEmpty()) {
+			Log.i("WriteBehindJournal", "Replaying " + entries.size() + " pending change(s)");
+		}
+		scheduleDrain();
+	}
+
+	int getPendingCount() {
+		synchronized (lock) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Sends pending changes right away, without waiting for the current retry delay to elapse.
+	 */
+	void flush() {
+		retryHandler.removeCallbacks(retryTask);
+		synchronized (lock) {
+			retryDelay = MIN_RETRY_DELAY_MS;
+		}
+		scheduleDrain();
+	}
+
+	/**
+	 * Stops sending changes and closes the database; a change that is being sent when this method
+	 * is called is completed first. Changes that have not been sent remain in the database, and
+	 * their callbacks are not invoked.
+	 */
+	void close() {
+		retryHandler.removeCallbacks(retryTask);
+		synchronized (lock) {
+			closed = true;
+			if (!draining) {
+				database.close();
+			}
+		}
+	}
+
+	<E> void insert(String tableName, TableBinding<E> binding, E item, MobileServiceCallback<E> callback) {
+		try {
+			String body = binding.toJsonObject(item, /*withId*/false).toString();
+			synchronized (lock) {
+				checkOpen();
+				Entry pending = pendingInserts.get(item);
+				if (pending != null && pending != inFlight) {
+					rewrite(pending, body);
+				} else {
+					pending = append(tableName, INSERT, 0, 0, body);
+					pending.item = item;
+					pending.binding = binding;
+					pendingInserts.put(item, pending);
+				}
+				pending.addCompletion(callback, item);
+			}
+		} catch (Exception e) {
+			callback.errorOccurred(new MobileException("Error creating item", e));
+			return;
+		}
+		scheduleDrain();
+	}
+
+	<E> void update(String tableName, TableBinding<E> binding, E item, MobileServiceCallback<E> callback) {
+		try {
+			synchronized (lock) {
+				checkOpen();
+				Entry insert = pendingInserts.get(item);
+				if (insert != null && insert != inFlight) {
+					//The item hasn't been sent yet, so send its latest state with the insert
+					rewrite(insert, binding.toJsonObject(item, /*withId*/false).toString());
+					insert.addCompletion(callback, item);
+				} else {
+					int id = insert != null ? 0 : binding.getId(item);
+					long insertSeq = insert != null ? insert.seq : 0;
+					String body = binding.toJsonObject(item, /*withId*/true).toString();
+					Entry pending = findPendingUpdate(tableName, id, insertSeq);
+					if (pending != null) {
+						rewrite(pending, body);
+					} else {
+						pending = append(tableName, UPDATE, id, insertSeq, body);
+					}
+					pending.addCompletion(callback, item);
+				}
+			}
+		} catch (Exception e) {
+			callback.errorOccurred(new MobileException("Error updating item", e));
+			return;
+		}
+		scheduleDrain();
+	}
+
+	<E> void delete(String tableName, TableBinding<E> binding, E item, MobileServiceCallback<E> callback) {
+		List<Completion<?>> cancelled = null;
+		try {
+			synchronized (lock) {
+				checkOpen();
+				Entry insert = pendingInserts.get(item);
+				if (insert != null && insert != inFlight) {
+					//The item never reached the server, so its insert and everything after it cancel out
+					cancelled = new ArrayList<Completion<?>>(insert.completions);
+					for (Entry dependent : removeDependents(insert.seq)) {
+						cancelled.addAll(dependent.completions);
+					}
+					remove(insert);
+					pendingInserts.remove(item);
+					cancelled.add(new Completion<E>(callback, item));
+				} else {
+					int id = insert != null ? 0 : binding.getId(item);
+					long insertSeq = insert != null ? insert.seq : 0;
+					Entry delete = append(tableName, DELETE, id, insertSeq, null);
+					//Updates that haven't been sent yet are pointless now; they complete with the delete
+					Entry update;
+					while ((update = findPendingUpdate(tableName, id, insertSeq)) != null) {
+						delete.completions.addAll(update.completions);
+						remove(update);
+					}
+					delete.addCompletion(callback, item);
+				}
+			}
+		} catch (Exception e) {
+			callback.errorOccurred(new MobileException("Error deleting item", e));
+			return;
+		}
+		if (cancelled != null) {
+			for (Completion<?> completion : cancelled) {
+				completion.succeed();
+			}
+		} else {
+			scheduleDrain();
+		}
+	}
+
+	private void scheduleDrain() {
+		synchronized (lock) {
+			if (draining || closed || entries.isEmpty()) {
+				return;
+			}
+			draining = true;
+		}
+		try {
+			executor.execute(drainTask, MobileServiceExecutor.Priority.BACKGROUND);
+		} catch (RejectedExecutionException e) {
+			//The service has been shut down or is too busy; the changes remain in the journal
+			synchronized (lock) {
+				draining = false;
+				closeIfRequested();
+			}
+		}
+	}
+
+	private void drain() {
+		while (true) {
+			Entry entry;
+			synchronized (lock) {
+				if (entries.isEmpty() || closed) {
+					draining = false;
+					closeIfRequested();
+					return;
+				}
+				entry = entries.getFirst();
+				inFlight = entry;
+			}
+			int statusCode = -1;
+			String content = null;
+			Exception error = null;
+			if (entry.insertSeq != 0 && entry.itemId == 0) {
+				//The insert this change depends on was lost
+				statusCode = HttpStatus.SC_NOT_FOUND;
+			} else {
+				try {
+					HttpTransport.Response response = transport.execute(getMethod(entry), getUrl(entry), getBody(entry));
+					try {
+						statusCode = response.getStatusCode();
+						if (entry.op == INSERT && statusCode == HttpStatus.SC_CREATED) {
+							content = response.readString();
+						}
+					} finally {
+						response.close();
+					}
+				} catch (Exception e) {
+					error = e;
+				}
+			}
+			if (error != null || isTransient(statusCode)) {
+				long delay;
+				synchronized (lock) {
+					inFlight = null;
+					draining = false;
+					delay = retryDelay;
+					retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
+					if (closeIfRequested()) {
+						return;
+					}
+				}
+				Log.w("WriteBehindJournal", "Error sending pending change, retrying in " + delay + "ms, status code: " + statusCode, error);
+				retryHandler.postDelayed(retryTask, delay);
+				return;
+			}
+			queryCache.invalidateTable(entry.tableName);
+			complete(entry, statusCode, content);
+		}
+	}
+
+	private void complete(Entry entry, int statusCode, String content) {
+		MobileException failure = null;
+		int id = 0;
+		if (!isSuccess(entry, statusCode)) {
+			failure = new MobileException(getErrorMessage(entry) + statusCode, statusCode);
+		} else if (entry.op == INSERT) {
+			try {
+				id = new JSONObject(content).getInt("id");
+				if (entry.item != null) {
+					entry.binding.setId(entry.item, id);
+				}
+			} catch (Exception e) {
+				failure = new MobileException("Error creating item", e);
+			}
+		}
+		List<Completion<?>> completions;
+		synchronized (lock) {
+			inFlight = null;
+			retryDelay = MIN_RETRY_DELAY_MS;
+			remove(entry);
+			if (entry.item != null) {
+				pendingInserts.remove(entry.item);
+			}
+			completions = new ArrayList<Completion<?>>(entry.completions);
+			if (entry.op == INSERT) {
+				if (failure == null) {
+					resolveDependents(entry.seq, id);
+				} else {
+					for (Entry dependent : removeDependents(entry.seq)) {
+						completions.addAll(dependent.completions);
+					}
+				}
+			}
+		}
+		if (failure != null) {
+			Log.e("WriteBehindJournal", "Dropping pending change that failed permanently", failure);
+		}
+		for (Completion<?> completion : completions) {
+			if (failure == null) {
+				completion.succeed();
+			} else {
+				completion.fail(failure);
+			}
+		}
+	}
+
+	//Called with the lock held; the change would be sent with the authentication token of another user
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("The journal was closed, because the user has changed");
+		}
+	}
+
+	//Called with the lock held once draining stops, which defers closing while a change is being sent
+	private boolean closeIfRequested() {
+		if (closed) {
+			database.close();
+		}
+		return closed;
+	}
+
+	private static boolean isTransient(int statusCode) {
+		return statusCode == -1 || statusCode >= 500 ||
+				statusCode == HttpStatus.SC_REQUEST_TIMEOUT || statusCode == 429; //Too Many Requests
+	}
+
+	private String getUrl(Entry entry) {
+		String url = serviceUrl + "/tables/" + entry.tableName;
+		return entry.op == INSERT ? url : url + "/" + entry.itemId;
+	}
+
+	private static String getMethod(Entry entry) {
+		switch (entry.op) {
+		case INSERT:
+			return HttpTransport.POST;
+		case UPDATE:
+			return HttpTransport.PATCH;
+		default:
+			return HttpTransport.DELETE;
+		}
+	}
+
+	private static String getBody(Entry entry) throws Exception {
+		if (entry.op == UPDATE && entry.insertSeq != 0) {
+			//The item's id wasn't known when the update was journaled
+			return new JSONObject(entry.body).put("id", entry.itemId).toString();
+		}
+		return entry.body;
+	}
+
+	private static boolean isSuccess(Entry entry, int statusCode) {
+		switch (entry.op) {
+		case INSERT:
+			return statusCode == HttpStatus.SC_CREATED;
+		case UPDATE:
+			return statusCode == HttpStatus.SC_OK;
+		default:
+			//The item is gone either way, possibly deleted by an earlier attempt whose response was lost
+			return statusCode == HttpStatus.SC_NO_CONTENT || statusCode == HttpStatus.SC_NOT_FOUND;
+		}
+	}
+
+	private static String getErrorMessage(Entry entry) {
+		switch (entry.op) {
+		case INSERT:
+			return "Error creating new item, status code: ";
+		case UPDATE:
+			return "Error updating item, status code: ";
+		default:
+			return "Error deleting item, status code: ";
+		}
+	}
+
+	//The following methods are called with the lock held
+
+	private Entry findPendingUpdate(String tableName, int id, long insertSeq) {
+		for (Entry entry : entries) {
+			if (entry == inFlight || entry.op != UPDATE || !entry.tableName.equals(tableName)) {
+				continue;
+			}
+			if (insertSeq != 0 ? entry.insertSeq == insertSeq : entry.itemId == id) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private List<Entry> removeDependents(long insertSeq) {
+		List<Entry> dependents = new ArrayList<Entry>();
+		for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+			Entry entry = it.next();
+			if (entry.insertSeq == insertSeq && entry != inFlight) {
+				dependents.add(entry);
+				it.remove();
+			}
+		}
+		database.delete(TABLE, COLUMN_INSERT_SEQ + " = ?", new String[] { String.valueOf(insertSeq) });
+		return dependents;
+	}
+
+	private void resolveDependents(long insertSeq, int id) {
+		for (Entry entry : entries) {
+			if (entry.insertSeq == insertSeq) {
+				entry.itemId = id;
+			}
+		}
+		ContentValues values = new ContentValues();
+		values.put(COLUMN_ITEM_ID, id);
+		database.update(TABLE, values, COLUMN_INSERT_SEQ + " = ?", new String[] { String.valueOf(insertSeq) });
+	}
+
+	private Entry append(String tableName, int op, int itemId, long insertSeq, String body) {
+		ContentValues values = new ContentValues();
+		values.put(COLUMN_TABLE_NAME, tableName);
+		values.put(COLUMN_OP, op);
+		values.put(COLUMN_ITEM_ID, itemId);
+		values.put(COLUMN_INSERT_SEQ, insertSeq);
+		values.put(COLUMN_BODY, body);
+		long seq = database.insertOrThrow(TABLE, null, values);
+		Entry entry = new Entry(seq, tableName, op, itemId, insertSeq, body);
+		entries.addLast(entry);
+		return entry;
+	}
+
+	private void rewrite(Entry entry, String body) {
+		ContentValues values = new ContentValues();
+		values.put(COLUMN_BODY, body);
+		database.update(TABLE, values, COLUMN_SEQ + " = ?", new String[] { String.valueOf(entry.seq) });
+		entry.body = body;
+	}
+
+	private void remove(Entry entry) {
+		database.delete(TABLE, COLUMN_SEQ + " = ?", new String[] { String.valueOf(entry.seq) });
+		entries.remove(entry);
+	}
+
+	private void load() {
+		Cursor cursor = database.query(TABLE, new String[] {
+				COLUMN_SEQ, COLUMN_TABLE_NAME, COLUMN_OP, COLUMN_ITEM_ID, COLUMN_INSERT_SEQ, COLUMN_BODY
+			}, null, null, null, null, COLUMN_SEQ);
+		try {
+			synchronized (lock) {
+				while (cursor.moveToNext()) {
+					entries.addLast(new Entry(cursor.getLong(0), cursor.getString(1), cursor.getInt(2),
+							cursor.getInt(3), cursor.getLong(4), cursor.getString(5)));
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private static class Entry {
+		final long seq;
+		final String tableName;
+		final int op;
+		final long insertSeq;
+		int itemId;
+		String body;
+		//Only available for inserts journaled by this process
+		Object item;
+		TableBinding<?> binding;
+		final List<Completion<?>> completions = new ArrayList<Completion<?>>(1);
+
+		Entry(long seq, String tableName, int op, int itemId, long insertSeq, String body) {
+			this.seq = seq;
+			this.tableName = tableName;
+			this.op = op;
+			this.itemId = itemId;
+			this.insertSeq = insertSeq;
+			this.body = body;
+		}
+
+		<E> void addCompletion(MobileServiceCallback<E> callback, E item) {
+			completions.add(new Completion<E>(callback, item));
+		}
+	}
+
+	private static class Completion<E> {
+		private final MobileServiceCallback<E> callback;
+		private final E item;
+
+		Completion(MobileServiceCallback<E> callback, E item) {
+			this.callback = callback;
+			this.item = item;
+		}
+
+		void succeed() {
+			callback.completedSuccessfully(item);
+		}
+
+		void fail(MobileException exception) {
+			callback.errorOccurred(exception);
+		}
+	}
+
+	private static class DatabaseHelper extends SQLiteOpenHelper {
+
+		DatabaseHelper(Context context, String name) {
+			super(context, name, null, DATABASE_VERSION);
+		}
+
+		@Override
+		public void onCreate(SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE " + TABLE + " (" +
+					COLUMN_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+					COLUMN_TABLE_NAME + " TEXT NOT NULL, " +
+					COLUMN_OP + " INTEGER NOT NULL, " +
+					COLUMN_ITEM_ID + " INTEGER NOT NULL, " +
+					COLUMN_INSERT_SEQ + " INTEGER NOT NULL, " +
+					COLUMN_BODY + " TEXT)");
+		}
+
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		}
+	}
+}